@@ -0,0 +1,225 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for client connections, checked by the listeners when a
+ * connection is accepted, before any crypto work: a token bucket per source
+ * IP limits the connection rate, an IP that failed authentication is locked
+ * out for a time that doubles with each failure and the number of
+ * connections still authenticating is capped. Rejected connections are
+ * closed at once. IPv6 clients are grouped by /64 (one host usually has
+ * the whole /64). The per-IP state is kept in a fixed size hashed table, so
+ * a scan from many addresses cannot grow it: an address takes the first
+ * free of PROBES slots, else the least recently used one that is not
+ * locked out. A lockout is never taken over, an address finding all its
+ * slots locked out is rejected.
+ */
+public class Admission {
+
+    // Slots in the per-IP table (power of two) and slots tried per address
+    private static final int SLOTS = 1024;
+    private static final int PROBES = 4;
+
+    // Token bucket: connections allowed at once and per second after that
+    private static final double BURST = 10;
+    private static final double RATE = 0.5;
+
+    // Lockout after the first failed authentication, doubled for each
+    // further failure up to MAX_LOCKOUT
+    private static final long BASE_LOCKOUT = 1000;  // milliseconds
+    private static final long MAX_LOCKOUT = 3600000;  // milliseconds
+
+    // Most connections authenticating at the same time
+    private static final int MAX_HANDSHAKES = 16;
+
+    // Random per run so the slots cannot be predicted
+    private static final int SEED = ThreadLocalRandom.current().nextInt();
+
+    // Per-IP table (guarded by the class)
+    private static final int[] keys = new int[SLOTS];
+    private static final boolean[] used = new boolean[SLOTS];
+    private static final double[] tokens = new double[SLOTS];
+    private static final long[] refillTime = new long[SLOTS];
+    private static final int[] failures = new int[SLOTS];
+    private static final long[] lockedUntil = new long[SLOTS];
+
+    private static final AtomicInteger handshakes = new AtomicInteger();
+
+    // Counters
+    private static final AtomicLong accepted = new AtomicLong();
+    private static final AtomicLong rateLimited = new AtomicLong();
+    private static final AtomicLong lockedOut = new AtomicLong();
+    private static final AtomicLong handshakeLimited = new AtomicLong();
+    private static final AtomicLong tableFull = new AtomicLong();
+    private static final AtomicLong authFailures = new AtomicLong();
+
+    private Admission() {
+    }
+
+    /**
+     * Checks if a new connection may proceed to authentication. If admitted
+     * the caller must call handshakeDone once it authenticated or closed.
+     * @param address source address
+     * @return true if admitted, false to close the connection
+     */
+    public static boolean admit(InetAddress address) {
+        int key = getKey(address);
+        long now = System.currentTimeMillis();
+        synchronized (Admission.class) {
+            int slot = findSlot(key);
+            if (slot < 0) {
+                slot = takeSlot(key, now);
+                if (slot < 0) {
+                    tableFull.incrementAndGet();
+                    return false;
+                }
+            }
+            if (now < lockedUntil[slot]) {
+                lockedOut.incrementAndGet();
+                return false;
+            }
+            tokens[slot] = Math.min(BURST, tokens[slot] + (now - refillTime[slot]) * RATE / 1000);
+            refillTime[slot] = now;
+            if (tokens[slot] < 1) {
+                rateLimited.incrementAndGet();
+                return false;
+            }
+            if (handshakes.get() >= MAX_HANDSHAKES) {
+                handshakeLimited.incrementAndGet();
+                return false;
+            }
+            tokens[slot] -= 1;
+            handshakes.incrementAndGet();
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Call once an admitted connection authenticated, failed or closed
+     */
+    public static void handshakeDone() {
+        handshakes.decrementAndGet();
+    }
+
+    /**
+     * Call when a client failed authentication (bad request or timeout),
+     * locks the address out
+     * @param address source address
+     */
+    public static void authFailed(InetAddress address) {
+        authFailures.incrementAndGet();
+        int key = getKey(address);
+        long lockout;
+        synchronized (Admission.class) {
+            int slot = findSlot(key);
+            if (slot < 0) {
+                return;  // slot taken over by another address
+            }
+            failures[slot]++;
+            lockout = Math.min(MAX_LOCKOUT, BASE_LOCKOUT << Math.min(failures[slot] - 1, 30));
+            lockedUntil[slot] = System.currentTimeMillis() + lockout;
+        }
+        Log.print(Level.WARN, "Client " + address.getHostAddress() + " locked out for "
+                + (lockout / 1000) + " seconds after failed authentication");
+    }
+
+    /**
+     * Call when a client authenticated, clears its failures
+     * @param address source address
+     */
+    public static void authSucceeded(InetAddress address) {
+        int key = getKey(address);
+        synchronized (Admission.class) {
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                failures[slot] = 0;
+            }
+        }
+    }
+
+    /**
+     * Gets the admission counters as text, one per line
+     * @return summary
+     */
+    public static String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Accepted ").append(accepted.get()).append(System.lineSeparator());
+        sb.append("Rate limited ").append(rateLimited.get()).append(System.lineSeparator());
+        sb.append("Locked out ").append(lockedOut.get()).append(System.lineSeparator());
+        sb.append("Handshake limited ").append(handshakeLimited.get()).append(System.lineSeparator());
+        sb.append("Table full ").append(tableFull.get()).append(System.lineSeparator());
+        sb.append("Auth failures ").append(authFailures.get()).append(System.lineSeparator());
+        sb.append("Authenticating ").append(handshakes.get()).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    /**
+     * Finds the slot of an address (call while holding the class lock)
+     * @param key table key of the address
+     * @return slot or -1 if the address has none
+     */
+    private static int findSlot(int key) {
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (key + i) & (SLOTS - 1);
+            if (used[slot] && keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gives an address a slot: the first free one, else the least recently
+     * used one that is not locked out (call while holding the class lock)
+     * @param key table key of the address
+     * @param now current time
+     * @return slot or -1 if all are locked out
+     */
+    private static int takeSlot(int key, long now) {
+        int slot = -1;
+        for (int i = 0; i < PROBES; i++) {
+            int probe = (key + i) & (SLOTS - 1);
+            if (used[probe] == false) {
+                slot = probe;
+                break;
+            }
+            if (now >= lockedUntil[probe] && (slot < 0 || refillTime[probe] < refillTime[slot])) {
+                slot = probe;
+            }
+        }
+        if (slot >= 0) {
+            used[slot] = true;
+            keys[slot] = key;
+            tokens[slot] = BURST;
+            refillTime[slot] = now;
+            failures[slot] = 0;
+            lockedUntil[slot] = 0;
+        }
+        return slot;
+    }
+
+    /**
+     * Gets the table key of an address, IPv6 addresses by their /64 prefix
+     * @param address address
+     * @return key (the first slot tried is its low bits)
+     */
+    private static int getKey(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int h = 1;
+        for (int i = 0; i < (address instanceof Inet6Address ? 8 : bytes.length); i++) {
+            h = 31 * h + bytes[i];
+        }
+        h ^= SEED;
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+}
@@ -0,0 +1,168 @@
+package bungalowserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembles the fire/burglary alarm email of a partition. The panel reports
+ * the alarm (partition status) just before the zone status frames that set
+ * alarm memory on the zones that triggered it, so the email waits for those
+ * frames: it is sent once the alarm-memory zones have arrived and no more
+ * arrived for SETTLE_TIME, or after MAX_WAIT at the latest. Only zones whose
+ * alarm memory turned on around this alarm are listed (alarm memory left
+ * over from an earlier alarm is ignored). All methods run on the panel core
+ * thread, the email is sent on a thread of its own so an alarm email never
+ * waits behind other email.
+ */
+public class AlarmNotifier {
+
+    // Send this long after the last alarm-memory zone arrived
+    private static final int SETTLE_TIME = 300;  // milliseconds
+
+    // Send no later than this after the alarm, even without zones
+    private static final int MAX_WAIT = 3000;  // milliseconds
+
+    // Alarm memory turned on this long before the alarm still counts
+    private static final int EARLY_TIME = 2000;  // milliseconds
+
+    // Alarm emails only, one at a time
+    private static final ExecutorService SENDER = Executors.newSingleThreadExecutor();
+
+    /**
+     * An alarm waiting for its zones
+     */
+    private static class Alarm {
+        final String subject;
+        final int partition;
+        final Trace trace;
+        final long startTime;
+        final List<Zone> zones = new ArrayList<>();
+        ScheduledFuture<?> settle = null;
+        ScheduledFuture<?> timeout = null;
+
+        Alarm(String subject, int partition, Trace trace) {
+            this.subject = subject;
+            this.partition = partition;
+            this.trace = trace;
+            this.startTime = System.currentTimeMillis();
+        }
+    }
+
+    private final PanelContext context;
+    private final List<Alarm> alarms = new ArrayList<>();
+
+    // When alarm memory last turned on, per zone (0 = not on)
+    private final long[] memoryTime = new long[Const.MAX_ZONES];
+
+    /**
+     * Constructor
+     * @param context panel the alarms belong to
+     */
+    public AlarmNotifier(PanelContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Call when the panel reports a fire or burglary alarm, starts assembling
+     * the email
+     * @param subject email subject ("FIRE" or "BURGLARY")
+     * @param partition partition number (1-8)
+     * @param trace latency trace of the alarm frame
+     */
+    public void alarm(String subject, int partition, Trace trace) {
+        Alarm alarm = new Alarm(subject, partition, trace);
+        alarms.add(alarm);
+
+        // Zones whose alarm memory turned on just before the alarm was reported
+        for (int z = 1; z <= Const.MAX_ZONES; z++) {
+            Zone zone = context.zones.getZone(z);
+            if (zone != null && zone.isAlarmMemory && isInPartition(zone, partition)
+                    && alarm.startTime - memoryTime[z - 1] <= EARLY_TIME) {
+                alarm.zones.add(zone);
+            }
+        }
+
+        alarm.timeout = schedule(alarm, MAX_WAIT);
+        if (alarm.zones.isEmpty() == false) {
+            alarm.settle = schedule(alarm, SETTLE_TIME);
+        }
+    }
+
+    /**
+     * Call when the alarm memory of a zone changed (after the zone was updated)
+     * @param zone zone
+     */
+    public void alarmMemoryChanged(Zone zone) {
+        if (zone.isAlarmMemory == false) {
+            memoryTime[zone.number - 1] = 0;
+            return;
+        }
+        memoryTime[zone.number - 1] = System.currentTimeMillis();
+
+        for (Alarm alarm : alarms) {
+            if (isInPartition(zone, alarm.partition) && alarm.zones.contains(zone) == false) {
+                alarm.zones.add(zone);
+                if (alarm.settle != null) {
+                    alarm.settle.cancel(false);
+                }
+                alarm.settle = schedule(alarm, SETTLE_TIME);
+            }
+        }
+    }
+
+    /**
+     * Sends an alarm email after a delay (unless already sent)
+     * @param alarm alarm
+     * @param delay milliseconds
+     * @return scheduled task
+     */
+    private ScheduledFuture<?> schedule(Alarm alarm, int delay) {
+        return PanelContext.TIMER.schedule(() -> context.core.execute(() -> send(alarm)),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Builds the email from the current zone state and hands it to the sender
+     * @param alarm alarm
+     */
+    private void send(Alarm alarm) {
+        if (alarms.remove(alarm) == false) {
+            return;  // already sent
+        }
+        if (alarm.settle != null) {
+            alarm.settle.cancel(false);
+        }
+        alarm.timeout.cancel(false);
+
+        StringBuilder sb = new StringBuilder();
+        if (alarm.zones.isEmpty()) {
+            sb.append("The panel did not report the zone that triggered the alarm");
+            sb.append(System.lineSeparator());
+        } else {
+            sb.append("Triggered by:").append(System.lineSeparator());
+            for (Zone zone : alarm.zones) {
+                sb.append("Zone ").append(zone.number).append(" ")
+                        .append(context.zones.getZoneName(zone.number)).append(System.lineSeparator());
+            }
+        }
+        sb.append(System.lineSeparator());
+        sb.append(context.zones.getZoneStatusMessage(alarm.partition));
+
+        String subject = context.getPrefix() + alarm.subject;
+        String message = sb.toString();
+        SENDER.execute(() -> {
+            if (Emailer.sendEmail(subject, message, alarm.trace) == false) {
+                System.out.println("Error sending email, see the log file for more info.");
+                Speaker.speak(EventPriority.ALARM, alarm.trace, 27, 26);
+            }
+        });
+    }
+
+    private static boolean isInPartition(Zone zone, int partition) {
+        return (zone.partitionMask & (1 << (partition - 1))) != 0;
+    }
+}
@@ -12,6 +12,14 @@ public class Base80 {
     private static final String B80L = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz+-<>(){}[]#&%@!*^/";
     private static final char[] B80A = B80L.toCharArray();
 
+    /**
+     * Marker prefixed to a client string section when it uses the wide
+     * encoding (zone numbers as two characters, events carry a partition).
+     * Not part of the base80 character set so older clients never see it
+     * unless the panel has zones or partitions they could not display anyway.
+     */
+    public static final char WIDE = ':';
+
     /**
      * Decodes a base80 character
      * @param c character to decode
@@ -21,6 +29,36 @@ public class Base80 {
         return B80L.indexOf(c);
     }
 
+    /**
+     * Decodes a two character (wide) base80 value
+     * @param s string containing the value
+     * @param index index of the first (high) character
+     * @return returns the numeric value (0-6399) or -1
+     */
+    public static int decodeWide(String s, int index) {
+        if (index < 0 || index + 1 >= s.length()) {
+            return -1;
+        }
+        int hi = decode(s.charAt(index));
+        int lo = decode(s.charAt(index + 1));
+        if (hi < 0 || lo < 0) {
+            return -1;
+        }
+        return hi * 80 + lo;
+    }
+
+    /**
+     * Encodes a value to a two character (wide) base80 string
+     * @param value int value (0-6399)
+     * @return base80 encoded string
+     */
+    public static String encodeWide(int value) {
+        if (value < 0 || value >= 80 * 80) {
+            throw new IllegalArgumentException("Value out of range in B80.EncodeWide (" + value + ")");
+        }
+        return new String(new char[] { B80A[value / 80], B80A[value % 80] });
+    }
+
     /**
      * Encodes one or more values to base80 string
      * @param values int values
@@ -41,6 +79,18 @@ public class Base80 {
         return new String(chars);
     }
 
+    /**
+     * Encodes a single value to a base80 character
+     * @param value int value (0-79)
+     * @return base80 character
+     */
+    public static char encodeChar(int value) {
+        if (value < 0 || value > 79) {
+            throw new IllegalArgumentException("Value out of range in B80.EncodeChar (" + value + ")");
+        }
+        return B80A[value];
+    }
+
     /**
      * Encode current date & time as wmdhms
      * Where w=weekday (0=sun), m=month (1-12), d=date (1-31),
@@ -0,0 +1,88 @@
+package bungalowserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte buffers for the binary client protocol, so encoding,
+ * encryption and framing of a message do not allocate. Buffers come in
+ * power of two sizes from MIN_SIZE to MAX_SIZE, larger requests are
+ * allocated and not pooled.
+ */
+public class BufferPool {
+
+    private static final int MIN_SIZE = 256;
+    private static final int MAX_SIZE = 65536;
+    private static final int CLASSES = 9;  // 256 .. 65536
+
+    // Most buffers kept per size
+    private static final int MAX_POOLED = 64;
+
+    private static final List<Queue<ByteBuffer>> POOL = new ArrayList<>(CLASSES);
+    private static final AtomicInteger[] COUNT = new AtomicInteger[CLASSES];
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            POOL.add(new ConcurrentLinkedQueue<>());
+            COUNT[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * Gets a cleared buffer
+     * @param size bytes needed
+     * @return buffer with at least size bytes capacity (limit = capacity)
+     */
+    public static ByteBuffer acquire(int size) {
+        if (size > MAX_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        int index = getIndex(size);
+        ByteBuffer buffer = POOL.get(index).poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(MIN_SIZE << index);
+        }
+        COUNT[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, it must not be used afterwards (buffers
+     * not from the pool are ignored)
+     * @param buffer buffer
+     */
+    public static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > MAX_SIZE || capacity < MIN_SIZE || Integer.bitCount(capacity) != 1
+                || buffer.hasArray() == false) {
+            return;
+        }
+        int index = getIndex(capacity);
+        if (COUNT[index].incrementAndGet() > MAX_POOLED) {
+            COUNT[index].decrementAndGet();
+            return;
+        }
+        POOL.get(index).add(buffer);
+    }
+
+    /**
+     * Gets the size class of a buffer size
+     * @param size bytes (up to MAX_SIZE)
+     * @return index (0 = MIN_SIZE)
+     */
+    private static int getIndex(int size) {
+        int index = 0;
+        while ((MIN_SIZE << index) < size) {
+            index++;
+        }
+        return index;
+    }
+}
@@ -5,8 +5,13 @@ package bungalowserver;
 
 import bungalowserver.Log.Level;
 import java.time.LocalTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -25,18 +30,19 @@ public class BungalowServer implements VirtualPanel.PanelCallback {
         (byte)0x37, (byte)0x8c, (byte)0xc5, (byte)0x3e, (byte)0xf6 };
 
     // INTERVAL MINUTES defines how often to check for rules to be run
-    // UNSECURED ZONE INTERVAL MINUTES defines how often to speak a reminder that
-    // there are unsecured zones. This MUST be a multiple of INTERVAL_MINUTES
+    // (doors and windows left open are reminded by each panel's OpenZoneMonitor)
     private static final int RULE_INTERVAL = 15;  // minutes
-    private static final int UNSECURED_ZONE_INTERVAL = 30;  // minutes
 
     private static String SETTINGS_FILE = "settings.txt";
-    private static String OBF_FILE = "obf";
+    // Password file (in the working directory)
+    static final String OBF_FILE_NAME = "obf";
+    private static String OBF_FILE = OBF_FILE_NAME;
     private static ClientListener clientListener = null;
-    private static BungalowServer mainApp = null;
-
-    final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
+    private static VirtualThreadListener virtualThreadListener = null;
 
+    // Run each client on a (virtual) thread of its own ("vt" argument)
+    private static boolean useVirtualThreads = false;
+    private static BungalowServer mainApp = null;
 
     /**
      * Main method
@@ -51,38 +57,28 @@ public class BungalowServer implements VirtualPanel.PanelCallback {
         // Get server password from file and deobfuscate to char array
         // If password file does not exist then prompt user and save to file
         // Or if user specified -pwd on the command line then update the file
+        // "vt" runs each client on a virtual thread (see VirtualThreadListener)
         boolean prompt = false;
-        if (args.length > 0) {
-            if (args[0].equalsIgnoreCase("pw")) {
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase("pw")) {
                 prompt = true;
+            } else if (arg.equalsIgnoreCase("vt")) {
+                useVirtualThreads = true;
             } else {
-            System.out.println("Invalid argument " + args[0]);
+            System.out.println("Invalid argument " + arg);
             System.exit(1);
             }
         }
 
-        char[] pw;
-        if (prompt) {
-            pw = null;
-        } else {
-            pw = Crypto.deobfuscateFromFile(OBF_FILE);
-        }
-        if (pw == null) {
-            pw = Crypto.promptForPassword();
-            Crypto.obfuscateToFile(OBF_FILE, pw);
-        }
-
-        // Prepare the crypto
-        Crypto.generateSecureKey(pw, SALT, ENCRYPTION);
-        // Done with password and salt so clear from memory
-        Arrays.fill(pw, 'x');
-        Arrays.fill(SALT, (byte)0);
+        prepareKey(OBF_FILE, prompt);
 
         // Restore settings
         Settings.setFile(SETTINGS_FILE);
         if (Settings.restore() == false) {
             return;
         }
+        Checkpoint.setDirectory(path);
+        Journal.setDirectory(path);
 
         //Speaker.speak(3,5,7);
         //Speaker.speak(28);
@@ -101,29 +97,82 @@ public class BungalowServer implements VirtualPanel.PanelCallback {
         }.start();*/
     }
 
+    /**
+     * Prepares the client encryption key from the password file, prompts
+     * for the password and saves it if there is no file (also used by
+     * LoadTest, which needs the same key)
+     * @param obfFile password file
+     * @param prompt true to prompt for the password and update the file
+     */
+    static void prepareKey(String obfFile, boolean prompt) {
+        char[] pw;
+        if (prompt) {
+            pw = null;
+        } else {
+            pw = Crypto.deobfuscateFromFile(obfFile);
+        }
+        if (pw == null) {
+            pw = Crypto.promptForPassword();
+            Crypto.obfuscateToFile(obfFile, pw);
+        }
+
+        // Prepare the crypto
+        Crypto.generateSecureKey(pw, SALT, ENCRYPTION);
+        // Done with password and salt so clear from memory
+        Arrays.fill(pw, 'x');
+        Arrays.fill(SALT, (byte)0);
+    }
+
     /**
      * Called from main to start the server functions
      */
     public void begin() {
 
-        VirtualPanel.getInstance().addListener(this);
-        if (VirtualPanel.getInstance().start() == false) {
-            return;
+        // Build all virtual panels at the same time (each waits on its own
+        // serial port, on a thread of its own so the workers stay free)
+        List<Future<Boolean>> started = new ArrayList<>();
+        for (PanelContext panel : PanelContext.getAll()) {
+            panel.panel.addListener(this);
+            FutureTask<Boolean> start = new FutureTask<>(panel.panel::start);
+            new Thread(start, panel.name + " start").start();
+            started.add(start);
+        }
+        for (Future<Boolean> start : started) {
+            try {
+                if (start.get() == false) {
+                    return;
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                Log.print(Level.ERROR, "Error starting panel! " + ex.getMessage());
+                return;
+            }
         }
 
         //Log.setDebugMode(true);  // debug from this point on
 
         // Enable event logging (to send to client) only after virtual panel is built and ready
-        EventLog.enableEventLogging(true);
-        EventLog.logEvent(Const.EVENT_APPLICATION_STARTED);
+        for (PanelContext panel : PanelContext.getAll()) {
+            panel.eventLog.enableEventLogging(true);
+            panel.eventLog.logEvent(Const.EVENT_APPLICATION_STARTED);
+        }
 
         // Get pw from file, if doesn't exist then prompt user
 
         // Start the network server
-        clientListener = new ClientListener(PORT);
-        clientListener.start();
+        if (useVirtualThreads) {
+            virtualThreadListener = new VirtualThreadListener(PORT);
+            virtualThreadListener.start();
+        } else {
+            clientListener = new ClientListener(PORT);
+            clientListener.start();
+        }
+
+        runAtInterval(RULE_INTERVAL);
 
-        runAtInterval(RULE_INTERVAL, UNSECURED_ZONE_INTERVAL);
+        // Periodically compare the virtual panels to the panels in idle time
+        for (PanelContext panel : PanelContext.getAll()) {
+            panel.reconciler.start();
+        }
 
         //Speaker.speak(10);
 
@@ -136,11 +185,10 @@ public class BungalowServer implements VirtualPanel.PanelCallback {
     }
 
     /**
-     * Run at regular intervals to check for rules to run and unsecured zones
+     * Run at regular intervals to check for rules to run
      * @param ruleMinutes
-     * @param zoneMinutes
      */
-    private static void runAtInterval(int ruleMinutes, int zoneMinutes) {
+    private static void runAtInterval(int ruleMinutes) {
         //final ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
         final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
 
@@ -161,77 +209,65 @@ public class BungalowServer implements VirtualPanel.PanelCallback {
                 throw new RuntimeException("Exception in thread.sleep!", ex);
             }
 
-            // Run the unsecured zone reminder if in that interval
-            // Check for time-triggered events every 15 minutes and unsecured zone
-            // reminder every hour
-            if (LocalTime.now().getMinute() % zoneMinutes == 0) {
-                //int[] say = Zones.getInstance().getUnsecuredZoneSpeak();
-                int[] say = Zones.getUnsecuredZoneSpeak();
-                if (say.length > 0) {
-                    Speaker.speak(say);
-                }
+            // Check for time-triggered events every 15 minutes
+            for (PanelContext panel : PanelContext.getAll()) {
+                panel.rules.handleRuleTriggers();
             }
 
-            Rules.handleRuleTriggers();
-
         }, 1, ruleMinutes - 1, TimeUnit.MINUTES);  // initial delay, dealy from end of one to next call, unit
     }
 
     /**
      * This method is called from the VirtualPanel when an event is being
-     * reported. Note: this runs on a different thread than the main
-     * application.
+     * reported. Note: this runs on the panel core thread, so it must not
+     * block (hand slow work to another thread).
+     * @param panel panel the event occurred in
      * @param event Event event id
+     * @param partition partition number (1-8) the event occurred in
      * @param zone the Zone item associated with this event, or null if no zone
      * associated
+     * @param trace latency trace of the frame that caused the event
      */
     @Override
-    public void panelMessageCallback(int event, Zone zone) {
+    public void panelMessageCallback(PanelContext panel, int event, int partition, Zone zone,
+            Trace trace) {
+        trace.record(Trace.Stage.CALLBACK);
+
+        // Alarm speech goes ahead of anything queued, zone chatter is dropped
+        // when the speaker is backlogged
+        int priority = EventPriority.of(event);
 
         // Note on sending burglary/fire emails:
-        // I should handle the burglary/fire emails after this callback because the
-        // zone status message is received immediately after this and that message
-        // updates the zone status.  So sending the email now will show the current
-        // zone fault states, however it will not show the 'previous alarm' states,
-        // instead, it will show the zone that triggered the alarm prior to this alarm.
-        // So handle this by running the email send after a short delay
+        // The zone status messages that set alarm memory on the zones that
+        // triggered the alarm are received just after this, so the alarm
+        // notifier sends the email once they arrived (or after a short timeout)
         switch (event) {
 
             case Const.EVENT_FIRE_ALARM:
-                Log.print(Level.INFO, "Event: Fire");
-                Speaker.speak(7, 9);
-                exec.schedule(() -> {
-                    if (Emailer.sendEmail("FIRE") == false) {
-                        System.out.println("Error sending email, see the log file for more info.");
-                        Speaker.speak(27, 26);
-                    }
-                }, 4, TimeUnit.SECONDS);
+                Log.print(Level.INFO, "Event: Fire, " + panel.name + " partition " + partition);
+                Speaker.speak(priority, trace, 7, 9);
+                panel.alarms.alarm("FIRE", partition, trace);
                 break;
 
             case Const.EVENT_BURGLARY_ALARM:
-                Log.print(Level.INFO, "Event: Burglary");
-                Speaker.speak(7, 8);
-                exec.schedule(() -> {
-                    if (Emailer.sendEmail("BURGLARY") == false) {
-                        System.out.println("Error sending email, see the log file for more info.");
-                        Speaker.speak(27, 26);
-                    }
-                }, 4, TimeUnit.SECONDS);
+                Log.print(Level.INFO, "Event: Burglary, " + panel.name + " partition " + partition);
+                Speaker.speak(priority, trace, 7, 8);
+                panel.alarms.alarm("BURGLARY", partition, trace);
                 break;
 
             case Const.EVENT_GLASS_BREAK:
                 Log.print(Level.INFO, "Event: Glass break, zone " + zone.number + ", " + zone.name);
-                Speaker.speak(27, zone.speakFault);
+                Speaker.speak(priority, trace, 27, zone.speakFault);
                 break;
 
             case Const.EVENT_DOORBELL:
                 Log.print(Level.INFO, "Event: Doorbell");
-                Speaker.speak(79);
+                Speaker.speak(priority, trace, 79);
                 break;
 
             case Const.EVENT_FREEZE:
                 Log.print(Level.INFO, "Event: Freeze");
-                Speaker.speak(7, 77);
+                Speaker.speak(priority, trace, 7, 77);
                 break;
 
             case Const.EVENT_ZONE_READY:
@@ -245,39 +281,45 @@ public class BungalowServer implements VirtualPanel.PanelCallback {
                 //Speaker.speak(zone.speakFault);
                 break;
 
+            case Const.EVENT_ZONE_OPEN_TOO_LONG:
+                Log.print(Level.INFO, "Event: Zone open for " + panel.openZones.getOpenMinutes(zone)
+                        + " minutes, zone " + zone.number + ", " + zone.name);
+                Speaker.speak(priority, trace, zone.speakFault);
+                break;
+
             case Const.EVENT_ZONE_ERROR: // ZoneError = tamper/trouble/lost/lowbatt
                 Log.print(Level.INFO, "Event: Zone error, zone " + zone.number + ", " + zone.name);
-                Speaker.speak(zone.speakName, 23);
+                Speaker.speak(priority, trace, zone.speakName, 23);
                 break;
 
             case Const.EVENT_ZONE_ERROR_CLEARED:
                 Log.print(Level.INFO, "Event: Zone error cleared, zone " + zone.number + ", " + zone.name);
-                Speaker.speak(zone.speakName, 24);
+                Speaker.speak(priority, trace, zone.speakName, 24);
                 break;
 
             case Const.EVENT_ZONE_FORCE_ARMED:
                 Log.print(Level.INFO, "Event: Zone force-armed, zone " + zone.number + ", " + zone.name);
-                Speaker.speak(zone.speakName, 25);
+                Speaker.speak(priority, trace, zone.speakName, 25);
                 break;
 
             case Const.EVENT_ARMED: // Armed in any mode (stay or away), if "away" then this is all that occurs
-                Log.print(Level.INFO, "Event: Armed");
-                Speaker.speak(21);
+                Log.print(Level.INFO, "Event: Armed, partition " + partition);
+                Speaker.speak(priority, trace, 21);
                 break;
 
             case Const.EVENT_ARMED_STAY: // Armed in stay mode (when armed stay there are 2 msgs: armed then armed-stay)
-                Log.print(Level.INFO, "Event: Armed in stay mode");
+                Log.print(Level.INFO, "Event: Armed in stay mode, partition " + partition);
                 //Speaker.speak(21);
                 break;
 
             case Const.EVENT_DISARMED:
-                Log.print(Level.INFO, "Event: Disarmed");
-                Speaker.speak(22);
+                Log.print(Level.INFO, "Event: Disarmed, partition " + partition);
+                Speaker.speak(priority, trace, 22);
                 break;
 
             case Const.EVENT_TIMING_ENTRY:
                 Log.print(Level.INFO, "Event: Timing entry");
-                Speaker.speak(7, 20);
+                Speaker.speak(priority, trace, 7, 20);
                 break;
 
             case Const.EVENT_SENSOR_LOST:
@@ -287,48 +329,51 @@ public class BungalowServer implements VirtualPanel.PanelCallback {
 
             case Const.EVENT_ALARM_OFF:
                 Log.print(Level.INFO, "Event: Alarm off");
-                Speaker.speak(19);
+                Speaker.speak(priority, trace, 19);
                 break;
 
             case Const.EVENT_INSTANT_MODE_ON:
                 Log.print(Level.INFO, "Event: Instant mode on");
-                Speaker.speak(17);
+                Speaker.speak(priority, trace, 17);
                 break;
 
             case Const.EVENT_INSTANT_MODE_OFF:
                 Log.print(Level.INFO, "Event: Instant mode off");
-                Speaker.speak(18);
+                Speaker.speak(priority, trace, 18);
                 break;
 
             case Const.EVENT_AC_POWER_FAIL:
                 Log.print(Level.INFO, "Event: Power fail");
-                Speaker.speak(7, 12);
+                Speaker.speak(priority, trace, 7, 12);
                 break;
 
             case Const.EVENT_AC_POWER_RESTORED:
                 Log.print(Level.INFO, "Event: Power restored");
-                Speaker.speak(13);
+                Speaker.speak(priority, trace, 13);
                 break;
 
             case Const.EVENT_SMOKE_RESET:
                 Log.print(Level.INFO, "Event: Smoke reset");
-                Speaker.speak(14);
+                Speaker.speak(priority, trace, 14);
                 break;
 
             case Const.EVENT_SYSTEM_BATTERY_LOW:
                 Log.print(Level.INFO, "Event: System battery low");
-                Speaker.speak(7, 16);
+                Speaker.speak(priority, trace, 7, 16);
                 break;
 
             case Const.EVENT_SYSTEM_BATTERY_OK:
                 Log.print(Level.INFO, "Event: System battery okay");
-                Speaker.speak(15);
+                Speaker.speak(priority, trace, 15);
                 break;
 
             default:
                 throw new RuntimeException("Unhandled event (" + event + ")!");
         }
-        Rules.handleRuleTriggers();
+
+        // Rules may send emails, keep that off the panel core thread (a storm
+        // of events is one scan)
+        panel.rules.scheduleRuleTriggers();
     }
 }
 
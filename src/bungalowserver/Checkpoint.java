@@ -0,0 +1,341 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Binary checkpoint of a virtual panel for warm restarts (one file per
+ * panel). Holds the panel fingerprint (interface configuration), the zone
+ * table (numbers, partition masks and panel names) and the last known
+ * zone, partition and system status. Written atomically (temp file then
+ * rename) shortly after any change. On startup, if the fingerprint and zone
+ * table still match, the virtual panel is restored from here instead of
+ * scanning every zone, then the Reconciler validates it against panel
+ * snapshots in the background.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x42434b50;  // "BCKP"
+    private static final int VERSION = 1;
+
+    // Changes are written this long after the first change (so bursts of
+    // changes are written once)
+    private static final int SAVE_DELAY = 2000;  // milliseconds
+
+    // Directory the checkpoint files are written to
+    private static String directory = null;
+
+    private final PanelContext context;
+    private long fingerprint = 0;
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+
+    // Enabled once the virtual panel is built or restored
+    private volatile boolean enabled = false;
+
+    /**
+     * Constructor
+     * @param context panel to checkpoint
+     */
+    public Checkpoint(PanelContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Must call this first to set the directory for the checkpoint files
+     * @param path directory path (ending with a separator)
+     */
+    public static void setDirectory(String path) {
+        directory = path;
+    }
+
+    /**
+     * Gets the checkpoint file path for this panel
+     * @return file path or null if no directory was set
+     */
+    private String getFilePath() {
+        if (directory == null) {
+            return null;
+        }
+        return directory + "checkpoint" + context.number + ".bin";
+    }
+
+    /**
+     * Computes the panel fingerprint from the interface configuration message
+     * (firmware version and enabled commands/transitions)
+     * @param interfaceConfiguration interface configuration message
+     * @return fingerprint
+     */
+    public static long fingerprint(int[] interfaceConfiguration) {
+        CRC32 crc = new CRC32();
+        for (int b : interfaceConfiguration) {
+            crc.update(b);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Enables saving (call after the virtual panel is built or restored) and
+     * saves immediately
+     * @param panelFingerprint fingerprint of the connected panel
+     */
+    public void enable(long panelFingerprint) {
+        fingerprint = panelFingerprint;
+        enabled = true;
+        changed();
+    }
+
+    /**
+     * Call when any zone, partition or system status changed, the checkpoint
+     * is saved shortly after
+     */
+    public void changed() {
+        if (enabled && directory != null && savePending.compareAndSet(false, true)) {
+            // Encoded on the panel core thread (which owns the state), written
+            // on a worker thread
+            PanelContext.TIMER.schedule(() -> context.core.execute(() -> {
+                savePending.set(false);
+                byte[] data = encode();
+                PanelContext.WORKERS.execute(() -> save(data));
+            }), SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Encodes the checkpoint (call on the panel core thread)
+     * @return checkpoint data
+     */
+    private byte[] encode() {
+        VirtualPanel panel = context.panel;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(fingerprint);
+
+            // Zone table and status
+            int count = 0;
+            for (int z = 1; z <= Const.MAX_ZONES; z++) {
+                if (context.zones.zoneExists(z)) {
+                    count++;
+                }
+            }
+            out.writeShort(count);
+            for (int z = 1; z <= Const.MAX_ZONES; z++) {
+                Zone zone = context.zones.getZone(z);
+                if (zone == null) {
+                    continue;
+                }
+                out.writeByte(z - 1);
+                out.writeByte(zone.partitionMask);
+                out.writeByte(getZoneBits(zone));
+                out.writeUTF(zone.panelName);
+            }
+
+            // Partition status
+            for (int p = 1; p <= Const.MAX_PARTITIONS; p++) {
+                out.writeShort(getPartitionBits(panel.getPartition(p)));
+            }
+
+            // System status
+            out.writeByte(getSystemBits(panel));
+        } catch (IOException ex) {
+            throw new RuntimeException("Error encoding checkpoint!", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the checkpoint to a temp file then renames it over the
+     * checkpoint so a crash never leaves a partial file
+     * @param data checkpoint data
+     * @return true on success else false (see log for more info)
+     */
+    private boolean save(byte[] data) {
+        String filePath = getFilePath();
+        File tmp = new File(filePath + ".tmp");
+
+        try (OutputStream out = new FileOutputStream(tmp, false)) {
+            out.write(data);
+        } catch (IOException ex) {
+            Log.print(Level.ERROR, "Error saving checkpoint! " + ex.getMessage());
+            return false;
+        }
+
+        Path source = tmp.toPath();
+        Path target = new File(filePath).toPath();
+        try {
+            try {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            Log.print(Level.ERROR, "Error saving checkpoint! " + ex.getMessage());
+            return false;
+        }
+        Log.print(Level.INFO, "Checkpoint saved", false);
+        return true;
+    }
+
+    /**
+     * Restores the virtual panel from the checkpoint if it was written for
+     * the same panel and holds exactly the zones defined in the settings
+     * file. Nothing is changed unless the whole checkpoint is usable.
+     * @param panelFingerprint fingerprint of the connected panel
+     * @return true if restored, false if the panel must be scanned
+     */
+    public boolean restore(long panelFingerprint) {
+        String filePath = getFilePath();
+        if (filePath == null || new File(filePath).exists() == false) {
+            return false;
+        }
+
+        int[] zoneNumbers, masks, bits;
+        String[] names;
+        int[] partitionBits = new int[Const.MAX_PARTITIONS];
+        int systemBits;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(filePath)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                Log.print(Level.WARN, "Ignoring checkpoint with unknown format");
+                return false;
+            }
+            if (in.readLong() != panelFingerprint) {
+                Log.print(Level.INFO, "Panel configuration changed, ignoring checkpoint");
+                return false;
+            }
+
+            int count = in.readUnsignedShort();
+            if (count > Const.MAX_ZONES) {
+                return false;
+            }
+            zoneNumbers = new int[count];
+            masks = new int[count];
+            bits = new int[count];
+            names = new String[count];
+            for (int i = 0; i < count; i++) {
+                zoneNumbers[i] = in.readUnsignedByte() + 1;
+                masks[i] = in.readUnsignedByte();
+                bits[i] = in.readUnsignedByte();
+                names[i] = in.readUTF();
+            }
+            for (int p = 0; p < Const.MAX_PARTITIONS; p++) {
+                partitionBits[p] = in.readUnsignedShort();
+            }
+            systemBits = in.readUnsignedByte();
+        } catch (IOException ex) {
+            Log.print(Level.WARN, "Error reading checkpoint! " + ex.getMessage());
+            return false;
+        }
+
+        // Zones in the checkpoint must be exactly the zones in the settings file
+        int settingsCount = 0;
+        for (int z = 1; z <= Const.MAX_ZONES; z++) {
+            if (context.zones.zoneExists(z)) {
+                settingsCount++;
+            }
+        }
+        if (settingsCount != zoneNumbers.length) {
+            Log.print(Level.INFO, "Zones changed in settings, ignoring checkpoint");
+            return false;
+        }
+        for (int zone : zoneNumbers) {
+            if (context.zones.zoneExists(zone) == false) {
+                Log.print(Level.INFO, "Zones changed in settings, ignoring checkpoint");
+                return false;
+            }
+        }
+
+        // Checkpoint is usable, restore everything
+        for (int i = 0; i < zoneNumbers.length; i++) {
+            Zone zone = context.zones.getZone(zoneNumbers[i]);
+            context.zones.setZonePanelName(zone.number, names[i]);
+            context.zones.setPartitionMask(zone.number, masks[i]);
+            setZoneBits(zone, bits[i]);
+            context.zones.statusChanged(zone);
+        }
+
+        VirtualPanel panel = context.panel;
+        for (int p = 1; p <= Const.MAX_PARTITIONS; p++) {
+            setPartitionBits(panel.getPartition(p), partitionBits[p - 1]);
+        }
+        panel.isSystemLowBattery = (systemBits & 0x01) != 0;
+        panel.isSystemAcPowerOn = (systemBits & 0x02) != 0;
+        panel.isSystemSmokePowerReset = (systemBits & 0x04) != 0;
+
+        Log.print(Level.INFO, "Restored " + zoneNumbers.length + " zones from checkpoint");
+        return true;
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="Bit packing (also used by the Journal)">
+    static int getZoneBits(Zone zone) {
+        return (zone.isFaulted ? 0x01 : 0)
+                | (zone.isBypassed ? 0x02 : 0)
+                | (zone.isForceArmed ? 0x04 : 0)
+                | (zone.isAlarmMemory ? 0x08 : 0)
+                | (zone.isError ? 0x10 : 0);
+    }
+
+    private static void setZoneBits(Zone zone, int bits) {
+        zone.isFaulted = (bits & 0x01) != 0;
+        zone.isBypassed = (bits & 0x02) != 0;
+        zone.isForceArmed = (bits & 0x04) != 0;
+        zone.isAlarmMemory = (bits & 0x08) != 0;
+        zone.isError = (bits & 0x10) != 0;
+    }
+
+    static int getPartitionBits(Partition part) {
+        return (part.isValid ? 0x0001 : 0)
+                | (part.isArmed ? 0x0002 : 0)
+                | (part.isArmedStay ? 0x0004 : 0)
+                | (part.isArmedInstant ? 0x0008 : 0)
+                | (part.isSirenOn ? 0x0010 : 0)
+                | (part.isSteadySirenOn ? 0x0020 : 0)
+                | (part.isFireAlarmOn ? 0x0040 : 0)
+                | (part.isBurglaryAlarmOn ? 0x0080 : 0)
+                | (part.isReadyToArm ? 0x0100 : 0)
+                | (part.isReadyToForceArm ? 0x0200 : 0)
+                | (part.isTimingEntry ? 0x0400 : 0)
+                | (part.isSensorError ? 0x0800 : 0);
+    }
+
+    static int getSystemBits(VirtualPanel panel) {
+        return (panel.isSystemLowBattery ? 0x01 : 0)
+                | (panel.isSystemAcPowerOn ? 0x02 : 0)
+                | (panel.isSystemSmokePowerReset ? 0x04 : 0);
+    }
+
+    private static void setPartitionBits(Partition part, int bits) {
+        part.isValid = (bits & 0x0001) != 0;
+        part.isArmed = (bits & 0x0002) != 0;
+        part.isArmedStay = (bits & 0x0004) != 0;
+        part.isArmedInstant = (bits & 0x0008) != 0;
+        part.isSirenOn = (bits & 0x0010) != 0;
+        part.isSteadySirenOn = (bits & 0x0020) != 0;
+        part.isFireAlarmOn = (bits & 0x0040) != 0;
+        part.isBurglaryAlarmOn = (bits & 0x0080) != 0;
+        part.isReadyToArm = (bits & 0x0100) != 0;
+        part.isReadyToForceArm = (bits & 0x0200) != 0;
+        part.isTimingEntry = (bits & 0x0400) != 0;
+        part.isSensorError = (bits & 0x0800) != 0;
+    }
+    //</editor-fold>
+}
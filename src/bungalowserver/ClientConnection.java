@@ -0,0 +1,57 @@
+package bungalowserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport of one client connection, as seen by its ClientHandler. A
+ * connection starts with the text protocol (one base64 encrypted message
+ * per line) and may switch to the binary protocol during authentication
+ * (length-prefixed encrypted frames, see Crypto.encryptFrame).
+ */
+public interface ClientConnection {
+
+    /**
+     * Queues a line (already encrypted) to send to the client, does not
+     * block on the network
+     * @param line line without the line terminator
+     * @return true if queued, false if the connection is closed
+     */
+    boolean send(String line);
+
+    /**
+     * Queues a binary protocol frame to send to the client, does not block
+     * on the network
+     * @param frame frame from Crypto.encryptFrame (returned to the
+     * BufferPool once written)
+     * @return true if queued, false if the connection is closed
+     */
+    boolean sendFrame(ByteBuffer frame);
+
+    /**
+     * Queues bytes already encrypted and framed for this connection's
+     * protocol (see SharedMessage), does not block on the network. The
+     * buffer is shared with other connections: it is read through a
+     * duplicate and never returned to the BufferPool.
+     * @param data shared read-only buffer
+     * @return true if queued, false if the connection is closed
+     */
+    boolean sendShared(ByteBuffer data);
+
+    /**
+     * Switches incoming data to the binary protocol: from now on frames are
+     * read, decrypted and handed to ClientHandler.handleMessage. Call before
+     * granting the binary protocol to the client.
+     */
+    void setBinary();
+
+    /**
+     * Closes the connection (does nothing if already closed)
+     */
+    void close();
+
+    /**
+     * Gets the client IP address
+     * @return IP address as text
+     */
+    String getClientIp();
+}
@@ -1,95 +1,140 @@
 package bungalowserver;
 
 import bungalowserver.Log.Level;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
- * Thread to handle a single client connection
+ * Handles the requests of a single client connection: authentication, then
+ * one encrypted request per line. The transport (see ClientConnection) calls
+ * authenticate and handleLine for each line received, one at a time and in
+ * order, on a worker thread.
+ * <p>
+ * A request may be tagged with an ID: "#ii:" + request, ii = any two chars
+ * chosen by the client. Every response to a tagged request carries the same
+ * prefix, so the client can send more requests without waiting. Quick
+ * requests are still answered in order, slow ones (email, speech, settings
+ * changes, history) run on the shared REQUESTS threads and may be answered
+ * out of order, always on the panel selected when they were received. At
+ * most MAX_IN_FLIGHT tagged requests per connection are in flight (until
+ * their last response was sent), further ones are answered with #ii:BSY,
+ * as are slow ones when all REQUESTS threads are busy and its queue is
+ * full. Untagged slow requests run on the REQUESTS threads too (answered
+ * with BSY when they are full), so they never hold up the listener threads
+ * shared by all connections.
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Subscriptions.Subscriber {
 
-    /**
-     * Authentication timeout: After a client connects, it must send an
-     * authentication request within this time or server will disconnect.
-     * Timeout is in milliseconds.
-     */
-    private static final int AUTH_TIMEOUT_MS = 1500;
-
-    /**
-     * Idle timeout: If a client does not send any requests for this time
-     * the server will disconnect.
-     * Timeout is in seconds.
-     */
-    private static final int IDLE_TIMEOUT = 90;  // 90 seconds
+    // Most tagged requests in flight per connection
+    private static final int MAX_IN_FLIGHT = 8;
 
-    private Socket clientSocket = null;
-    private BufferedReader reader = null;
-    private PrintWriter writer = null;
+    // Threads and queue for the slow requests of all clients
+    private static final int REQUEST_THREADS = 4;
+    private static final int REQUEST_QUEUE = 32;
+    private static final ThreadPoolExecutor REQUESTS = new ThreadPoolExecutor(REQUEST_THREADS,
+            REQUEST_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(REQUEST_QUEUE));
 
-    /**
-     * Constructor
-     * @param clientSocket client socket
-     */
-    public ClientHandler(Socket clientSocket) {
-        this.clientSocket = clientSocket;
+    static {
+        REQUESTS.allowCoreThreadTimeOut(true);
     }
 
-    /**
-     * Sets the client socket timeout
-     * @param milliseconds time in milliseconds
-     * @return true if success
-     */
-    private boolean setSocketTimeout(int milliseconds) {
-        try {
-            clientSocket.setSoTimeout(milliseconds);
-        } catch (SocketException ex) {
-            Log.print(Level.WARN, "Error setting socket timeout! " + ex.getMessage());
-            return false;
-        }
-        return true;
-    }
+    private final ClientConnection connection;
 
-    private String getClientIp() {
-        return clientSocket.getInetAddress().toString().replace('/', ' ').trim();
-        //clientSocket.getRemoteSocketAddress()
-    }
+    // Tagged requests in flight
+    private final AtomicInteger inFlight = new AtomicInteger();
 
-    private boolean authenticateClient() {
-        Log.print(Level.INFO, "Connection from " + getClientIp() + ", authenticating...");
+    // Request being handled on the current thread (its tag prefixes the responses)
+    private final Request untagged = new Request("", null);
+    private final ThreadLocal<Request> current = ThreadLocal.withInitial(() -> untagged);
 
-        // Give the client AUTH_TIMEOUT_MS milliseconds to provide the authentication request
-        if (!setSocketTimeout(AUTH_TIMEOUT_MS)) {
-            return false;
+    // Panel this client is working with (selected with PNL=)
+    private volatile PanelContext context = PanelContext.getDefault();
+
+    // Client asked for provisional responses to arm/disarm commands (PND=1)
+    private volatile boolean isPendingEnabled = false;
+
+    // Panel whose updates are pushed to this client (SUB), null if none
+    private volatile PanelContext subscribed = null;
+
+    // Client asked for the binary protocol in its authentication request
+    private volatile boolean isBinary = false;
+
+    // Client asked for compressed large responses (CMP=1)
+    private volatile boolean isCompressEnabled = false;
+
+    /**
+     * A client request: its tag ("#ii:" or empty), the panel selected when
+     * it was received (null for quick untagged requests) and, if tagged, the
+     * work still holding it in flight (its handling and each pending response)
+     */
+    private class Request {
+        final String tag;
+        final PanelContext context;
+        private final AtomicInteger holds;
+
+        Request(String tag, PanelContext context) {
+            this.tag = tag;
+            this.context = context;
+            this.holds = tag.isEmpty() ? null : new AtomicInteger(1);
         }
 
-        String message;
-        try {
-            // readline() waits for data from the client (blocking).
-            // Blocks for soTimeout milliseconds (or indefinitely if soTimeout=0)
-            // Returns null if the client closed its output stream
-            // Throws IOExeption if this server reader is closed
-            // Throws SocketTimeoutException if timeout expired with no data.
-            message = reader.readLine();
-        } catch (SocketTimeoutException ex) {
-            Log.print(Level.WARN, "Client did not send authentication request within the allowed time! " + ex.getMessage());
-            return false;
-        } catch (IOException ex) {
-            Log.print(Level.WARN, "Error receiving data from client, reader closed! " + ex.getMessage());
-            return false;
+        /**
+         * Keeps the request in flight until a matching run completes
+         * @return this request
+         */
+        Request hold() {
+            if (holds != null) {
+                holds.incrementAndGet();
+            }
+            return this;
         }
 
-        if (message == null) {
-            Log.print(Level.WARN, "Error receiving data from client, client closed the connection!");
-            return false;
+        /**
+         * Runs work of this request on the current thread (responses get its
+         * tag), then releases one hold
+         * @param task work
+         * @return task result
+         */
+        boolean run(Supplier<Boolean> task) {
+            Request previous = current.get();
+            current.set(this);
+            try {
+                return task.get();
+            } finally {
+                current.set(previous);
+                if (holds != null && holds.decrementAndGet() == 0) {
+                    inFlight.decrementAndGet();
+                }
+            }
         }
+    }
+
+    /**
+     * Constructor
+     * @param connection client connection
+     */
+    public ClientHandler(ClientConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Handles the first line from the client, which must be the
+     * authentication request: "AuthRequest" for the text protocol or
+     * "AuthRequest:B" for the binary protocol, granted with "AuthGrant" or
+     * "AuthGrant:B" (always a text line). After AuthGrant:B both sides send
+     * binary frames only.
+     * @param message line received (encrypted)
+     * @return true if authenticated, false to close the connection
+     */
+    public boolean authenticate(String message) {
 
         // Decrypt message (returns null if client sends invalid data)
         message = Crypto.decrypt(message);
@@ -98,106 +143,117 @@ public class ClientHandler implements Runnable {
             return false;
         }
 
-        if (message.equals("AuthRequest") == false) {
+        if (message.equals("AuthRequest:B")) {
+            isBinary = true;
+            connection.setBinary();
+        } else if (message.equals("AuthRequest") == false) {
             Log.print(Level.WARN, "Client failed authentication! Client sent: " + message);
             return false;
         }
 
-        writer.println(Crypto.encrypt("AuthGrant"));
-
-        // Set timeout to disconnect the client if it sends
-        // no requests for IDLE_TIMEOUT milliseconds
-        if (!setSocketTimeout(IDLE_TIMEOUT * 1000)) {
+        if (connection.send(Crypto.encrypt(isBinary ? "AuthGrant:B" : "AuthGrant")) == false) {
             return false;
         }
 
-        Log.print(Level.INFO, "Client " + getClientIp() + " is authenticated.");
+        Log.print(Level.INFO, "Client " + connection.getClientIp() + " is authenticated"
+                + (isBinary ? " (binary protocol)." : "."));
 
         //Speaker.getInstance().speak(31);  // speak client authenticated
         return true;
     }
 
     /**
-     * Close the socket and streams
+     * Close the connection
      */
     private void close() {
         Log.print(Level.INFO, "Closing client connection...");
         //Speaker.getInstance().speak(30);
-        try {
-            reader.close();
-            writer.close();
-            clientSocket.close();
-        } catch (IOException ex) {
-            Log.print(Level.WARN, "Exception on socket close: " + ex.toString(), false);
-        }
+        connection.close();
     }
 
     /**
-     * Client handler, runs on separate thread
+     * Handles a request line from an authenticated client
+     * @param encryptedData line received (encrypted)
+     * @return true to keep the connection, false to close it
      */
-    @Override
-    public void run() {
-        String encryptedData, decryptedData;
+    public boolean handleLine(String encryptedData) {
 
-        // New client connected, create the reader/writer streams
-        try {
-            reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
-            writer = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8), true);
-        } catch (IOException ex) {
-            Log.print(Level.ERROR, "Failed socket stream creation! " + ex.getMessage());
-            close();
-            return;
+        // Decrypt message (returns null if client sends invalid data)
+        String decryptedData = Crypto.decrypt(encryptedData);
+        if (decryptedData == null) {
+            // Invalid data received from client
+            // Client is not sending Base64 data or is sending data that is too short to contain IV, etc
+            // So discard the data and disconnect the misbehaving client
+            Log.print(Level.WARN, "Received bad message from client, disconnecting...");
+            return false;
         }
+        return handleMessage(decryptedData);
+    }
 
-        // Authenticate client, if fails then this thread will end
-        if (authenticateClient() == false) {
-            close();
-            return;
+    /**
+     * Handles a decrypted request from an authenticated client (binary
+     * protocol frames are decrypted by the transport)
+     * @param decryptedData request
+     * @return true to keep the connection, false to close it
+     */
+    public boolean handleMessage(String decryptedData) {
+        Log.print(Level.INFO, "Received message from client: " + decryptedData);
+
+        Request request = untagged;
+        String packet = decryptedData;
+        if (decryptedData.length() >= 4 && decryptedData.charAt(0) == '#' && decryptedData.charAt(3) == ':') {
+            String tag = decryptedData.substring(0, 4);
+            if (inFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+                inFlight.decrementAndGet();
+                return netSend(tag + "BSY");
+            }
+            request = new Request(tag, context);
+            packet = decryptedData.substring(4);
         }
 
-        // Keep handling client requests until client disconnects or idle timeout
-        while (true) {
+        if (isSlow(packet)) {
+            Request slow = (request == untagged) ? new Request("", context) : request;
+            String slowPacket = packet;
             try {
-                // readline() waits for data from the client (blocking).
-                // Blocks for soTimeout milliseconds (or indefinitely if soTimeout=0)
-                // Returns null if the client closed its output stream
-                // Throws IOExeption if this server reader is closed
-                // Throws SocketTimeoutException if timeout expired with no data.
-                encryptedData = reader.readLine();
-            } catch (java.net.SocketTimeoutException ex) {
-                // If client has been idle for IDLE_TIMEOUT then disconnect
-                Log.print(Level.INFO, "Disconnecting idle client...");
-                break;
-            } catch (IOException ex) {
-                Log.print(Level.WARN, "Error receiving message from client, disconnecting... " + ex.getMessage());
-                break;
-            }
-
-            if (encryptedData == null) {
-                Log.print(Level.WARN, "Client closed the connection, disconnecting...");
-                break;
-            }
-
-            // Decrypt message (returns null if client sends invalid data)
-            decryptedData = Crypto.decrypt(encryptedData);
-            if (decryptedData == null) {
-                // Invalid data received from client
-                // Client is not sending Base64 data or is sending data that is too short to contain IV, etc
-                // So discard the data and disconnect the misbehaving client
-                Log.print(Level.WARN, "Received bad message from client, disconnecting...");
-                return;
+                REQUESTS.execute(() -> {
+                    boolean sent;
+                    try {
+                        sent = slow.run(() -> processReceivedData(slowPacket));
+                    } catch (RuntimeException ex) {
+                        Log.print(Level.ERROR, "Error handling client request! " + ex.getMessage());
+                        sent = false;
+                    }
+                    if (sent == false) {
+                        Log.print(Level.WARN, "Failed sending message to client, disconnecting...");
+                        close();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                return slow.run(() -> netSend("BSY"));
             }
+            return true;
+        }
 
-            Log.print(Level.INFO, "Received message from client: " + decryptedData);
-
-            if (processReceivedData(decryptedData) == false) {
-                Log.print(Level.WARN, "Failed sending message to client, disconnecting...");
-                break;
-            }
+        String quick = packet;
+        if (request.run(() -> processReceivedData(quick)) == false) {
+            Log.print(Level.WARN, "Failed sending message to client, disconnecting...");
+            return false;
         }
+        return true;
+    }
 
-        close();
-        // This thread will now end
+    /**
+     * Checks if a request may take long (runs on a REQUESTS thread).
+     * Commands that wait on the panel are not slow, their responses are
+     * sent on completion anyway.
+     * @param packet request without tag
+     * @return true if slow
+     */
+    private static boolean isSlow(String packet) {
+        return packet.equals("EMT") || packet.equals("RBT")
+                || packet.startsWith("EMS=") || packet.startsWith("SAY=")
+                || packet.startsWith("ZTC=") || packet.startsWith("RUA=")
+                || packet.startsWith("RUR=") || packet.startsWith("HIS=");
     }
 
     /**
@@ -210,34 +266,27 @@ public class ClientHandler implements Runnable {
      */
     private boolean processReceivedData(String packet) {
 
+        // Panel of this request (a PNL handled meanwhile does not move a
+        // queued slow request to another panel)
+        PanelContext context = getContext();
+
         //<editor-fold defaultstate="collapsed" desc="Arm stay (STY)">
         // Client sent "STY"
         // Arms in STAY mode, if already armed in STAY then toggles between DELAYED and INSTANT modes
         if (packet.equals("STY")) {
-            if (VirtualPanel.getInstance().armStay(null, true)) {
-                return sendQueryResponse(false);
-            }
-            return netSend("STY=ER");
+            return respondPending(Const.PENDING_ARM_STAY, context.panel.armStay(null), "STY=ER");
         } //</editor-fold>
 
         //<editor-fold defaultstate="collapsed" desc="Arm away (AWY)">
         // Client sent "AWY", Arms in AWAY mode
         if (packet.equals("AWY")) {
-            if (VirtualPanel.getInstance().armAway(null, true)) {
-                return sendQueryResponse(false);
-            }
-            return netSend("AWY=ER");
+            return respondPending(Const.PENDING_ARM_AWAY, context.panel.armAway(null), "AWY=ER");
         } //</editor-fold>
 
         //<editor-fold defaultstate="collapsed" desc="Disarm (DIS=)">
         // Format = "DIS=n" where n = 4 or 6 digit disarm code
         if (packet.startsWith("DIS=")) {
-            if (packet.length() > 3) {
-                if (VirtualPanel.getInstance().disarm(packet.substring(4), true)) {
-                    return sendQueryResponse(false);
-                }
-            }
-            return netSend("DIS=ER");
+            return respondPending(Const.PENDING_DISARM, context.panel.disarm(packet.substring(4)), "DIS=ER");
         } //</editor-fold>
 
         //<editor-fold defaultstate="collapsed" desc="Email settings change (EMS=)">
@@ -260,10 +309,7 @@ public class ClientHandler implements Runnable {
         //<editor-fold defaultstate="collapsed" desc="Activate alarm (ALM)">
         else if (packet.equals("ALM")) {
             Speaker.speak(7, 32);  // "Warning, the alarm was activated remotely."
-            if (VirtualPanel.getInstance().panicPolice(true)) {
-                return netSend("ALM=OK");
-            }
-            return netSend("ALM=ER");
+            return respondOnCompletion(context.panel.panicPolice(), "ALM=OK", "ALM=ER");
         } //</editor-fold>
 
         //<editor-fold defaultstate="collapsed" desc="Query (QRY)">
@@ -271,6 +317,14 @@ public class ClientHandler implements Runnable {
             return sendQueryResponse(false);
         } //</editor-fold>
 
+        //<editor-fold defaultstate="collapsed" desc="Delta query (QRY=)">
+        // "QRY=tttt" where tttt = token of the last state received (from a
+        // QRD= or QRF= response, any other value gets the whole state), see
+        // QueryResponses.getDelta
+        if (packet.startsWith("QRY=")) {
+            return netSend(context.queries.getDelta(packet.substring(4), isPendingEnabled));
+        } //</editor-fold>
+
         //<editor-fold defaultstate="collapsed" desc="Query All (QRA)">
         if (packet.equals("QRA")) {
             return sendQueryResponse(true);
@@ -279,7 +333,8 @@ public class ClientHandler implements Runnable {
         //<editor-fold defaultstate="collapsed" desc="Zone type change (ZTC=)">
         if (packet.startsWith("ZTC=")) {
             //if (Zones.getInstance().changeZoneType(packet)) {
-            if (Zones.changeZoneType(packet)) {
+            PanelContext panel = context;
+            if (panel.core.call(() -> panel.zones.changeZoneType(packet))) {
                 return sendQueryResponse(false);
             }
             return netSend("ZTC=ER");
@@ -287,8 +342,8 @@ public class ClientHandler implements Runnable {
 
         //<editor-fold defaultstate="collapsed" desc="Email test (EMT)">
         if (packet.equals("EMT")) {
-            if ((Emailer.sendEmail("BURGLARY") == false) ||
-                    (Emailer.sendEmail("FIRE") == false)) {
+            if ((Emailer.sendEmail("BURGLARY", context) == false) ||
+                    (Emailer.sendEmail("FIRE", context) == false)) {
                 System.out.println("Error sending email, see the log file for more info.");
                 Speaker.speak(27, 26);
                 return netSend("EMT=ER");
@@ -311,7 +366,7 @@ public class ClientHandler implements Runnable {
         //<editor-fold defaultstate="collapsed" desc="Rule add (RUA=)">
         if (packet.startsWith("RUA=")) {
             //if (Rules.getInstance().addRule(packet)) {
-            if (Rules.addRule(packet)) {
+            if (context.rules.addRule(packet)) {
                 return sendQueryResponse(false);
             }
             return netSend("RUL=ER");
@@ -321,16 +376,216 @@ public class ClientHandler implements Runnable {
         // "RUL-n" where n = rule index to remove (0 = first rule)
         if (packet.startsWith("RUR=")) {
             //if (Rules.getInstance().removeRule(packet)) {
-            if (Rules.removeRule(packet)) {
+            if (context.rules.removeRule(packet)) {
                 return sendQueryResponse(false);
             }
             return netSend("RUL=ER");
         }
         //</editor-fold>
 
+        //<editor-fold defaultstate="collapsed" desc="Panels (PNL, PNL=)">
+        // "PNL" lists the panels: PNL=cn~n~... where c = current panel index
+        // (base80, 0 = first panel) followed by the panel names
+        // "PNL=i" selects panel index i (base80) and responds with a query all
+        if (packet.equals("PNL")) {
+            StringBuilder sb = new StringBuilder("PNL=");
+            sb.append(Base80.encode(context.number - 1));
+            boolean sep = false;
+            for (PanelContext panel : PanelContext.getAll()) {
+                if (sep) {
+                    sb.append('~');
+                } else {
+                    sep = true;
+                }
+                sb.append(panel.name);
+            }
+            return netSend(sb.toString());
+        }
+        if (packet.startsWith("PNL=")) {
+            PanelContext panel = null;
+            if (packet.length() == 5) {
+                panel = PanelContext.get(Base80.decode(packet.charAt(4)) + 1);
+            }
+            if (panel == null) {
+                return netSend("PNL=ER");
+            }
+            if (subscribed != null && subscribed != panel) {
+                subscribed.subscriptions.unsubscribe(this);
+                subscribed = null;
+            }
+            this.context = panel;
+            return sendQueryResponse(panel, true);
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="History (HIS=)">
+        // "HIS=t" where t = seconds since the epoch (decimal) gets the state
+        // at that moment from the journal: HIS=t$zones$partitions$s where
+        // t = time of the last change before it (decimal seconds), zones =
+        // zzb per zone (zone index wide base80, zone bits), partitions = ww
+        // per partition (partition bits wide base80), s = system bits
+        if (packet.startsWith("HIS=")) {
+            long time;
+            try {
+                time = Long.parseLong(packet.substring(4)) * 1000;
+            } catch (NumberFormatException ex) {
+                return netSend("HIS=ER");
+            }
+            Journal.State state = context.journal.getStateAt(time);
+            if (state == null) {
+                return netSend("HIS=ER");
+            }
+            StringBuilder sb = new StringBuilder("HIS=");
+            sb.append(state.time / 1000).append("$");
+            for (int z = 0; z < Const.MAX_ZONES; z++) {
+                if (state.zoneBits[z] >= 0) {
+                    sb.append(Base80.encodeWide(z)).append(Base80.encodeChar(state.zoneBits[z]));
+                }
+            }
+            sb.append("$");
+            for (int bits : state.partitionBits) {
+                sb.append(Base80.encodeWide(bits));
+            }
+            sb.append("$").append(Base80.encodeChar(state.systemBits));
+            return netSend(sb.toString());
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="Latency (LAT)">
+        // "LAT" gets the frame-to-side-effect latency summary (see Trace),
+        // LAT=line~line~...
+        if (packet.equals("LAT")) {
+            return netSend("LAT=" + Trace.getSummary().trim().replace(System.lineSeparator(), "~"));
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="Admission (ADM)">
+        // "ADM" gets the admission control counters (see Admission),
+        // ADM=line~line~...
+        if (packet.equals("ADM")) {
+            return netSend("ADM=" + Admission.getSummary().trim().replace(System.lineSeparator(), "~"));
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="Pending responses (PND=)">
+        // "PND=1" enables provisional responses to STY, AWY and DIS=, "PND=0"
+        // disables them. When enabled the command is answered at once with
+        // PND=iips (see VirtualPanel.getPendingForClient), then with CNF=ii
+        // and a query response once confirmed or RBK=ii and a query response
+        // if it failed. Query responses then end with $ and the pending
+        // commands of the panel.
+        if (packet.equals("PND=1") || packet.equals("PND=0")) {
+            isPendingEnabled = packet.charAt(4) == '1';
+            return netSend("PND=OK");
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="Compression (CMP=)">
+        // "CMP=1" enables compression of large responses, "CMP=0" disables
+        // it. Responses of Compressor.THRESHOLD chars or more are then sent
+        // as 0x1F + zlib data with the preset dictionary (see Compressor).
+        if (packet.equals("CMP=1") || packet.equals("CMP=0")) {
+            isCompressEnabled = packet.charAt(4) == '1';
+            return netSend("CMP=OK");
+        }
+        //</editor-fold>
+
+        //<editor-fold defaultstate="collapsed" desc="Subscribe (SUB, UNS)">
+        // "SUB" subscribes to live updates of the current panel: the server
+        // responds with SUB=qq$status$zones$log (same fields as a query
+        // response, qq = sequence, then $ and the pending commands if
+        // enabled) and then pushes DLT= deltas (see Subscriptions). Sending
+        // SUB again (after a sequence gap) gets a new snapshot. Deltas end
+        // with $ and the pending commands if enabled. "UNS" stops
+        // the updates, UNS=OK is sent after the last delta. A subscribed
+        // client is not closed for being idle, the server sends KAL when
+        // nothing else was pushed for a while (see Subscriptions).
+        if (packet.equals("SUB")) {
+            subscribed = context;
+            context.subscriptions.subscribe(this);
+            return true;
+        }
+        if (packet.equals("UNS")) {
+            PanelContext panel = subscribed;
+            subscribed = null;
+            if (panel == null) {
+                return netSend("UNS=OK");
+            }
+            return respondOnCompletion(panel.subscriptions.unsubscribe(this), "UNS=OK", "UNS=ER");
+        }
+        //</editor-fold>
+
         return netSend("ERR");
     }
 
+    /**
+     * Checks if the client is subscribed to a panel (exempts the connection
+     * from the idle timeout)
+     * @return true if subscribed
+     */
+    public boolean isSubscribed() {
+        return subscribed != null;
+    }
+
+    /**
+     * Sends the subscription snapshot (called on the pusher thread)
+     * @param snapshot published snapshot
+     * @return false if the send failed (the connection is closed)
+     */
+    @Override
+    public boolean sendSnapshot(PanelSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder("SUB=");
+        sb.append(Subscriptions.getSequence(snapshot)).append("$");
+        sb.append(snapshot.securityStatus).append("$");
+        sb.append(snapshot.zoneStatus).append("$");
+        sb.append(snapshot.eventLog);
+        if (isPendingEnabled) {
+            sb.append("$").append(snapshot.pending);
+        }
+        return sendPushed(sb.toString());
+    }
+
+    /**
+     * Checks if the client asked for the pending commands (PND=1)
+     * @return true if enabled
+     */
+    @Override
+    public boolean isPendingEnabled() {
+        return isPendingEnabled;
+    }
+
+    /**
+     * Sends a subscription delta or keepalive (called on the pusher thread),
+     * the encrypted form is shared with the other subscribers
+     * @param delta delta or keepalive message
+     * @return false if the send failed (the connection is closed)
+     */
+    @Override
+    public boolean sendDelta(SharedMessage delta) {
+        if (connection.sendShared(delta.get(isBinary, isCompressEnabled))) {
+            return true;
+        }
+        Log.print(Level.WARN, "Failed sending message to client, disconnecting...");
+        subscribed = null;
+        close();
+        return false;
+    }
+
+    /**
+     * Sends a pushed message, closes the connection if it fails
+     * @param message message
+     * @return true if success, false if error
+     */
+    private boolean sendPushed(String message) {
+        if (netSend(message)) {
+            return true;
+        }
+        Log.print(Level.WARN, "Failed sending message to client, disconnecting...");
+        subscribed = null;
+        close();
+        return false;
+    }
+
     /**
      * Stop application and shutdown the computer
      */
@@ -359,45 +614,156 @@ public class ClientHandler implements Runnable {
         System.exit(0);
     }
 
+    /**
+     * Sends the response to the client when a panel command completes, this
+     * thread continues reading requests in the meantime
+     * @param command future of the panel command
+     * @param success response on success or null to send a query response
+     * @param failure response on failure
+     * @return always true (a send failure closes the connection)
+     */
+    private boolean respondOnCompletion(CompletableFuture<Boolean> command, String success, String failure) {
+        PanelContext panel = getContext();
+        long version = panel.core.getSnapshot().version;
+        Request request = current.get().hold();
+        command.whenComplete((result, ex) -> request.run(() -> {
+            boolean sent;
+            if (ex != null) {
+                Log.print(Level.WARN, "Panel command failed: " + ex.getMessage(), false);
+                sent = netSend(failure);
+            } else if (success == null) {
+                sent = sendQueryResponse(panel, false);
+                if (sent) {
+                    recordClientLatency(panel, version);
+                }
+            } else {
+                sent = netSend(success);
+            }
+            if (sent == false) {
+                Log.print(Level.WARN, "Failed sending message to client, disconnecting...");
+                close();
+            }
+            return sent;
+        }));
+        return true;
+    }
+
+    /**
+     * Sends the responses to an arm/disarm command: when the client enabled
+     * pending responses a provisional response now and a confirmation or
+     * rollback when the command completes, otherwise as respondOnCompletion
+     * @param status Const.PENDING_ value
+     * @param command future of the panel command
+     * @param failure response on failure (without pending responses)
+     * @return true if success, false if error
+     */
+    private boolean respondPending(char status, CompletableFuture<Boolean> command, String failure) {
+        if (isPendingEnabled == false) {
+            return respondOnCompletion(command, null, failure);
+        }
+        PanelContext panel = getContext();
+        long version = panel.core.getSnapshot().version;
+        VirtualPanel.PendingCommand pending = panel.panel.publishPending(1, status, command);
+        String id = Base80.encodeWide(pending.id);
+        if (netSend("PND=" + id + Base80.encodeChar(0) + status) == false) {
+            return false;
+        }
+        Request request = current.get().hold();
+        pending.future.whenComplete((result, ex) -> request.run(() -> {
+            if (ex != null) {
+                Log.print(Level.WARN, "Panel command failed: " + ex.getMessage(), false);
+            }
+            if (netSend((ex == null ? "CNF=" : "RBK=") + id) == false
+                    || sendQueryResponse(panel, false) == false) {
+                Log.print(Level.WARN, "Failed sending message to client, disconnecting...");
+                close();
+                return false;
+            }
+            recordClientLatency(panel, version);
+            return true;
+        }));
+        return true;
+    }
+
+    /**
+     * Records the client response latency of a command, from the frame that
+     * changed the state to the response, if the state changed since the
+     * command was received
+     * @param panel panel the command was sent to
+     * @param version snapshot version when the command was received
+     */
+    private static void recordClientLatency(PanelContext panel, long version) {
+        PanelSnapshot snapshot = panel.core.getSnapshot();
+        if (snapshot.version > version) {
+            snapshot.trace.record(Trace.Stage.CLIENT);
+        }
+    }
+
     /**
      * Sends a query response to the client
      * @return true if success, false if error
      */
     private boolean sendQueryResponse(boolean isQueryAll) {
-        StringBuilder sb = new StringBuilder();
-
-        if (isQueryAll) {
-            sb.append("QRA=");
-            sb.append(Emailer.getSettingsForClient()).append("$");
-            sb.append(Zones.getNamesAndTypesForClient()).append("$");
-            sb.append(Speaker.getPhrasesForClient()).append("$");
-            sb.append(Rules.getRulesForClient()).append("$");
-        } else {
-            sb.append("QRY=");
-        }
+        return sendQueryResponse(getContext(), isQueryAll);
+    }
 
-        sb.append(VirtualPanel.getInstance().getSecurityStatusForClient()).append("$");
-        sb.append(Zones.getStatusForClient()).append("$");
-        sb.append(EventLog.getLogForClient());
+    /**
+     * Gets the panel of the request handled on this thread: the one selected
+     * when a tagged request was received, else the one selected now
+     * @return panel
+     */
+    private PanelContext getContext() {
+        PanelContext panel = current.get().context;
+        return (panel != null) ? panel : context;
+    }
 
-        return netSend(sb.toString());
+    /**
+     * Sends a query response for a panel to the client (shared by all
+     * clients, see QueryResponses)
+     * @param panel panel to report
+     * @return true if success, false if error
+     */
+    private boolean sendQueryResponse(PanelContext panel, boolean isQueryAll) {
+        return netSend(panel.queries.get(isQueryAll, isPendingEnabled));
     }
 
     /**
-     * Call this to send data to the client over the network
+     * Call this to send data to the client over the network (queued on the
+     * connection, panel command responses are sent from other threads).
+     * Prefixed with the tag of the request handled on this thread, if any.
      * @param data
      * @return true if success, false if error
      */
     private boolean netSend(String message) {
-        // Log unencrypted data
-        Log.print(Level.INFO, "NetSend: " + message, false);
+        String tag = current.get().tag;
 
-        // Begin sending the data to the client
-        //writer.write(message + (char)0x0a);  // or "\n";
-        writer.println(Crypto.encrypt(message));  // or "\n";
+        // Log unencrypted data
+        Log.print(Level.INFO, "NetSend: " + tag + message, false);
+
+        // Large responses are compressed if the client enabled it (the tag
+        // stays in front, uncompressed)
+        if (isCompressEnabled) {
+            byte[] compressed = Compressor.compress(message);
+            if (compressed != null) {
+                if (tag.isEmpty() == false) {
+                    byte[] prefix = tag.getBytes(StandardCharsets.UTF_8);
+                    byte[] tagged = Arrays.copyOf(prefix, prefix.length + compressed.length);
+                    System.arraycopy(compressed, 0, tagged, prefix.length, compressed.length);
+                    compressed = tagged;
+                }
+                if (isBinary) {
+                    return connection.sendFrame(Crypto.encryptFrame(compressed));
+                }
+                return connection.send(Crypto.encrypt(compressed));
+            }
+        }
+        message = tag + message;
 
-        // Check for errors
-        return !writer.checkError();
+        // Queue the data to the client
+        if (isBinary) {
+            return connection.sendFrame(Crypto.encryptFrame(message));
+        }
+        return connection.send(Crypto.encrypt(message));
     }
 }
 
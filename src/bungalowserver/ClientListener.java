@@ -2,58 +2,447 @@ package bungalowserver;
 
 import bungalowserver.Log.Level;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * NetServer class providing network server functions.
+ * NetServer class providing network server functions. One selector thread
+ * accepts the clients and does all socket reads and writes without
+ * blocking, so thousands of idle connections cost no threads. Each
+ * connection frames its input into lines and steps through its states
+ * (authenticating, authenticated, closed). Lines are handed to the
+ * connection's ClientHandler on a small worker pool, one at a time per
+ * connection so requests are still handled in order. Responses are queued
+ * on the connection and written by the selector thread, everything queued
+ * since the last write goes out in one gathering write (broadcast messages
+ * are written straight from the buffer shared by all connections). A connection that
+ * switched to the binary protocol is framed by length prefix instead of
+ * lines, its frames are decrypted here into pooled buffers. New
+ * connections pass admission control (see Admission) before anything else.
  */
 public class ClientListener implements Runnable {
 
+    /**
+     * Authentication timeout: After a client connects, it must send an
+     * authentication request within this time or server will disconnect.
+     * Timeout is in milliseconds.
+     */
+    static final int AUTH_TIMEOUT_MS = 1500;
+
+    /**
+     * Idle timeout: If a client does not send any requests for this time
+     * the server will disconnect (unless it is subscribed to live updates).
+     * Timeout is in seconds.
+     */
+    static final int IDLE_TIMEOUT = 90;  // 90 seconds
+
+    // Longest line (or binary frame) accepted from a client, longer lines
+    // close the connection
+    static final int MAX_LINE = 16384;
+
+    // Longest authentication request line, longer ones are rejected before
+    // decrypting (an encrypted AuthRequest is 44 chars)
+    static final int MAX_AUTH_LINE = 128;
+
+    // Most output queued for a client, a client this far behind is closed
+    static final int MAX_QUEUED = 1 << 20;
+
     // Server port
     private static int serverPort = 11000;
 
-    // Server socket
-    private static ServerSocket serverSocket = null;
+    // Server channel and selector
+    private static ServerSocketChannel serverChannel = null;
+    private static Selector selector = null;
 
     // Holds the current client listener thread state
-    private static boolean isRunning = false;
+    private static volatile boolean isRunning = false;
 
-    // Using threadpool
-    // Client threads run on a thread pool with max of 4 concurrent threads
+    // Client requests run on a thread pool with max of 4 concurrent threads
     private static final ExecutorService THREAD_POOL = Executors.newFixedThreadPool(4);
 
+    // Connections with output queued since the last select
+    private static final Queue<Connection> WRITES = new ConcurrentLinkedQueue<>();
+
+    private static final AtomicInteger CONNECTIONS = new AtomicInteger();
+
+    /**
+     * Connection states
+     */
+    private enum State {
+        AUTHENTICATING, AUTHENTICATED, CLOSED
+    }
+
+    /**
+     * One client connection, read and written by the selector thread
+     */
+    private static class Connection implements ClientConnection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final InetAddress address;
+        private final String ip;
+        private final ClientHandler handler;
+        private volatile State state = State.AUTHENTICATING;
+        private volatile boolean isBinary = false;
+
+        // Counted in the admission handshake cap until authenticated or closed
+        private final AtomicBoolean isHandshaking = new AtomicBoolean(true);
+
+        // Line and frame framing and timeout (selector thread only)
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(2048);
+        private final StringBuilder line = new StringBuilder();
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private ByteBuffer frame = null;
+        private long deadline = System.currentTimeMillis() + AUTH_TIMEOUT_MS;
+
+        // Lines (decrypted frames if binary) waiting for the handler (guarded by itself)
+        private final Queue<String> inbound = new ArrayDeque<>();
+        private boolean isHandling = false;
+
+        // Output waiting to be written (guarded by itself)
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private int queuedBytes = 0;
+        private final AtomicBoolean isWriteQueued = new AtomicBoolean(false);
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.address = channel.socket().getInetAddress();
+            this.ip = address.toString().replace('/', ' ').trim();
+            this.handler = new ClientHandler(this);
+        }
+
+        @Override
+        public String getClientIp() {
+            return ip;
+        }
+
+        @Override
+        public boolean send(String text) {
+            return queue(StandardCharsets.UTF_8.encode(text + System.lineSeparator()));
+        }
+
+        @Override
+        public boolean sendFrame(ByteBuffer data) {
+            return queue(data);
+        }
+
+        @Override
+        public boolean sendShared(ByteBuffer data) {
+            return queue(data.duplicate());
+        }
+
+        @Override
+        public void setBinary() {
+            isBinary = true;
+        }
+
+        /**
+         * Queues output for the selector thread
+         * @param data data to write
+         * @return true if queued, false if the connection is closed
+         */
+        private boolean queue(ByteBuffer data) {
+            if (state == State.CLOSED) {
+                return false;
+            }
+            synchronized (outbound) {
+                if (queuedBytes + data.remaining() > MAX_QUEUED) {
+                    Log.print(Level.WARN, "Client " + ip + " is not reading, disconnecting...");
+                    close();
+                    return false;
+                }
+                outbound.add(data);
+                queuedBytes += data.remaining();
+            }
+            // One wakeup for a burst of responses
+            if (isWriteQueued.compareAndSet(false, true)) {
+                WRITES.add(this);
+                selector.wakeup();
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (state == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+            endHandshake();
+            CONNECTIONS.decrementAndGet();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.print(Level.WARN, "Exception on socket close: " + ex.toString(), false);
+            }
+            // The selector thread returns the buffers (it may be reading into the frame)
+            WRITES.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Selector thread: returns the buffers of a closed connection (a
+         * partly read frame and the unwritten output) to the pool
+         */
+        void release() {
+            if (frame != null) {
+                BufferPool.release(frame);
+                frame = null;
+            }
+            synchronized (outbound) {
+                ByteBuffer data;
+                while ((data = outbound.poll()) != null) {
+                    BufferPool.release(data);
+                }
+                queuedBytes = 0;
+            }
+        }
+
+        /**
+         * Leaves the admission handshake cap (once)
+         */
+        private void endHandshake() {
+            if (isHandshaking.compareAndSet(true, false)) {
+                Admission.handshakeDone();
+            }
+        }
+
+        /**
+         * Reads what is available and frames it into lines
+         */
+        void read() {
+            int count;
+            try {
+                count = channel.read(readBuffer);
+            } catch (IOException ex) {
+                Log.print(Level.WARN, "Error receiving message from client, disconnecting... " + ex.getMessage());
+                close();
+                return;
+            }
+            if (count < 0) {
+                Log.print(Level.WARN, "Client closed the connection, disconnecting...");
+                if (state == State.AUTHENTICATING) {
+                    Admission.authFailed(address);
+                }
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            if (isBinary) {
+                readFrames();
+                readBuffer.clear();
+                return;
+            }
+            while (readBuffer.hasRemaining()) {
+                char c = (char) (readBuffer.get() & 0xff);  // base64 lines are ASCII
+                if (c == '\n') {
+                    received(line.toString());
+                    line.setLength(0);
+                } else if (c != '\r') {
+                    line.append(c);
+                    if (line.length() > (state == State.AUTHENTICATING ? MAX_AUTH_LINE : MAX_LINE)) {
+                        Log.print(Level.WARN, "Received oversized message from client, disconnecting...");
+                        if (state == State.AUTHENTICATING) {
+                            Admission.authFailed(address);
+                        }
+                        close();
+                        return;
+                    }
+                }
+            }
+            readBuffer.clear();
+        }
+
+        /**
+         * Frames the data read into binary protocol frames (4 byte length +
+         * iv + encrypted data) and decrypts each complete frame
+         */
+        private void readFrames() {
+            while (readBuffer.hasRemaining()) {
+                if (frame == null) {
+                    header.put(readBuffer.get());
+                    if (header.hasRemaining()) {
+                        continue;
+                    }
+                    int length = header.getInt(0);
+                    header.clear();
+                    if (length < 32 || length > MAX_LINE) {
+                        Log.print(Level.WARN, "Received invalid frame length from client, disconnecting...");
+                        close();
+                        return;
+                    }
+                    frame = BufferPool.acquire(length);
+                    frame.limit(length);
+                    continue;
+                }
+
+                int count = Math.min(frame.remaining(), readBuffer.remaining());
+                frame.put(readBuffer.array(), readBuffer.position(), count);
+                readBuffer.position(readBuffer.position() + count);
+                if (frame.hasRemaining()) {
+                    return;  // rest of the frame comes with the next read
+                }
+                frame.flip();
+                String text = Crypto.decrypt(frame);
+                BufferPool.release(frame);
+                frame = null;
+                if (text == null) {
+                    Log.print(Level.WARN, "Received bad message from client, disconnecting...");
+                    close();
+                    return;
+                }
+                received(text);
+            }
+        }
+
+        /**
+         * A complete line arrived: restarts the idle timeout and queues the
+         * line for the handler
+         * @param text line
+         */
+        private void received(String text) {
+            deadline = System.currentTimeMillis() + IDLE_TIMEOUT * 1000L;
+            synchronized (inbound) {
+                inbound.add(text);
+                if (isHandling) {
+                    return;
+                }
+                isHandling = true;
+            }
+            THREAD_POOL.execute(this::handle);
+        }
+
+        /**
+         * Worker thread: hands the queued lines to the handler in order
+         */
+        private void handle() {
+            while (true) {
+                String text;
+                synchronized (inbound) {
+                    text = inbound.poll();
+                    if (text == null || state == State.CLOSED) {
+                        isHandling = false;
+                        return;
+                    }
+                }
+                boolean keep;
+                try {
+                    if (state == State.AUTHENTICATING) {
+                        keep = authenticate(text);
+                    } else if (isBinary) {
+                        keep = handler.handleMessage(text);
+                    } else {
+                        keep = handler.handleLine(text);
+                    }
+                } catch (RuntimeException ex) {
+                    Log.print(Level.ERROR, "Error handling client request! " + ex.getMessage());
+                    keep = false;
+                }
+                if (keep == false) {
+                    Log.print(Level.INFO, "Closing client connection...");
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Hands the authentication request to the handler and reports the
+         * outcome to admission control
+         * @param text first line received
+         * @return true if authenticated
+         */
+        private boolean authenticate(String text) {
+            boolean isAuthenticated = false;
+            try {
+                isAuthenticated = handler.authenticate(text);
+            } finally {
+                endHandshake();
+                if (isAuthenticated) {
+                    state = State.AUTHENTICATED;
+                    Admission.authSucceeded(address);
+                } else {
+                    Admission.authFailed(address);
+                }
+            }
+            return isAuthenticated;
+        }
+
+        /**
+         * Writes the queued output in one gathering write, keeps waiting
+         * for the socket to drain if it could not all be written
+         */
+        void write() {
+            isWriteQueued.set(false);
+            ByteBuffer[] buffers;
+            synchronized (outbound) {
+                buffers = outbound.toArray(new ByteBuffer[0]);
+            }
+            long written = 0;
+            if (buffers.length > 0) {
+                try {
+                    written = channel.write(buffers);
+                } catch (IOException ex) {
+                    Log.print(Level.WARN, "Error sending message to client, disconnecting... " + ex.getMessage());
+                    close();
+                    return;
+                }
+            }
+            boolean isDrained;
+            synchronized (outbound) {
+                queuedBytes -= written;
+                while (outbound.isEmpty() == false && outbound.peek().hasRemaining() == false) {
+                    BufferPool.release(outbound.poll());
+                }
+                isDrained = outbound.isEmpty();
+            }
+            if (key.isValid()) {
+                key.interestOps(isDrained ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
     /**
      * Constructor, initializes the NetServer
      * @param port Port to listen on
      * @throws java.lang.RuntimeException
      */
     public ClientListener(int port){
-        // I generate the key once here in the client listener thread
-        // Rather than doing it every time in the client handler thread
-        // that this thread starts every time a client connects.
         serverPort = port;
     }
 
     /**
-     * Is the client listener thread running?
-     * @return True if running else false
+     * Gets the number of open client connections
+     * @return connection count
      */
-    //private synchronized boolean isRunning() {
-    //    return isRunning;
-    //}
+    public static int getConnectionCount() {
+        return CONNECTIONS.get();
+    }
 
     /**
      * Stops the client listener thread
      */
     public synchronized void stop(){
         isRunning = false;
-        try {
-            serverSocket.close();  // causes handled exception in listener thread
-        } catch (IOException ex) {
-            throw new RuntimeException("Error stopping server", ex);
+        if (selector != null) {
+            selector.wakeup();  // listener thread closes everything and exits
         }
     }
 
@@ -68,20 +457,19 @@ public class ClientListener implements Runnable {
     }
 
     /**
-     * This thread listens for client connections then
-     * starts another thread to handle each client.
+     * This thread accepts client connections and does all client reads and
+     * writes
      */
     @Override
     public void run() {
-        //synchronized(this){
-        //    runningThread = Thread.currentThread();
-        //}
-
-        //Thread.currentThread().getId();
 
         // Begin listening for clients
         try {
-            serverSocket = new ServerSocket(serverPort);
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(serverPort), 50);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException ex) {
             String errMsg = "Error listening on port " + serverPort + "! " + ex.getMessage();
             Log.print(Level.ERROR, errMsg);
@@ -89,33 +477,138 @@ public class ClientListener implements Runnable {
         }
         Log.print(Level.INFO, "Listening on port " + serverPort + "...");
 
+        long nextSweep = System.currentTimeMillis() + 1000;
         while (isRunning) {
-            Socket clientSocket = null;
             try {
-                /**
-                 * Wait here for a remote client to connect. accept() waits for
-                 * a connection (blocking, queues up to 50 requests) When a
-                 * connection is established, accept() returns a new
-                 * communications socket.
-                 */
-                clientSocket = serverSocket.accept();  // Blocking
+                selector.select(1000);
             } catch (IOException ex) {
-                // If isRunning flag is false then the thread was stopped intentionally.
-                // Otherwise the exception was due to an error.
-                if (isRunning == false) {
-                    continue;  // user called stop()
-                }
-                String errMsg = "Error accepting client connection! " + ex.getMessage();
+                String errMsg = "Error waiting for client connections! " + ex.getMessage();
                 Log.print(Level.ERROR, errMsg);
                 throw new RuntimeException(errMsg, ex);
             }
 
-            // Start the client handler thread then go back to listening for new clients
-            //new Thread(new NetHandler(clientSocket), "NetHandler").start(); // Use thread
-            THREAD_POOL.execute(new ClientHandler(clientSocket));  // Use threadpool
+            // Output queued by the workers
+            Connection queued;
+            while ((queued = WRITES.poll()) != null) {
+                if (queued.key.isValid()) {
+                    queued.write();
+                } else {
+                    queued.release();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() == false) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+            }
+
+            // Auth and idle timeouts, checked once a second
+            long now = System.currentTimeMillis();
+            if (now >= nextSweep) {
+                nextSweep = now + 1000;
+                sweep(now);
+            }
+        }
+
+        // Stop all clients then exit this listener thread
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException ex) {
+            Log.print(Level.WARN, "Error closing server! " + ex.getMessage());
         }
-        // Stop all client threads then exit this listener thread
-        THREAD_POOL.shutdownNow();  // Use threadpool
+        THREAD_POOL.shutdownNow();
         Log.print(Level.WARN, "Client listener and all handler threads stopped");
     }
+
+    /**
+     * Accepts a waiting client
+     */
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            // Rejected before any other work
+            if (Admission.admit(channel.socket().getInetAddress()) == false) {
+                channel.close();
+                return;
+            }
+        } catch (IOException ex) {
+            Log.print(Level.ERROR, "Error accepting client connection! " + ex.getMessage());
+            return;
+        }
+
+        SelectionKey key;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            Log.print(Level.ERROR, "Error accepting client connection! " + ex.getMessage());
+            Admission.handshakeDone();
+            try {
+                channel.close();
+            } catch (IOException closeEx) {
+                Log.print(Level.WARN, "Exception on socket close: " + closeEx.toString(), false);
+            }
+            return;
+        }
+        Connection connection = new Connection(channel, key);
+        key.attach(connection);
+        CONNECTIONS.incrementAndGet();
+        Log.print(Level.INFO, "Connection from " + connection.ip + ", authenticating...");
+    }
+
+    /**
+     * Closes the connections that did not authenticate in time or were idle
+     * too long, subscribed connections are kept (see Subscriptions)
+     * @param now current time
+     */
+    private void sweep(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if ((key.attachment() instanceof Connection) == false) {
+                continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            if (now < connection.deadline) {
+                continue;
+            }
+            if (connection.state == State.AUTHENTICATED && connection.handler.isSubscribed()) {
+                // The idle timeout starts over once it unsubscribes
+                connection.deadline = now + IDLE_TIMEOUT * 1000L;
+                continue;
+            }
+            if (connection.state == State.AUTHENTICATING) {
+                Log.print(Level.WARN, "Client did not send authentication request within the allowed time!");
+                Admission.authFailed(connection.address);
+            } else {
+                // If client has been idle for IDLE_TIMEOUT then disconnect
+                Log.print(Level.INFO, "Disconnecting idle client...");
+            }
+            connection.close();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+package bungalowserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * DEFLATE compression of large responses for clients that enabled it
+ * (CMP=1). The compressed message is MARKER followed by zlib data made with
+ * the preset DICTIONARY (the client inflates with the same dictionary, the
+ * zlib header carries its Adler-32 id). Messages below THRESHOLD are sent
+ * as they are. The same response text is often sent to many clients (see
+ * QueryResponses), so the last few compressed messages are kept.
+ */
+public class Compressor {
+
+    // Smaller messages are not compressed
+    public static final int THRESHOLD = 512;
+
+    // First byte of a compressed message (never starts a text message)
+    public static final byte MARKER = 0x1F;
+
+    /**
+     * Preset dictionary: typical zone names, email and protocol tokens,
+     * most common last (zlib finds closer matches cheaper). Changing it
+     * changes its id, old clients then fail to inflate, so append a new
+     * dictionary rather than edit this one.
+     */
+    private static final byte[] DICTIONARY = (
+            "Please check your phone~Please call your father~Please call your mother$"
+            + "smtp.gmail.com~T~@yahoo.com,@outlook.com,@gmail.com$"
+            + "Glass Break~Smoke Detector~Heat~Freeze~Water~Doorbell~Keypad~Panic~"
+            + "Laundry~Office~Den~Study~Hall~Hallway~Stairs~Upstairs~Downstairs~Attic~"
+            + "Basement~Bathroom~Bedroom~Master Bedroom~Guest Bedroom~Dining Room~"
+            + "Family Room~Living Room~Kitchen~Garage~Sliding Door~Patio Door~"
+            + "Side Door~Back Door~Front Door~Window~Motion~Door~Zone ~QRA=QRY=$"
+        ).getBytes(StandardCharsets.UTF_8);
+
+    // Compressed messages kept, by identity of the text
+    private static final int CACHED = 4;
+    private static final String[] cachedText = new String[CACHED];
+    private static final byte[][] cachedData = new byte[CACHED][];
+    private static int next = 0;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+
+    private Compressor() {
+    }
+
+    /**
+     * Compresses a message if it is large enough and compression helps
+     * @param message message text
+     * @return MARKER + zlib data, or null to send the message as it is
+     */
+    public static byte[] compress(String message) {
+        if (message.length() < THRESHOLD) {
+            return null;
+        }
+        synchronized (cachedText) {
+            for (int i = 0; i < CACHED; i++) {
+                if (cachedText[i] == message) {
+                    return cachedData[i];
+                }
+            }
+        }
+
+        byte[] input = message.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] output = new byte[input.length];
+        output[0] = MARKER;
+        int length = 1;
+        while (deflater.finished() == false && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        byte[] data = deflater.finished() ? Arrays.copyOf(output, length) : null;
+
+        synchronized (cachedText) {
+            cachedText[next] = message;
+            cachedData[next] = data;
+            next = (next + 1) % CACHED;
+        }
+        return data;
+    }
+}
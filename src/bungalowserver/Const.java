@@ -54,11 +54,22 @@ public final class Const {
         EVENT_GLASS_BREAK = 20,
         EVENT_DOORBELL = 21,
         EVENT_FREEZE = 22,
-        EVENT_APPLICATION_STARTED = 23;
+        EVENT_APPLICATION_STARTED = 23,
+        EVENT_ZONE_OPEN_TOO_LONG = 24;  // reported only, not in the client event log
         //EVENT_CLIENT_CONNECTED
         //EVENT_CLIENT_CONNECT_FAILED
     //</editor-fold>
 
+    //<editor-fold defaultstate="collapsed" desc="Panel limits">
+    // Largest NX-family panels (NX-8E) support 192 zones in 8 partitions
+    public static final int
+        MAX_ZONES = 192,
+        MAX_PARTITIONS = 8,
+        // Zones above this number (or any partition other than 1) require the
+        // wide client encoding (see Base80.WIDE)
+        LEGACY_MAX_ZONES = 64;
+    //</editor-fold>
+
     //<editor-fold defaultstate="collapsed" desc="Security mode constants">
     // First char is one of these
     public static final char
@@ -79,6 +90,14 @@ public final class Const {
         SEC2_AC_PWR_OFF_AND_SYS_BAT_LOW = '3';
     //</editor-fold>
 
+    //<editor-fold defaultstate="collapsed" desc="Pending command constants">
+    // Provisional state of a command accepted but not yet confirmed by the panel
+    public static final char
+        PENDING_ARM_STAY = 'S',
+        PENDING_ARM_AWAY = 'A',
+        PENDING_DISARM = 'D';
+    //</editor-fold>
+
     //<editor-fold defaultstate="collapsed" desc="Zone types">
     // These must be sequential and start at zero
     public static final int
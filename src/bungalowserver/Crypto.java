@@ -4,6 +4,9 @@ import bungalowserver.Log.Level;
 import java.io.Console;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -20,6 +23,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -42,6 +46,10 @@ public class Crypto {
     // to compute (heavier cpu load), use 256 or greater
     private static final int HASH_ITERATIONS = 256;
 
+    // UTF-8 encoder per thread for binary frames (encoders are not thread safe)
+    private static final ThreadLocal<CharsetEncoder> ENCODER =
+            ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+
     // Encryption mode
     public enum Mode { AES128, AES256 }
 
@@ -293,6 +301,118 @@ public class Crypto {
         }
     }
 
+    /**
+     * Encrypts a string into a binary protocol frame: length of the rest
+     * (4 bytes, big endian) + iv + encrypted data, without base64. Encoding
+     * and encryption work on pooled buffers.
+     * @param clearText The string to encrypt.
+     * @return frame from BufferPool ready to write (release it once written)
+     */
+    public static ByteBuffer encryptFrame(String clearText) {
+        ByteBuffer clear = BufferPool.acquire(clearText.length() * 3);
+        try {
+            CharsetEncoder encoder = ENCODER.get();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(clearText), clear, true);
+            encoder.flush(clear);
+            clear.flip();
+            return encryptFrame(clear);
+        } finally {
+            BufferPool.release(clear);
+        }
+    }
+
+    /**
+     * Encrypts a byte array into a binary protocol frame (see
+     * encryptFrame(String)).
+     * @param clearText The byte array to encrypt.
+     * @return frame from BufferPool ready to write (release it once written)
+     */
+    public static ByteBuffer encryptFrame(byte[] clearText) {
+        return encryptFrame(ByteBuffer.wrap(clearText));
+    }
+
+    /**
+     * Encrypts the remaining bytes of a buffer into a binary protocol frame
+     * @param clear data to encrypt (consumed)
+     * @return frame from BufferPool ready to write
+     */
+    private static ByteBuffer encryptFrame(ByteBuffer clear) {
+
+        // Check the secret key
+        if (secretKey == null) {
+            Log.print(Level.ERROR, "Crypto not initialized (must call generateKey)!");
+            throw new RuntimeException("Crypto not initialized (must call generateKey)!");
+        }
+
+        try {
+            Cipher cipher = Cipher.getInstance(BLOCK_MODE);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            byte[] initVector = cipher.getIV();
+            ByteBuffer frame = BufferPool.acquire(4 + initVector.length
+                    + cipher.getOutputSize(clear.remaining()));
+            frame.position(4);
+            frame.put(initVector);
+            cipher.doFinal(clear, frame);
+            frame.putInt(0, frame.position() - 4);
+            frame.flip();
+            return frame;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException ex) {
+            Log.print(Level.ERROR, "Cipher error! " + ex.getMessage());
+            throw new RuntimeException("Cipher error!" + ex.getMessage(), ex);
+        } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException ex) {
+            Log.print(Level.WARN, "Unable to encrypt message! " + ex.getMessage());
+            throw new RuntimeException("Unable to encrypt message!" + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Decrypts the body of a binary protocol frame (iv + encrypted data).
+     * @param encrypted buffer holding the frame body (position to limit)
+     * @return the decrypted string. Returns null if unable to decrypt
+     * (this will occur if client sends invalid).
+     */
+    public static String decrypt(ByteBuffer encrypted) {
+
+        // Check the secret key
+        if (secretKey == null) {
+            Log.print(Level.ERROR, "Crypto not initialized (must call generateKey)!");
+            throw new RuntimeException("Crypto not initialized (must call generateKey)!");
+        }
+
+        // iv and at least one block
+        if (encrypted.remaining() < 32 || encrypted.remaining() % 16 != 0) {
+            Log.print(Level.WARN, "Unable to decrypt message, invalid length!");
+            return null;  // null indicates client sent invalid message
+        }
+        byte[] initVector = new byte[16];
+        encrypted.get(initVector);
+
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance(BLOCK_MODE);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(initVector));
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException |
+                InvalidKeyException | InvalidAlgorithmParameterException ex) {
+            Log.print(Level.ERROR, "Cipher error! " + ex.getMessage());
+            throw new RuntimeException("Cipher error!" + ex.getMessage(), ex);
+        }
+
+        ByteBuffer clear = BufferPool.acquire(cipher.getOutputSize(encrypted.remaining()));
+        try {
+            cipher.doFinal(encrypted, clear);
+            return new String(clear.array(), 0, clear.position(), StandardCharsets.UTF_8);
+        } catch (IllegalBlockSizeException | BadPaddingException ex) {
+            // Note: bad password causes BadPaddingException exception here
+            Log.print(Level.INFO, "Unable to decrypt message (possible bad pw from client)!");
+            return null;  // null indicates client sent invalid message
+        } catch (ShortBufferException ex) {
+            throw new RuntimeException("Unable to decrypt message!" + ex.getMessage(), ex);
+        } finally {
+            BufferPool.release(clear);
+        }
+    }
+
     /**
      * Obfuscate
      * @param clrText clear text
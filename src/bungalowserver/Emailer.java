@@ -2,6 +2,7 @@ package bungalowserver;
 
 // Requires javax.mail from https://java.net/projects/javamail/pages/Home
 import bungalowserver.Log.Level;
+import java.util.Arrays;
 import java.util.Properties;
 import javax.mail.Authenticator;
 import javax.mail.Message;
@@ -28,6 +29,13 @@ public class Emailer {
         TLS, SSL, NONE
     }
 
+    // Client settings string and the settings it was built from (the fields
+    // above are set directly by Settings, so a change is detected when the
+    // string is requested). The version counts the changes.
+    private static String settingsString = null;
+    private static Object[] settingsKey = null;
+    private static int settingsVersion = 0;
+
     /**
      * Send an email
      * @param to Email address to send to (can be multiple, comma-delimited)
@@ -38,6 +46,21 @@ public class Emailer {
      */
     public static boolean sendEmail(String to, String subject,
             String message, boolean highPriority) {
+        return sendEmail(to, subject, message, highPriority, Trace.NONE);
+    }
+
+    /**
+     * Send an email (see sendEmail), the trace records when the SMTP server
+     * accepted the message
+     * @param to Email address to send to (can be multiple, comma-delimited)
+     * @param subject Subject text
+     * @param message Message text
+     * @param highPriority true = high priority, false = normal priority
+     * @param trace latency trace of the event the email is sent for
+     * @return true on success else false
+     */
+    public static boolean sendEmail(String to, String subject,
+            String message, boolean highPriority, Trace trace) {
 
         /*
         Gmail uses:
@@ -91,6 +114,7 @@ public class Emailer {
             msg.setSubject(subject);
             msg.setText(message);
             Transport.send(msg);
+            trace.record(Trace.Stage.EMAIL);
         } catch (MessagingException ex) {
             Log.print(Level.WARN, "Unable to send email message to " + to + "! " + ex.getMessage());
             return false;
@@ -108,20 +132,50 @@ public class Emailer {
         return sendEmail(contacts, subject, message, true);
     }
 
+    /**
+     * Sends an alert email to 'contacts' list, the trace records when the
+     * SMTP server accepted it
+     * @param subject Subject text
+     * @param message Message text
+     * @param trace latency trace of the event the email is sent for
+     * @return true on success else false
+     */
+    public static boolean sendEmail(String subject, String message, Trace trace) {
+        return sendEmail(contacts, subject, message, true, trace);
+    }
+
     /**
      * Sends an alert email to 'contacts' list
      * @param subject
+     * @param panel panel to report the zone status of
+     * @return
+     */
+    public static boolean sendEmail(String subject, PanelContext panel) {
+        return sendEmail(contacts, panel.getPrefix() + subject, panel.zones.getZoneStatusMessage(), true);
+    }
+
+    /**
+     * Sends an alert email to 'contacts' list with the status of the zones
+     * in a single partition
+     * @param subject
+     * @param panel panel the partition belongs to
+     * @param partition partition number (1-8)
      * @return
      */
-    public static boolean sendEmail(String subject) {
-        return sendEmail(contacts, subject, Zones.getZoneStatusMessage(), true);
+    public static boolean sendEmail(String subject, PanelContext panel, int partition) {
+        return sendEmail(contacts, panel.getPrefix() + subject, panel.zones.getZoneStatusMessage(partition), true);
     }
 
     /**
      * Get email settings as string to send to client
      * @return email settings string
      */
-    public static String getSettingsForClient() {
+    public static synchronized String getSettingsForClient() {
+        Object[] key = {server, password, security, contacts};
+        if (settingsString != null && Arrays.equals(key, settingsKey)) {
+            return settingsString;
+        }
+
         // Note: Port : 'N' = normal/25, 'S' = SSL/465, 'T' = TLS/587
         StringBuilder sb = new StringBuilder();
 
@@ -141,7 +195,20 @@ public class Emailer {
         }
 
         sb.append(contacts);
-        return sb.toString();
+        settingsString = sb.toString();
+        settingsKey = key;
+        settingsVersion++;
+        return settingsString;
+    }
+
+    /**
+     * Gets the version of the client settings string, changes each time the
+     * settings change
+     * @return version
+     */
+    public static synchronized int getSettingsVersion() {
+        getSettingsForClient();
+        return settingsVersion;
     }
 
     /**
@@ -3,23 +3,88 @@ package bungalowserver;
 import java.util.LinkedList;
 
 /**
- * The event log that is sent to the client upon request. This log is stored in
+ * The event log of one panel that is sent to the client upon request. This log is stored in
  * memory (on application restart, the log will be empty)
  * @author Shawn Johnston
  */
 public class EventLog {
 
-    private static boolean eventLoggingEnabled = false;
-    private static int maxEvents = 100;
-    private static int repeat = 0;
-    private static String prevEv = "";
-    private static final LinkedList<String> EVENT_LOG = new LinkedList<>();
+    private final PanelContext context;
+    private boolean eventLoggingEnabled = false;
+    private int maxEvents = 100;
+    private int repeat = 0;
+    private Entry prevEv = null;
+    private final LinkedList<Entry> eventLog = new LinkedList<>();
+
+    // Client log string, dropped when an event is logged or the encoding
+    // changed and rebuilt on next use
+    private String logString = null;
+    private boolean logWide = false;
+
+    // Changes since takeChangesForClient was last called: entries added at
+    // the head and entries that were at the head then and have been removed
+    private int addedCount = 0;
+    private int removedCount = 0;
+
+    /**
+     * A log entry. Entries are encoded when sent to clients, so the whole
+     * log always uses the encoding of the zones at that time (see
+     * Zones.isWideEncoding), even if it changed since an entry was logged.
+     */
+    private static class Entry {
+        final String dateTime;
+        final int event;
+        final int zone;
+        final int partition;
+        final int repeat;
+
+        Entry(String dateTime, int event, int zone, int partition, int repeat) {
+            this.dateTime = dateTime;
+            this.event = event;
+            this.zone = zone;
+            this.partition = partition;
+            this.repeat = repeat;
+        }
+
+        /**
+         * Checks if another entry is the same event (repeat count aside)
+         * @param other entry
+         * @return true if same event, zone and partition
+         */
+        boolean isSameEvent(Entry other) {
+            return other != null && event == other.event && zone == other.zone
+                    && partition == other.partition;
+        }
+
+        /**
+         * Encodes the entry for clients (see getLogForClient)
+         * @param sb string to append to
+         * @param wide true for the wide encoding
+         */
+        void appendTo(StringBuilder sb, boolean wide) {
+            sb.append(dateTime);
+            if (wide) {
+                sb.append(Base80.encode(event)).append(Base80.encodeWide(zone - 1)).append(Base80.encode(partition - 1));
+            } else {
+                sb.append(Base80.encode(event, zone - 1));
+            }
+            sb.append(Base80.encode(repeat));
+        }
+    }
+
+    /**
+     * Constructor
+     * @param context panel this log belongs to
+     */
+    public EventLog(PanelContext context) {
+        this.context = context;
+    }
 
     /**
      * Enables or disables logging
      * @param enable
      */
-    public static void enableEventLogging(boolean enable) {
+    public void enableEventLogging(boolean enable) {
         eventLoggingEnabled = enable;
     }
 
@@ -27,28 +92,77 @@ public class EventLog {
      * Sets the maximum number of events to hold in the log
      * @param eventMax
      */
-    public static void setMaxEvents(int eventMax) {
+    public void setMaxEvents(int eventMax) {
         maxEvents = eventMax;
     }
 
     /**
      * Gets the entire event logs as a string to send to the client
+     * Legacy entries: wmdhms + event + zone + repeat (9 chars)
+     * Wide entries (WIDE marker first): wmdhms + event + zone(2) + partition
+     * + repeat (11 chars)
      * @return entire event log as string
      */
-    public static String getLogForClient() {
+    public synchronized String getLogForClient() {
+        boolean wide = context.zones.isWideEncoding();
+        if (logString == null || logWide != wide) {
+            StringBuilder sb = new StringBuilder();
+            if (wide) {
+                sb.append(Base80.WIDE);
+            }
+            for (Entry entry : eventLog) {
+                entry.appendTo(sb, wide);
+            }
+            logString = sb.toString();
+            logWide = wide;
+        }
+        return logString;
+    }
+
+    /**
+     * Gets the changes to the event log since this was last called, to push
+     * to subscribed clients: r + entries, where r = number of entries to
+     * remove from the head of the previous log (base80) and entries = the
+     * entries to add at the head (newest first, same format as
+     * getLogForClient). The client drops entries beyond the length of the
+     * last full log it received. The entries use the current encoding, if
+     * it changed since the previous log the client needs the full log.
+     * @return changes (just r = 0 if none)
+     */
+    public synchronized String takeChangesForClient() {
+        boolean wide = context.zones.isWideEncoding();
         StringBuilder sb = new StringBuilder();
-        for (String str : EVENT_LOG) {
-            sb.append(str);
+        sb.append(Base80.encodeChar(Math.min(removedCount, 79)));
+        int count = 0;
+        for (Entry entry : eventLog) {
+            if (count++ == addedCount) {
+                break;
+            }
+            entry.appendTo(sb, wide);
         }
+        addedCount = 0;
+        removedCount = 0;
         return sb.toString();
     }
 
+    /**
+     * Removes the most recent entry, keeping track of the changes
+     */
+    private void removeFirst() {
+        eventLog.removeFirst();
+        if (addedCount > 0) {
+            addedCount--;
+        } else {
+            removedCount++;
+        }
+    }
+
     /**
      * Log an event not associated with a zone
      * @param event
      */
-    public static void logEvent(int event) {
-        logEvent(event, 0);
+    public void logEvent(int event) {
+        logEvent(event, 0, 1);
     }
 
     /**
@@ -56,42 +170,58 @@ public class EventLog {
      * @param event Event
      * @param zone Zone number 1.. (ignored for events not related to a zone)
      */
-    public static void logEvent(int event, int zone) {
+    public void logEvent(int event, int zone) {
+        Zone z = context.zones.getZone(zone);
+        logEvent(event, zone, (z == null) ? 1 : z.getPartition());
+    }
+
+    /**
+     * Log an event associated with a zone and/or partition
+     * @param event Event
+     * @param zone Zone number 1.. (ignored for events not related to a zone)
+     * @param partition Partition number 1-8
+     */
+    public synchronized void logEvent(int event, int zone, int partition) {
         if (!eventLoggingEnabled) {
             return;  // Can use this to avoid logging until system is fully up
         }
 
         // Note: zone is unused for non-zone events (like system armed)
-        if (zone < 1 || zone > 64) {
+        if (zone < 1 || zone > Const.MAX_ZONES) {
             zone = 1;
         }
+        if (partition < 1 || partition > Const.MAX_PARTITIONS) {
+            partition = 1;
+        }
+        logString = null;
 
         // When armed in stay mode the panel sends events ARMED then ARMED-STAY
         // So if this event is ARMED-STAY, remove previous event from the log
         // so only the single ARMED-STAY event is logged.
         if (event == Const.EVENT_ARMED_STAY) {
-            if (EVENT_LOG.isEmpty() == false) {
-                EVENT_LOG.removeFirst();
+            if (eventLog.isEmpty() == false) {
+                removeFirst();
             }
         }
 
-        String ev = Base80.encode(event, zone-1);
+        Entry ev = new Entry(Base80.encodeDateTime(), event, zone, partition, 0);
 
         // Start a new event if repeat count reaches 79 (limit of base80 char)
-        if (ev.equals(prevEv) && repeat < 79) {
+        if (ev.isSameEvent(prevEv) && repeat < 79) {
             repeat++;
-            EVENT_LOG.removeFirst(); // Remove most recently added item so it can be replaced by this
+            removeFirst(); // Remove most recently added item so it can be replaced by this
         } else {
             repeat = 0;
             prevEv = ev;
         }
 
         // Add the log entry
-        EVENT_LOG.addFirst(Base80.encodeDateTime() + ev + Base80.encode(repeat));
+        eventLog.addFirst(new Entry(ev.dateTime, event, zone, partition, repeat));
+        addedCount++;
 
         // Prune the event log
-        while (EVENT_LOG.size() >= maxEvents) {
-            EVENT_LOG.removeLast();
+        while (eventLog.size() >= maxEvents) {
+            eventLog.removeLast();
         }
     }
 }
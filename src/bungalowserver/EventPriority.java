@@ -0,0 +1,65 @@
+package bungalowserver;
+
+/**
+ * Priority classes of panel events, lower is more urgent. Under an alarm
+ * storm the panel core, speaker and notifications serve the urgent classes
+ * first, informational zone chatter may be batched or dropped.
+ */
+public class EventPriority {
+
+    public static final int
+        ALARM = 0,      // fire and burglary
+        ENTRY = 1,      // entry timing, glass-break
+        ARM = 2,        // arm state, power and other system changes
+        INFO = 3;       // zone chatter (faulted/ready, errors, doorbell...)
+
+    /**
+     * Priority of work not caused by an event (rules, client requests), never
+     * dropped
+     */
+    public static final int DEFAULT = ARM;
+
+    private EventPriority() {
+    }
+
+    /**
+     * Gets the priority class of an event
+     * @param event Const.EVENT_ value
+     * @return priority class
+     */
+    public static int of(int event) {
+        switch (event) {
+            case Const.EVENT_FIRE_ALARM:
+            case Const.EVENT_BURGLARY_ALARM:
+                return ALARM;
+            case Const.EVENT_TIMING_ENTRY:
+            case Const.EVENT_GLASS_BREAK:
+                return ENTRY;
+            case Const.EVENT_ARMED:
+            case Const.EVENT_ARMED_STAY:
+            case Const.EVENT_DISARMED:
+            case Const.EVENT_INSTANT_MODE_ON:
+            case Const.EVENT_INSTANT_MODE_OFF:
+            case Const.EVENT_ALARM_OFF:
+            case Const.EVENT_ZONE_FORCE_ARMED:
+            case Const.EVENT_SMOKE_RESET:
+            case Const.EVENT_FREEZE:
+            case Const.EVENT_AC_POWER_FAIL:
+            case Const.EVENT_AC_POWER_RESTORED:
+            case Const.EVENT_SYSTEM_BATTERY_LOW:
+            case Const.EVENT_SYSTEM_BATTERY_OK:
+                return ARM;
+            default:
+                return INFO;
+        }
+    }
+
+    /**
+     * Checks if a priority class is urgent (served ahead of everything else)
+     * @param priority priority class
+     * @return true if urgent
+     */
+    public static boolean isUrgent(int priority) {
+        return priority <= ENTRY;
+    }
+}
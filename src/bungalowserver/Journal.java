@@ -0,0 +1,625 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the state transitions of one panel, for "what was
+ * the state at this moment" queries. Each zone, partition or system status
+ * change is appended as a small delta record (the packed bits of the
+ * checkpoint), with a full-state keyframe when the journal is enabled, at
+ * the start of each day and every KEYFRAME_INTERVAL records. There is one
+ * segment file per day (UTC) plus an index of its keyframe offsets, so a
+ * query opens one segment, seeks to the nearest earlier keyframe and replays
+ * forward. Records are buffered on the panel core thread and appended by a
+ * worker thread every few seconds, so the SD card sees few small writes.
+ * <p>
+ * Each record is framed by its length and a CRC32, so a replay stops at a
+ * record torn by a crash or power loss. Before the first append to a
+ * segment written by an earlier run, the segment is truncated to its last
+ * complete record (and its index to the keyframes before it).
+ */
+public class Journal {
+
+    private static final int MAGIC = 0x424a4e4c;  // "BJNL"
+    private static final int VERSION = 2;
+
+    // Segment header (magic + version) and record framing (length + CRC32) sizes
+    private static final int HEADER = 5;
+    private static final int FRAMING = 6;
+
+    // Record types
+    private static final int KEYFRAME = 'K', ZONE = 'Z', PARTITION = 'P', SYSTEM = 'S';
+
+    // Records between keyframes (bounds the replay of a query)
+    private static final int KEYFRAME_INTERVAL = 256;
+
+    // Buffered records are appended this long after the first one
+    private static final int FLUSH_DELAY = 5000;  // milliseconds
+
+    // Segments older than this are deleted
+    private static final int RETENTION_DAYS = 400;
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+    // Directory the journal files are written to
+    private static String directory = null;
+
+    /**
+     * Panel state at a moment, rebuilt from the journal
+     */
+    public static class State {
+        // Time of the last record applied
+        public long time;
+        // Zone bits (see Checkpoint) by zone number - 1, -1 if not a zone
+        public final int[] zoneBits = new int[Const.MAX_ZONES];
+        // Partition bits (see Checkpoint) by partition number - 1
+        public final int[] partitionBits = new int[Const.MAX_PARTITIONS];
+        // System bits (see Checkpoint)
+        public int systemBits;
+
+        private State() {
+            Arrays.fill(zoneBits, -1);
+        }
+    }
+
+    /**
+     * A record waiting to be appended
+     */
+    private static class Record {
+        final long day;
+        final long time;
+        final boolean isKeyframe;
+        final byte[] data;
+
+        Record(long day, long time, boolean isKeyframe, byte[] data) {
+            this.day = day;
+            this.time = time;
+            this.isKeyframe = isKeyframe;
+            this.data = data;
+        }
+    }
+
+    private final PanelContext context;
+
+    // Last bits journaled, records are only written for real changes
+    // (only accessed on the panel core thread)
+    private final int[] zoneBits = new int[Const.MAX_ZONES];
+    private final int[] partitionBits = new int[Const.MAX_PARTITIONS];
+    private int systemBits = -1;
+    private long currentDay = -1;
+    private int sinceKeyframe = 0;
+
+    // Enabled once the virtual panel is built or restored
+    private boolean enabled = false;
+
+    // Records waiting to be appended (guarded by itself), appends and queries
+    // are serialized by writeLock so records reach the files in order
+    private final List<Record> pending = new ArrayList<>();
+    private final Object writeLock = new Object();
+
+    // Day of the segment checked for a torn tail (guarded by writeLock)
+    private long checkedDay = -1;
+
+    /**
+     * Constructor
+     * @param context panel to journal
+     */
+    public Journal(PanelContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Must call this first to set the directory for the journal files
+     * @param path directory path (ending with a separator)
+     */
+    public static void setDirectory(String path) {
+        directory = path;
+    }
+
+    /**
+     * Enables journaling (call on the panel core thread after the virtual
+     * panel is built or restored), starts with a keyframe
+     */
+    public void enable() {
+        if (directory == null) {
+            return;
+        }
+        enabled = true;
+        keyframe(System.currentTimeMillis());
+    }
+
+    /**
+     * Call on the panel core thread when a zone's status may have changed
+     * @param zone zone
+     */
+    public void zoneChanged(Zone zone) {
+        int bits = Checkpoint.getZoneBits(zone);
+        if (enabled == false || zoneBits[zone.number - 1] == bits) {
+            return;
+        }
+        zoneBits[zone.number - 1] = bits;
+        delta(ZONE, zone.number - 1, bits);
+    }
+
+    /**
+     * Call on the panel core thread when a partition's status may have changed
+     * @param part partition
+     */
+    public void partitionChanged(Partition part) {
+        int bits = Checkpoint.getPartitionBits(part);
+        if (enabled == false || partitionBits[part.number - 1] == bits) {
+            return;
+        }
+        partitionBits[part.number - 1] = bits;
+        delta(PARTITION, part.number - 1, bits);
+    }
+
+    /**
+     * Call on the panel core thread when the system status may have changed
+     */
+    public void systemChanged() {
+        int bits = Checkpoint.getSystemBits(context.panel);
+        if (enabled == false || systemBits == bits) {
+            return;
+        }
+        systemBits = bits;
+        delta(SYSTEM, 0, bits);
+    }
+
+    /**
+     * Appends a delta record, or a keyframe when a new day started or enough
+     * deltas were written since the last one (the keyframe holds the change)
+     * @param type record type
+     * @param index zone or partition index
+     * @param bits new bits
+     */
+    private void delta(int type, int index, int bits) {
+        long now = System.currentTimeMillis();
+        if (Math.floorDiv(now, DAY) != currentDay || sinceKeyframe >= KEYFRAME_INTERVAL) {
+            keyframe(now);
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeInt((int) (now - currentDay * DAY));
+            if (type != SYSTEM) {
+                out.writeByte(index);
+            }
+            if (type == PARTITION) {
+                out.writeShort(bits);
+            } else {
+                out.writeByte(bits);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Error encoding journal record!", ex);
+        }
+        sinceKeyframe++;
+        add(new Record(currentDay, now, false, bytes.toByteArray()));
+    }
+
+    /**
+     * Appends a keyframe of the full current state
+     * @param now current time
+     */
+    private void keyframe(long now) {
+        currentDay = Math.floorDiv(now, DAY);
+        sinceKeyframe = 0;
+        VirtualPanel panel = context.panel;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(KEYFRAME);
+            out.writeInt((int) (now - currentDay * DAY));
+            int count = 0;
+            for (int z = 1; z <= Const.MAX_ZONES; z++) {
+                Zone zone = context.zones.getZone(z);
+                zoneBits[z - 1] = (zone == null) ? -1 : Checkpoint.getZoneBits(zone);
+                if (zone != null) {
+                    count++;
+                }
+            }
+            out.writeShort(count);
+            for (int z = 1; z <= Const.MAX_ZONES; z++) {
+                if (zoneBits[z - 1] >= 0) {
+                    out.writeByte(z - 1);
+                    out.writeByte(zoneBits[z - 1]);
+                }
+            }
+            for (int p = 1; p <= Const.MAX_PARTITIONS; p++) {
+                partitionBits[p - 1] = Checkpoint.getPartitionBits(panel.getPartition(p));
+                out.writeShort(partitionBits[p - 1]);
+            }
+            systemBits = Checkpoint.getSystemBits(panel);
+            out.writeByte(systemBits);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error encoding journal keyframe!", ex);
+        }
+        add(new Record(currentDay, now, true, bytes.toByteArray()));
+    }
+
+    /**
+     * Buffers a record, the first one buffered schedules the append
+     * @param record record
+     */
+    private void add(Record record) {
+        boolean schedule;
+        synchronized (pending) {
+            schedule = pending.isEmpty();
+            pending.add(record);
+        }
+        if (schedule) {
+            PanelContext.TIMER.schedule(() -> PanelContext.WORKERS.execute(this::flush),
+                    FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Appends the buffered records to their segment files (and the keyframe
+     * offsets to the segment indexes)
+     */
+    private void flush() {
+        synchronized (writeLock) {
+            List<Record> records;
+            synchronized (pending) {
+                records = new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            int i = 0;
+            while (i < records.size()) {
+                long day = records.get(i).day;
+                File segment = getSegment(day);
+                boolean isNew = segment.exists() == false;
+                if (isNew == false && day != checkedDay) {
+                    try {
+                        isNew = repair(segment) == false;
+                    } catch (IOException ex) {
+                        Log.print(Level.ERROR, "Error checking journal! " + ex.getMessage());
+                        return;
+                    }
+                }
+                checkedDay = day;
+                try (DataOutputStream data = new DataOutputStream(new FileOutputStream(segment, true));
+                        DataOutputStream index = new DataOutputStream(new FileOutputStream(getIndex(segment), true))) {
+                    long offset = segment.length();
+                    if (isNew) {
+                        data.writeInt(MAGIC);
+                        data.writeByte(VERSION);
+                        offset += HEADER;
+                    }
+                    for (; i < records.size() && records.get(i).day == day; i++) {
+                        Record record = records.get(i);
+                        if (record.isKeyframe) {
+                            index.writeLong(record.time);
+                            index.writeLong(offset);
+                        }
+                        data.writeShort(record.data.length);
+                        data.write(record.data);
+                        data.writeInt(checksum(record.data));
+                        offset += record.data.length + FRAMING;
+                    }
+                } catch (IOException ex) {
+                    Log.print(Level.ERROR, "Error writing journal! " + ex.getMessage());
+                    return;
+                }
+                if (isNew) {
+                    prune(day);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the panel state at a moment: finds the segment holding the
+     * moment (or the last one before it), seeks to the last keyframe at or
+     * before the moment and replays the records up to it
+     * @param time moment (milliseconds since the epoch)
+     * @return state or null if the journal has nothing that early (or on error)
+     */
+    public State getStateAt(long time) {
+        if (directory == null) {
+            return null;
+        }
+        synchronized (writeLock) {
+            flush();
+            long day = Math.floorDiv(time, DAY);
+            for (long segmentDay : getDays()) {
+                if (segmentDay > day) {
+                    continue;
+                }
+                try {
+                    State state = replay(getSegment(segmentDay), segmentDay, time);
+                    if (state != null) {
+                        return state;
+                    }
+                } catch (IOException ex) {
+                    Log.print(Level.WARN, "Error reading journal! " + ex.getMessage());
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replays one segment from its last complete keyframe at or before a
+     * moment (a keyframe torn by a crash is skipped for the one before it)
+     * @param segment segment file
+     * @param day segment day
+     * @param time moment
+     * @return state or null if the segment has no complete keyframe that early
+     * @throws IOException on read error
+     */
+    private State replay(File segment, long day, long time) throws IOException {
+        long[] entries = readIndex(getIndex(segment));
+        for (int keyframe = findKeyframe(entries, time); keyframe >= 0; keyframe--) {
+            State state = replay(segment, day, entries[keyframe * 2 + 1], time);
+            if (state != null) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replays one segment from a keyframe up to a moment
+     * @param segment segment file
+     * @param day segment day
+     * @param offset keyframe offset
+     * @param time moment
+     * @return state or null if the keyframe is torn or past the end
+     * @throws IOException on read error
+     */
+    private State replay(File segment, long day, long offset, long time) throws IOException {
+        State state = new State();
+        boolean isKeyframeRead = false;
+        try (InputStream file = new FileInputStream(segment);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            if (file.skip(offset) != offset) {
+                return null;
+            }
+            while (true) {
+                byte[] payload = readRecord(in);
+                if (payload == null) {
+                    break;  // end of the segment or a torn record
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                int type = record.readUnsignedByte();
+                long recordTime = day * DAY + record.readInt();
+                if (recordTime > time) {
+                    break;
+                }
+                state.time = recordTime;
+                isKeyframeRead = true;
+                switch (type) {
+                    case KEYFRAME:
+                        Arrays.fill(state.zoneBits, -1);
+                        for (int count = record.readUnsignedShort(); count > 0; count--) {
+                            int z = record.readUnsignedByte();
+                            state.zoneBits[z] = record.readUnsignedByte();
+                        }
+                        for (int p = 0; p < Const.MAX_PARTITIONS; p++) {
+                            state.partitionBits[p] = record.readUnsignedShort();
+                        }
+                        state.systemBits = record.readUnsignedByte();
+                        break;
+                    case ZONE:
+                        int z = record.readUnsignedByte();
+                        state.zoneBits[z] = record.readUnsignedByte();
+                        break;
+                    case PARTITION:
+                        int p = record.readUnsignedByte();
+                        state.partitionBits[p] = record.readUnsignedShort();
+                        break;
+                    case SYSTEM:
+                        state.systemBits = record.readUnsignedByte();
+                        break;
+                    default:
+                        throw new IOException("Unknown journal record (" + type + ")");
+                }
+            }
+        }
+        return isKeyframeRead ? state : null;
+    }
+
+    /**
+     * Finds the last keyframe at or before a moment (binary search of the
+     * segment index)
+     * @param entries segment index (see readIndex)
+     * @param time moment
+     * @return keyframe number or -1 if none
+     */
+    private static int findKeyframe(long[] entries, long time) {
+        int lo = 0, hi = entries.length / 2 - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (entries[mid * 2] <= time) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads a segment index (a torn last entry is ignored)
+     * @param index index file
+     * @return time and offset of each keyframe (empty if no index)
+     * @throws IOException on read error
+     */
+    private static long[] readIndex(File index) throws IOException {
+        if (index.exists() == false) {
+            return new long[0];
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            long[] entries = new long[(int) (index.length() / 16) * 2];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = in.readLong();
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Reads one record: length (2 bytes) + data + CRC32 of the data (4 bytes)
+     * @param in input at the start of a record
+     * @return record data or null at the end of the segment or if the record
+     * is torn or corrupt
+     * @throws IOException on read error
+     */
+    private static byte[] readRecord(DataInput in) throws IOException {
+        try {
+            int length = in.readUnsignedShort();
+            if (length == 0) {
+                return null;  // zeros past the last record written
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return (in.readInt() == checksum(data)) ? data : null;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Truncates a segment written by an earlier run to its last complete
+     * record, and its index to the keyframes before that, so new records do
+     * not follow a torn one. Checks forward from the last indexed keyframe
+     * that is complete, or from the start of the segment.
+     * @param segment segment file
+     * @return false if the segment header is not valid (the segment and its
+     * index are emptied, to start over)
+     * @throws IOException on read or write error
+     */
+    private static boolean repair(File segment) throws IOException {
+        File index = getIndex(segment);
+        long[] entries = readIndex(index);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            if (file.length() < HEADER || file.readInt() != MAGIC || file.readUnsignedByte() != VERSION) {
+                Log.print(Level.WARN, "Invalid journal " + segment.getName() + ", starting over");
+                file.setLength(0);
+                truncate(index, 0);
+                return false;
+            }
+
+            int keyframes = entries.length / 2;
+            long end = HEADER;
+            for (; keyframes >= 0; keyframes--) {
+                long start = (keyframes > 0) ? entries[keyframes * 2 - 1] : HEADER;
+                if (keyframes > 0) {
+                    file.seek(start);
+                    if (start > file.length() || readRecord(file) == null) {
+                        continue;  // keyframe torn (or past the end), check from the one before
+                    }
+                }
+                file.seek(start);
+                end = start;
+                while (readRecord(file) != null) {
+                    end = file.getFilePointer();
+                }
+                break;
+            }
+            if (end < file.length()) {
+                Log.print(Level.WARN, "Journal " + segment.getName() + " truncated after "
+                        + end + " of " + file.length() + " bytes (torn record)");
+                file.setLength(end);
+            }
+            truncate(index, keyframes * 16L);
+        }
+        return true;
+    }
+
+    /**
+     * Truncates a file if it is longer than a length
+     * @param file file
+     * @param length length
+     * @throws IOException on write error
+     */
+    private static void truncate(File file, long length) throws IOException {
+        if (file.exists() && file.length() > length) {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.setLength(length);
+            }
+        }
+    }
+
+    /**
+     * Gets the days that have a segment, newest first
+     * @return days (since the epoch)
+     */
+    private long[] getDays() {
+        String prefix = "journal" + context.number + "-";
+        String[] names = new File(directory).list((dir, name) ->
+                name.startsWith(prefix) && name.endsWith(".bin"));
+        if (names == null) {
+            return new long[0];
+        }
+        List<Long> days = new ArrayList<>();
+        for (String name : names) {
+            try {
+                days.add(LocalDate.parse(name.substring(prefix.length(), name.length() - 4),
+                        DAY_FORMAT).toEpochDay());
+            } catch (DateTimeParseException ex) {
+                // not a segment
+            }
+        }
+        return days.stream().mapToLong(Long::longValue).map(d -> -d).sorted().map(d -> -d).toArray();
+    }
+
+    /**
+     * Deletes the segments past the retention period
+     * @param today current day
+     */
+    private void prune(long today) {
+        for (long day : getDays()) {
+            if (day < today - RETENTION_DAYS) {
+                File segment = getSegment(day);
+                if (segment.delete() == false || getIndex(segment).delete() == false) {
+                    Log.print(Level.WARN, "Unable to delete old journal " + segment.getName());
+                }
+            }
+        }
+    }
+
+    private File getSegment(long day) {
+        return new File(directory + "journal" + context.number + "-"
+                + LocalDate.ofEpochDay(day).format(DAY_FORMAT) + ".bin");
+    }
+
+    private static File getIndex(File segment) {
+        String path = segment.getPath();
+        return new File(path.substring(0, path.length() - 4) + ".idx");
+    }
+}
@@ -34,13 +34,14 @@ public class Log {
     }
 
     /**
-     * Log message and optionally print to console
+     * Log message and optionally print to console (called from many threads,
+     * one at a time so no message is written while the file is switched)
      * @param level message severity
      * @param message message string
      * @param console true = always print to console, false = only prints to
      * console if debug is turned on in this class.
      */
-    public static void print(Level level, String message, boolean console) {
+    public static synchronized void print(Level level, String message, boolean console) {
 
         if (console) {
             System.out.println(message);
@@ -0,0 +1,161 @@
+package bungalowserver;
+
+import java.util.Arrays;
+
+/**
+ * Reminds about doors and windows left open. A timer is armed on the shared
+ * timing wheel when a door or window zone faults and cancelled when it goes
+ * ready, each threshold reached reports an "open for N minutes" event and
+ * arms the timer for the next threshold. All methods run on the panel core
+ * thread.
+ */
+public class OpenZoneMonitor {
+
+    // Default reminder thresholds (minutes open)
+    private static final int[] DEFAULT_THRESHOLDS = {10, 30, 60, 120, 240};
+
+    private final PanelContext context;
+    private int[] thresholds = DEFAULT_THRESHOLDS;
+
+    // Per zone: pending timer, when it was opened and the next threshold
+    private final TimingWheel.Timeout[] timers = new TimingWheel.Timeout[Const.MAX_ZONES];
+    private final long[] openedTime = new long[Const.MAX_ZONES];
+    private final int[] nextThreshold = new int[Const.MAX_ZONES];
+
+    /**
+     * Constructor
+     * @param context panel the zones belong to
+     */
+    public OpenZoneMonitor(PanelContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Sets the reminder thresholds (from the settings file)
+     * @param minutes thresholds in minutes (any order, duplicates ignored)
+     * @return true on success, false if any threshold is not positive
+     */
+    public boolean setThresholds(int... minutes) {
+        int[] sorted = Arrays.stream(minutes).sorted().distinct().toArray();
+        if (sorted.length == 0 || sorted[0] < 1) {
+            return false;
+        }
+        thresholds = sorted;
+        return true;
+    }
+
+    /**
+     * Gets the settings string to save to the settings file
+     * @return settings line (with line separator)
+     */
+    public String getSettingsString() {
+        StringBuilder sb = new StringBuilder("  OPEN_MINUTES");
+        for (int minutes : thresholds) {
+            sb.append(' ').append(minutes);
+        }
+        return sb.append(System.lineSeparator()).toString();
+    }
+
+    /**
+     * Arms the timers for the doors and windows already open when the virtual
+     * panel was built (timed from now since the open time is unknown)
+     */
+    public void start() {
+        for (int z = 1; z <= Const.MAX_ZONES; z++) {
+            Zone zone = context.zones.getZone(z);
+            if (zone != null && zone.isFaulted && isMonitored(zone)) {
+                arm(zone);
+            }
+        }
+    }
+
+    /**
+     * Call when the faulted state of a zone changed (after the zone was updated)
+     * @param zone zone
+     */
+    public void zoneFaultChanged(Zone zone) {
+        if (isMonitored(zone) == false) {
+            return;
+        }
+        if (zone.isFaulted) {
+            arm(zone);
+        } else {
+            cancel(zone);
+        }
+    }
+
+    /**
+     * Gets how long a zone has been open
+     * @param zone zone
+     * @return minutes open, 0 if not open
+     */
+    public int getOpenMinutes(Zone zone) {
+        if (zone.isFaulted == false || openedTime[zone.number - 1] == 0) {
+            return 0;
+        }
+        return (int) ((System.currentTimeMillis() - openedTime[zone.number - 1]) / 60000);
+    }
+
+    private static boolean isMonitored(Zone zone) {
+        return zone.type == Const.ZONE_TYPE_DOOR || zone.type == Const.ZONE_TYPE_WINDOW;
+    }
+
+    /**
+     * Starts timing a zone that just opened
+     * @param zone zone
+     */
+    private void arm(Zone zone) {
+        cancel(zone);
+        openedTime[zone.number - 1] = System.currentTimeMillis();
+        nextThreshold[zone.number - 1] = 0;
+        schedule(zone);
+    }
+
+    /**
+     * Stops timing a zone
+     * @param zone zone
+     */
+    private void cancel(Zone zone) {
+        TimingWheel.Timeout timer = timers[zone.number - 1];
+        if (timer != null) {
+            timer.cancel();
+            timers[zone.number - 1] = null;
+        }
+        openedTime[zone.number - 1] = 0;
+    }
+
+    /**
+     * Schedules the timer for the next threshold of a zone
+     * @param zone zone
+     */
+    private void schedule(Zone zone) {
+        int i = zone.number - 1;
+        long due = openedTime[i] + thresholds[nextThreshold[i]] * 60000L;
+        long delay = Math.max(0, due - System.currentTimeMillis());
+
+        // The wheel runs the task on the timer thread, handle it on the core
+        TimingWheel.Timeout[] timer = new TimingWheel.Timeout[1];
+        timer[0] = PanelContext.WHEEL.schedule(() -> context.core.execute(() -> {
+            if (timers[i] == timer[0]) {
+                expired(zone);
+            }
+        }), delay);
+        timers[i] = timer[0];
+    }
+
+    /**
+     * A threshold was reached: reports it and schedules the next one
+     * @param zone zone
+     */
+    private void expired(Zone zone) {
+        int i = zone.number - 1;
+        timers[i] = null;
+        if (zone.isFaulted == false) {
+            return;
+        }
+        context.panel.reportZoneOpen(zone, thresholds[nextThreshold[i]]);
+        if (++nextThreshold[i] < thresholds.length) {
+            schedule(zone);
+        }
+    }
+}
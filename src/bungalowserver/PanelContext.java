@@ -0,0 +1,183 @@
+package bungalowserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything belonging to one panel (one serial port): the panel core,
+ * serial handler, virtual panel, zones, rules, event log, checkpoint,
+ * journal, reconciler, zone coalescer, open zone monitor, alarm notifier,
+ * client subscriptions and query responses. Several panels can be hosted in
+ * one server, each SERIAL block in the settings file starts a new panel. The
+ * worker, serial write and timer threads are shared by all panels.
+ */
+public class PanelContext {
+
+    // Worker and serial write thread counts (the pools never grow past them)
+    private static final int WORKER_THREADS = 8;
+    private static final int SERIAL_THREADS = 8;
+
+    /**
+     * Worker threads shared by all panels (panel commands, command
+     * completions, background reconciliation and checkpoint saves). Tasks
+     * queue when all threads are busy, so a task must not wait on another
+     * worker task.
+     */
+    public static final ExecutorService WORKERS = newPool(WORKER_THREADS, WORKER_THREADS,
+            new LinkedBlockingQueue<>());
+
+    /**
+     * Serial port writes of all panels (see SerialHandler.serialSend). Each
+     * panel has at most one write in flight, more threads are only taken by
+     * writes that hung past their timeout, a write is rejected once all are.
+     */
+    public static final ExecutorService SERIAL_WRITES = newPool(0, SERIAL_THREADS,
+            new SynchronousQueue<>());
+
+    /**
+     * Timer shared by all panels, scheduled tasks must be short (hand longer
+     * work to WORKERS)
+     */
+    public static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Timing wheel shared by all panels for long timers (one second
+     * resolution, driven by TIMER)
+     */
+    public static final TimingWheel WHEEL = new TimingWheel(1000, 512);
+
+    static {
+        WHEEL.start(TIMER);
+    }
+
+    private static final List<PanelContext> PANELS = new ArrayList<>();
+
+    // Panel number (1..) in settings file order
+    public final int number;
+
+    // Panel name (from the settings file, defaults to "Panel n")
+    public String name;
+
+    public final PanelCore core;
+    public final SerialHandler serial;
+    public final VirtualPanel panel;
+    public final Zones zones;
+    public final Rules rules;
+    public final EventLog eventLog;
+    public final Checkpoint checkpoint;
+    public final Journal journal;
+    public final Reconciler reconciler;
+    public final ZoneCoalescer coalescer;
+    public final OpenZoneMonitor openZones;
+    public final AlarmNotifier alarms;
+    public final Subscriptions subscriptions;
+    public final QueryResponses queries;
+
+    /**
+     * Constructor
+     * @param number panel number (1..)
+     */
+    private PanelContext(int number) {
+        this.number = number;
+        this.name = "Panel " + number;
+        core = new PanelCore(this);
+        serial = new SerialHandler();
+        zones = new Zones(this);
+        rules = new Rules(this);
+        eventLog = new EventLog(this);
+        checkpoint = new Checkpoint(this);
+        journal = new Journal(this);
+        reconciler = new Reconciler(this);
+        coalescer = new ZoneCoalescer(this);
+        openZones = new OpenZoneMonitor(this);
+        alarms = new AlarmNotifier(this);
+        subscriptions = new Subscriptions(this);
+        queries = new QueryResponses(this);
+        panel = new VirtualPanel(this);
+    }
+
+    /**
+     * Creates a thread pool whose threads end after a minute idle
+     * @param threads threads started before tasks are queued
+     * @param maxThreads most threads (tasks are rejected when all are busy
+     * and the queue is full)
+     * @param queue tasks waiting for a thread
+     * @return executor
+     */
+    private static ExecutorService newPool(int threads, int maxThreads, BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, maxThreads, 60, TimeUnit.SECONDS, queue);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Adds a new panel
+     * @return the new panel
+     */
+    public static synchronized PanelContext add() {
+        PanelContext context = new PanelContext(PANELS.size() + 1);
+        PANELS.add(context);
+        return context;
+    }
+
+    /**
+     * Removes all panels (before restoring settings)
+     */
+    public static synchronized void clear() {
+        PANELS.clear();
+    }
+
+    /**
+     * Gets all panels
+     * @return unmodifiable list of panels in settings file order
+     */
+    public static synchronized List<PanelContext> getAll() {
+        return Collections.unmodifiableList(new ArrayList<>(PANELS));
+    }
+
+    /**
+     * Gets a panel
+     * @param number panel number (1..)
+     * @return panel or null if there is no such panel
+     */
+    public static synchronized PanelContext get(int number) {
+        if (number < 1 || number > PANELS.size()) {
+            return null;
+        }
+        return PANELS.get(number - 1);
+    }
+
+    /**
+     * Gets the panel clients use until they select another
+     * @return first panel or null if there are none
+     */
+    public static PanelContext getDefault() {
+        return get(1);
+    }
+
+    /**
+     * Gets the number of panels
+     * @return panel count
+     */
+    public static synchronized int getCount() {
+        return PANELS.size();
+    }
+
+    /**
+     * Gets a prefix for email subjects and speech so the panel can be told
+     * apart when more than one panel is hosted
+     * @return panel name and a space, or empty if only one panel
+     */
+    public String getPrefix() {
+        return (getCount() > 1) ? name + " " : "";
+    }
+}
@@ -0,0 +1,276 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Single-writer core of one panel. One thread owns the virtual panel and
+ * zone state: decoded frames from the serial port and client commands are
+ * queued in a mailbox and run one at a time on this thread, so the state is
+ * never changed concurrently. Whenever the mailbox drains a new snapshot is
+ * published if anything changed, other threads read the published snapshot.
+ * Nothing run here may block on the serial link (the response it waits for
+ * would be queued behind it), commands hand their serial I/O to the worker
+ * threads and post the outcome back here. The mailbox has an urgent lane
+ * (partition and system status, which carry the alarms) that is always
+ * served before the normal lane, so an alarm is never handled behind a
+ * flood of zone status frames. Each lane keeps its own order, but frames of
+ * different lanes can be handled out of arrival order: a partition status
+ * received after a zone status may be applied before it, so code run for a
+ * zone frame (ZoneCoalescer.isAlarmRelevant, AlarmNotifier) can already see
+ * the partition state of a later frame.
+ */
+public class PanelCore {
+
+    private final PanelContext context;
+    // Backlog of the normal lane above which low priority work is shed
+    private static final int BUSY_BACKLOG = 16;
+
+    // Mailbox lanes (guarded by themselves, urgent is also the wait lock)
+    private final Queue<Runnable> urgent = new ArrayDeque<>();
+    private final Queue<Runnable> mailbox = new ArrayDeque<>();
+    private final AtomicLong taskCount = new AtomicLong();
+    private Thread thread = null;
+
+    // Run on worker threads after the next publish (only accessed on the core thread)
+    private final List<Runnable> afterPublish = new ArrayList<>();
+
+    // Trace of the first frame handled since the last publish (only accessed
+    // on the core thread)
+    private Trace trace = Trace.NONE;
+
+    // Only changed on the core thread
+    private volatile PanelSnapshot snapshot = new PanelSnapshot(0, "", "", "", "", "", Trace.NONE);
+
+    /**
+     * Constructor
+     * @param context panel this core owns
+     */
+    public PanelCore(PanelContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Starts the core thread (tasks queued before this run once started)
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run, "PanelCore" + context.number);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a task to run on the core thread
+     * @param task task (must not block on the serial link)
+     */
+    public void execute(Runnable task) {
+        synchronized (urgent) {
+            mailbox.add(task);
+            urgent.notifyAll();
+        }
+    }
+
+    /**
+     * Queues a task to run on the core thread ahead of the normal tasks
+     * @param task task (must not block on the serial link)
+     */
+    public void executeUrgent(Runnable task) {
+        synchronized (urgent) {
+            urgent.add(task);
+            urgent.notifyAll();
+        }
+    }
+
+    /**
+     * Checks if the core is backlogged, low priority work (like hex dumps of
+     * zone frames) should be skipped
+     * @return true if many tasks are waiting
+     */
+    public boolean isBusy() {
+        synchronized (urgent) {
+            return mailbox.size() + urgent.size() > BUSY_BACKLOG;
+        }
+    }
+
+    /**
+     * Queues a task to run on the core thread and returns its result as a
+     * future. The future is completed on a worker thread so callers never
+     * run their continuations on the core thread.
+     * @param <T> result type
+     * @param task task (must not block on the serial link)
+     * @return future completed with the task result
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                T result = task.get();
+                PanelContext.WORKERS.execute(() -> future.complete(result));
+            } catch (RuntimeException ex) {
+                PanelContext.WORKERS.execute(() -> future.completeExceptionally(ex));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs a task on the core thread and waits for its result (runs it
+     * directly if already on the core thread). Unlike submit the result is
+     * handed over on the core thread, so a caller on a worker thread never
+     * waits for another worker.
+     * @param <T> result type
+     * @param task task (must not block on the serial link)
+     * @return task result
+     */
+    public <T> T call(Supplier<T> task) {
+        if (isCoreThread()) {
+            return task.get();
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                future.complete(task.get());
+            } catch (RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for the panel core!", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Runs a task on a worker thread once the current state is published, so
+     * it sees the state in the snapshot. Call on the core thread.
+     * @param task task
+     */
+    public void afterPublish(Runnable task) {
+        afterPublish.add(task);
+    }
+
+    /**
+     * Notes the latency trace of a frame being handled, the next snapshot
+     * carries the trace of the first frame since the last publish. Call on
+     * the core thread.
+     * @param frame latency trace (Trace.NONE is ignored)
+     */
+    public void trace(Trace frame) {
+        if (trace == Trace.NONE) {
+            trace = frame;
+        }
+    }
+
+    /**
+     * Checks if the current thread is the core thread
+     * @return true if on the core thread
+     */
+    public boolean isCoreThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Gets the most recently published snapshot
+     * @return snapshot (never null)
+     */
+    public PanelSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Gets the number of tasks run since startup
+     * @return task count
+     */
+    public long getTaskCount() {
+        return taskCount.get();
+    }
+
+    /**
+     * Core thread: runs the mailbox tasks in order (urgent lane first),
+     * publishes a snapshot each time the mailbox drains
+     */
+    private void run() {
+        while (true) {
+            Runnable task;
+            boolean drained;
+            synchronized (urgent) {
+                try {
+                    while (urgent.isEmpty() && mailbox.isEmpty()) {
+                        urgent.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                task = urgent.isEmpty() ? mailbox.poll() : urgent.poll();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Log.print(Level.ERROR, context.name + " core task failed! " + ex.getMessage());
+            }
+            taskCount.incrementAndGet();
+            synchronized (urgent) {
+                drained = urgent.isEmpty() && mailbox.isEmpty();
+            }
+            if (drained) {
+                publish();
+                for (Runnable next : afterPublish) {
+                    PanelContext.WORKERS.execute(next);
+                }
+                afterPublish.clear();
+            }
+        }
+    }
+
+    /**
+     * Publishes a new snapshot if the client-visible state changed, and the
+     * changes to the subscribed clients
+     */
+    private void publish() {
+        Trace frame = trace;
+        trace = Trace.NONE;
+        String securityStatus;
+        String zoneStatus;
+        String pending;
+        String eventLog;
+        String eventLogChanges;
+        try {
+            securityStatus = context.panel.getSecurityStatusForClient();
+            zoneStatus = context.zones.getStatusForClient();
+            pending = context.panel.getPendingForClient();
+            synchronized (context.eventLog) {
+                eventLog = context.eventLog.getLogForClient();
+                eventLogChanges = context.eventLog.takeChangesForClient();
+            }
+        } catch (RuntimeException ex) {
+            return;  // zones not built yet
+        }
+        PanelSnapshot current = snapshot;
+        if (securityStatus.equals(current.securityStatus) == false
+                || zoneStatus.equals(current.zoneStatus) == false
+                || pending.equals(current.pending) == false
+                || eventLog.equals(current.eventLog) == false) {
+            snapshot = new PanelSnapshot(current.version + 1, securityStatus, zoneStatus, pending,
+                    eventLog, eventLogChanges, frame);
+            context.queries.published(snapshot);
+            context.subscriptions.published(current, snapshot);
+        }
+    }
+}
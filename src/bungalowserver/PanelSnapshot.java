@@ -0,0 +1,52 @@
+package bungalowserver;
+
+/**
+ * Immutable snapshot of a panel's client-visible state, published by the
+ * panel core whenever the state changed. Threads other than the panel core
+ * read state from here instead of the live virtual panel and zones.
+ */
+public class PanelSnapshot {
+
+    // Incremented each time a changed snapshot is published
+    public final long version;
+
+    // Security status string to send to clients (see VirtualPanel)
+    public final String securityStatus;
+
+    // Zone status string to send to clients (see Zones)
+    public final String zoneStatus;
+
+    // Commands accepted but not yet confirmed (see VirtualPanel.getPendingForClient)
+    public final String pending;
+
+    // Event log string to send to clients (see EventLog)
+    public final String eventLog;
+
+    // Event log changes since the previous snapshot (see EventLog.takeChangesForClient)
+    public final String eventLogChanges;
+
+    // Latency trace of the first frame that changed the state (Trace.NONE if
+    // the change did not come from a frame)
+    public final Trace trace;
+
+    /**
+     * Constructor
+     * @param version snapshot version
+     * @param securityStatus security status string
+     * @param zoneStatus zone status string
+     * @param pending pending commands string
+     * @param eventLog event log string
+     * @param eventLogChanges event log changes string
+     * @param trace latency trace
+     */
+    public PanelSnapshot(long version, String securityStatus, String zoneStatus, String pending,
+            String eventLog, String eventLogChanges, Trace trace) {
+        this.version = version;
+        this.securityStatus = securityStatus;
+        this.zoneStatus = zoneStatus;
+        this.pending = pending;
+        this.eventLog = eventLog;
+        this.eventLogChanges = eventLogChanges;
+        this.trace = trace;
+    }
+}
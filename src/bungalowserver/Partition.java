@@ -0,0 +1,67 @@
+package bungalowserver;
+
+/**
+ * Represents a single partition
+ */
+public class Partition {
+
+    //<editor-fold defaultstate="collapsed" desc="Partition variables">
+
+    // Partition number (1-8)
+    public int number = 1;
+
+    // Has the panel reported status for this partition?
+    public boolean isValid = false;
+
+    // Armed in any mode
+    public boolean isArmed = false;
+
+    // Stay mode (can be on or off along with Armed)
+    public boolean isArmedStay = false;
+
+    // Instant mode (can be on or off along with Armed)
+    public boolean isArmedInstant = false;
+
+    public boolean isSirenOn = false;
+    public boolean isSteadySirenOn = false;
+    public boolean isFireAlarmOn = false;
+    public boolean isBurglaryAlarmOn = false;
+    public boolean isReadyToArm = false;
+    public boolean isReadyToForceArm = false;
+    public boolean isTimingEntry = false;
+    public boolean isSensorError = false;
+
+    //</editor-fold>
+
+    /**
+     * Constructor
+     * @param partitionNumber
+     */
+    public Partition(int partitionNumber) {
+        this.number = partitionNumber;
+    }
+
+    /**
+     * Gets the security status character for this partition
+     * (one of the Const.SEC_ values)
+     * @return security status character
+     */
+    public char getSecurityStatus() {
+        if (isBurglaryAlarmOn) {
+            return Const.SEC_BURGLARY;
+        } else if (isFireAlarmOn) {
+            return Const.SEC_FIRE;
+        } else if (isArmedInstant) {
+            return Const.SEC_ARMED_STAY_INSTANT;
+        } else if (isArmedStay) {
+            return Const.SEC_ARMED_STAY;
+        } else if (isArmed) {
+            return Const.SEC_ARMED_AWAY;
+        } else if (isReadyToForceArm) {
+            return Const.SEC_READY_TO_FORCE_ARM;
+        } else if (isReadyToArm) {
+            return Const.SEC_READY_TO_ARM;
+        }
+        return Const.SEC_NOT_READY;
+    }
+}
@@ -0,0 +1,249 @@
+package bungalowserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Query responses (QRY and QRA) of one panel, built once and shared by all
+ * clients. The status sections come from the published snapshot, the QRA
+ * header sections (email settings, zone names and types, phrases, rules)
+ * are cached by their owners with a version that changes when they change.
+ * A response is rebuilt only when the snapshot or one of those versions
+ * changed, so a client request costs the encryption and little else (many
+ * clients reconnect at once after an outage).
+ * <p>
+ * The recently published snapshots are kept so a polling client can ask for
+ * the changes since the state it last saw (QRY=tttt, see getDelta) instead
+ * of the whole state.
+ */
+public class QueryResponses {
+
+    /**
+     * A built response and what it was built from
+     */
+    private static class Response {
+        final PanelSnapshot snapshot;
+        final String header;
+        final String text;
+
+        Response(PanelSnapshot snapshot, String header, String text) {
+            this.snapshot = snapshot;
+            this.header = header;
+            this.text = text;
+        }
+    }
+
+    // Number of recent snapshots kept for delta queries
+    private static final int HISTORY = 64;
+
+    private final PanelContext context;
+
+    // Recent snapshots indexed by version % HISTORY (set on the core thread)
+    private final AtomicReferenceArray<PanelSnapshot> history = new AtomicReferenceArray<>(HISTORY);
+
+    // Random per run so a token from before a restart is not mistaken for
+    // a current one
+    private final String epoch = Base80.encodeWide(ThreadLocalRandom.current().nextInt(6400));
+
+    // Indexed by (query all ? 2 : 0) + (pending ? 1 : 0)
+    private final AtomicReferenceArray<Response> responses = new AtomicReferenceArray<>(4);
+
+    // QRA header and the versions it was built from (guarded by this)
+    private String header = null;
+    private int emailVersion = -1;
+    private int namesVersion = -1;
+    private int rulesVersion = -1;
+
+    /**
+     * Constructor
+     * @param context panel the responses belong to
+     */
+    public QueryResponses(PanelContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Gets a query response (plain text)
+     * @param isQueryAll true for QRA, false for QRY
+     * @param isPending true to append the pending commands
+     * @return response
+     */
+    public String get(boolean isQueryAll, boolean isPending) {
+        PanelSnapshot snapshot = context.core.getSnapshot();
+        String head = isQueryAll ? getHeader() : null;
+        int index = (isQueryAll ? 2 : 0) + (isPending ? 1 : 0);
+        Response response = responses.get(index);
+        if (response != null && response.snapshot == snapshot && response.header == head) {
+            return response.text;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        if (isQueryAll) {
+            sb.append("QRA=").append(head);
+        } else {
+            sb.append("QRY=");
+        }
+        sb.append(snapshot.securityStatus).append("$");
+        sb.append(snapshot.zoneStatus).append("$");
+        sb.append(snapshot.eventLog);
+        if (isPending) {
+            sb.append("$").append(snapshot.pending);
+        }
+        String text = sb.toString();
+        responses.set(index, new Response(snapshot, head, text));
+        return text;
+    }
+
+    /**
+     * Call on the core thread after publishing a changed snapshot, keeps it
+     * for delta queries
+     * @param snapshot snapshot published
+     */
+    public void published(PanelSnapshot snapshot) {
+        history.set((int) (snapshot.version % HISTORY), snapshot);
+    }
+
+    /**
+     * Gets the token of a snapshot that the client sends back in a delta
+     * query: epoch (wide base80) + sequence (see Subscriptions.getSequence)
+     * @param snapshot snapshot
+     * @return token (4 chars)
+     */
+    public String getToken(PanelSnapshot snapshot) {
+        return epoch + Subscriptions.getSequence(snapshot);
+    }
+
+    /**
+     * Gets the response to a delta query (plain text), the changes since the
+     * snapshot of a token:
+     * QRD=tttt if nothing changed,
+     * QRD=tttt$s$z$e with the changes (as DLT=, see Subscriptions.published)
+     * or QRF=tttt$status$zones$log (the whole state) if the token is unknown,
+     * too old or the zones were rebuilt. tttt = token of the current state,
+     * the pending commands are appended with $ if requested.
+     * @param token token the client last received
+     * @param isPending true to append the pending commands
+     * @return response
+     */
+    public String getDelta(String token, boolean isPending) {
+        PanelSnapshot current = context.core.getSnapshot();
+        PanelSnapshot previous = getSnapshot(token, current);
+        StringBuilder sb = new StringBuilder();
+        String changes = (previous == null) ? null : getEventLogChanges(previous, current);
+
+        if (previous == current) {
+            sb.append("QRD=").append(getToken(current));
+        } else if (changes == null || previous.zoneStatus.length() != current.zoneStatus.length()) {
+            sb.append("QRF=").append(getToken(current)).append("$");
+            sb.append(current.securityStatus).append("$");
+            sb.append(current.zoneStatus).append("$");
+            sb.append(current.eventLog);
+        } else {
+            sb.append("QRD=").append(getToken(current)).append("$");
+            Subscriptions.appendDelta(sb, previous, current, changes);
+        }
+        if (isPending && previous != current) {
+            sb.append("$").append(current.pending);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Finds the snapshot of a token among the recent ones
+     * @param token token from the client
+     * @param current current snapshot
+     * @return snapshot or null if unknown or too old
+     */
+    private PanelSnapshot getSnapshot(String token, PanelSnapshot current) {
+        if (token.length() != 4 || token.startsWith(epoch) == false) {
+            return null;
+        }
+        int sequence = Base80.decodeWide(token, 2);
+        if (sequence < 0) {
+            return null;
+        }
+        long age = Math.floorMod(current.version - sequence, 6400);
+        if (age >= HISTORY || age > current.version) {
+            return null;
+        }
+        if (age == 0) {
+            return current;
+        }
+        PanelSnapshot snapshot = history.get((int) ((current.version - age) % HISTORY));
+        return (snapshot != null && snapshot.version == current.version - age) ? snapshot : null;
+    }
+
+    /**
+     * Combines the event log changes of the snapshots after previous up to
+     * current (see EventLog.takeChangesForClient)
+     * @param previous older snapshot
+     * @param current newer snapshot
+     * @return changes, empty if none, null if a snapshot in between is no
+     * longer kept or the encoding changed
+     */
+    private String getEventLogChanges(PanelSnapshot previous, PanelSnapshot current) {
+        if (previous.eventLog.equals(current.eventLog)) {
+            return "";
+        }
+        boolean wide = current.eventLog.length() > 0 && current.eventLog.charAt(0) == Base80.WIDE;
+        boolean wasWide = previous.eventLog.length() > 0 && previous.eventLog.charAt(0) == Base80.WIDE;
+        if (wide != wasWide) {
+            return null;
+        }
+        int size = wide ? 11 : 9;
+
+        // Entries to remove from the head of the previous log, entries to add
+        // (newest first)
+        int removed = 0;
+        List<String> added = new ArrayList<>();
+        for (long v = previous.version + 1; v <= current.version; v++) {
+            PanelSnapshot snapshot = (v == current.version) ? current : history.get((int) (v % HISTORY));
+            if (snapshot == null || snapshot.version != v) {
+                return null;
+            }
+            String changes = snapshot.eventLogChanges;
+            int r = Base80.decode(changes.charAt(0));
+            List<String> entries = new ArrayList<>();
+            for (int pos = 1; pos + size <= changes.length(); pos += size) {
+                entries.add(changes.substring(pos, pos + size));
+            }
+            if (r <= added.size()) {
+                entries.addAll(added.subList(r, added.size()));
+            } else {
+                removed += r - added.size();
+            }
+            added = entries;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(Base80.encodeChar(Math.min(removed, 79)));
+        for (String entry : added) {
+            sb.append(entry);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the QRA header sections, rebuilt only if one changed
+     * @return header (ends with $)
+     */
+    private synchronized String getHeader() {
+        int email = Emailer.getSettingsVersion();
+        int names = context.zones.getNamesVersion();
+        int rules = context.rules.getVersion();
+        if (header == null || email != emailVersion || names != namesVersion || rules != rulesVersion) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(Emailer.getSettingsForClient()).append("$");
+            sb.append(context.zones.getNamesAndTypesForClient()).append("$");
+            sb.append(Speaker.getPhrasesForClient()).append("$");
+            sb.append(context.rules.getRulesForClient()).append("$");
+            header = sb.toString();
+            emailVersion = email;
+            namesVersion = names;
+            rulesVersion = rules;
+        }
+        return header;
+    }
+}
@@ -0,0 +1,216 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background reconciliation of a virtual panel. The virtual panel is only
+ * updated by transition messages, so a corrupted or missed message leaves it
+ * wrong. This periodically requests partition and zone snapshots in idle gaps
+ * on the serial link (one request per step), the virtual panel compares them
+ * to its state and reports any drift here. Drifted zones and partitions are
+ * then re-read with a normal status request, which updates the virtual panel
+ * and reports the corrective events as usual.
+ * The step interval adapts to the serial link utilization and backs off
+ * whenever the link is busy, so this never competes with real commands.
+ */
+public class Reconciler {
+
+    // Link must be quiet this long before a snapshot is requested
+    private static final int IDLE_TIME = 500;  // milliseconds
+
+    // Time between sweep steps (adapts between these limits)
+    private static final int MIN_INTERVAL = 2000;  // milliseconds
+    private static final int MAX_INTERVAL = 60000;  // milliseconds
+
+    // Back off when the link is busier than this (percent of capacity)
+    private static final int BUSY_UTILIZATION = 5;
+
+    private final PanelContext context;
+
+    // Zones and partitions found to differ from the panel, waiting to be re-read
+    private final ConcurrentLinkedQueue<Integer> driftZones = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Integer> driftPartitions = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong driftCount = new AtomicLong();
+    private final AtomicLong sweepCount = new AtomicLong();
+
+    // Only accessed by one step at a time (each step schedules the next)
+    private volatile int interval = MIN_INTERVAL;
+    private volatile int step = 0;  // 0 = partition snapshot, 1.. = zone block + 1
+    private volatile long lastByteCount = 0;
+    private volatile long lastTime = 0;
+
+    /**
+     * Constructor
+     * @param context panel to reconcile
+     */
+    public Reconciler(PanelContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Starts the background reconciliation (call after the virtual panel is
+     * built). If the virtual panel was restored from the checkpoint, a full
+     * sweep is run right away to validate it.
+     */
+    public void start() {
+        lastByteCount = context.serial.getByteCount();
+        lastTime = System.currentTimeMillis();
+        if (context.panel.isRestored()) {
+            PanelContext.WORKERS.execute(() -> {
+                validate();
+                scheduleStep(MAX_INTERVAL);
+            });
+        } else {
+            scheduleStep(MAX_INTERVAL);
+        }
+        Log.print(Level.INFO, "Background reconciliation started", false);
+    }
+
+    /**
+     * Validates the virtual panel restored from the checkpoint: one full
+     * sweep without waiting for idle time, then corrects any drift found
+     */
+    private void validate() {
+        try {
+            long drift = driftCount.get();
+            VirtualPanel panel = context.panel;
+            panel.requestPartitionSnapshot();
+            for (int zone = 1; zone <= context.zones.getScanLimit(); zone += 16) {
+                panel.requestZoneSnapshot(zone);
+            }
+            correctDrift();
+            sweepCount.incrementAndGet();
+            Log.print(Level.INFO, "Checkpoint validated, " + (driftCount.get() - drift)
+                    + " differences corrected");
+        } catch (RuntimeException ex) {
+            Log.print(Level.ERROR, "Checkpoint validation failed! " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Called by the virtual panel when a zone snapshot differs from its state
+     * @param zone zone number (1-192)
+     * @param bits snapshot bits that differ
+     */
+    public void zoneDrift(int zone, int bits) {
+        driftCount.incrementAndGet();
+        Log.print(Level.WARN, String.format("Zone %d differs from panel (bits %X), re-reading", zone, bits), false);
+        if (driftZones.contains(zone) == false) {
+            driftZones.add(zone);
+        }
+    }
+
+    /**
+     * Called by the virtual panel when a partition snapshot differs from its
+     * state
+     * @param partition partition number (1-8)
+     * @param bits snapshot bits that differ
+     */
+    public void partitionDrift(int partition, int bits) {
+        driftCount.incrementAndGet();
+        Log.print(Level.WARN, String.format("Partition %d differs from panel (bits %02X), re-reading", partition, bits), false);
+        if (driftPartitions.contains(partition) == false) {
+            driftPartitions.add(partition);
+        }
+    }
+
+    /**
+     * Gets the number of differences found between the virtual panel and the
+     * panel since startup
+     * @return drift count
+     */
+    public long getDriftCount() {
+        return driftCount.get();
+    }
+
+    /**
+     * Gets the number of completed sweeps (all partitions and zones) since
+     * startup
+     * @return sweep count
+     */
+    public long getSweepCount() {
+        return sweepCount.get();
+    }
+
+    /**
+     * Schedules the next step (the step itself runs on a worker thread since
+     * it waits for the panel)
+     * @param delay milliseconds
+     */
+    private void scheduleStep(int delay) {
+        PanelContext.TIMER.schedule(() -> PanelContext.WORKERS.execute(this::runStep),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs one sweep step then schedules the next
+     */
+    private void runStep() {
+        try {
+            // Re-read anything found to have drifted first
+            correctDrift();
+
+            int response;
+            if (step == 0) {
+                response = context.panel.requestPartitionSnapshotIfIdle(IDLE_TIME);
+            } else {
+                response = context.panel.requestZoneSnapshotIfIdle(step - 1, IDLE_TIME);
+            }
+
+            if (response == SerialHandler.RESPONSE_SKIPPED) {
+                // Link busy, try this step again later
+                interval = Math.min(interval * 2, MAX_INTERVAL);
+            } else {
+                adaptInterval();
+                step++;
+                if (step > (context.zones.getScanLimit() - 1) / 16 + 1) {
+                    step = 0;
+                    sweepCount.incrementAndGet();
+                }
+            }
+        } catch (RuntimeException ex) {
+            Log.print(Level.ERROR, "Reconciliation step failed! " + ex.getMessage(), false);
+            interval = MAX_INTERVAL;
+        }
+
+        scheduleStep(interval);
+    }
+
+    /**
+     * Re-reads the drifted zones and partitions, the virtual panel reports
+     * the corrective events as the status messages arrive
+     */
+    private void correctDrift() {
+        Integer number;
+        while ((number = driftPartitions.poll()) != null) {
+            context.panel.requestPartitionStatus(number);
+        }
+        while ((number = driftZones.poll()) != null) {
+            context.panel.requestZoneStatus(number);
+        }
+    }
+
+    /**
+     * Adjusts the step interval to the link utilization since the last step
+     * (10 bits per byte on the wire)
+     */
+    private void adaptInterval() {
+        long now = System.currentTimeMillis();
+        long bytes = context.serial.getByteCount();
+        long elapsed = Math.max(1, now - lastTime);
+        long utilization = (bytes - lastByteCount) * 10 * 1000 * 100
+                / ((long) context.serial.serialBaudRate * elapsed);
+        lastByteCount = bytes;
+        lastTime = now;
+
+        if (utilization > BUSY_UTILIZATION) {
+            interval = Math.min(interval * 2, MAX_INTERVAL);
+        } else {
+            interval = Math.max(interval / 2, MIN_INTERVAL);
+        }
+    }
+}
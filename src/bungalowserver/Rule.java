@@ -10,7 +10,7 @@ public class Rule {
     // ----- When event -----
     public char whenEvent;
 
-    // When zone (1-63) or 0 if no zone associated with the rule
+    // When zone (1-192) or 0 if no zone associated with the rule
     public int whenZone;
 
     // When hour, 0-23, 0 = midnight, 23 = 11pm
@@ -28,7 +28,7 @@ public class Rule {
     // ----- If condition -----
     public char ifCondition;
 
-    // If zone (1-63) or 0 if no zone associated with the rule
+    // If zone (1-192) or 0 if no zone associated with the rule
     public int ifZone;
 
     // ----- Do task -----
@@ -3,31 +3,50 @@ package bungalowserver;
 import bungalowserver.Log.Level;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Rules class
+ * Rules of one panel
  */
 public class Rules {
 
-    private static final ArrayList<Rule> RULES = new ArrayList<>();
+    private final PanelContext context;
+    private final ArrayList<Rule> rules = new ArrayList<>();
+
+    // Client rules string, dropped when a rule is added or removed and
+    // rebuilt if the zone encoding changed. The version counts the changes.
+    private String rulesString = null;
+    private boolean rulesWide = false;
+    private int version = 0;
+
+    // A rule scan is queued, scans requested meanwhile are merged into it
+    private final AtomicBoolean scanPending = new AtomicBoolean(false);
+
+    /**
+     * Constructor
+     * @param context panel these rules belong to
+     */
+    public Rules(PanelContext context) {
+        this.context = context;
+    }
 
     /**
      * Get the number of defined rules
      * @return
      */
-    public static int getCount() {
-        return RULES.size();
+    public int getCount() {
+        return rules.size();
     }
 
     /**
      * Gets the settings string to save to the settings file
      * @return String of settings to save to file or null if error
      */
-    public static String getSettingsString() {
+    public String getSettingsString() {
         String ls = System.lineSeparator();
         StringBuilder sb = new StringBuilder("RULE_BEGIN" + ls);
 
-        for (Rule rule : RULES) {
+        for (Rule rule : rules) {
 
             sb.append("  RULE Const.WHEN_");
             switch (rule.whenEvent) {
@@ -127,18 +146,23 @@ public class Rules {
     /**
      * Clears all rules
      */
-    public static void clear() {
-        RULES.clear();
+    public void clear() {
+        rules.clear();
+        rulesChanged();
     }
 
     /**
      * Gets a string of all rules to send to the client
      * @return rules string
      */
-    public static String getRulesForClient() {
+    public synchronized String getRulesForClient() {
+        boolean wide = context.zones.isWideEncoding();
+        if (rulesString != null && rulesWide == wide) {
+            return rulesString;
+        }
         StringBuilder sb = new StringBuilder();
         boolean sep = false;
-        for (Rule rule : RULES) {
+        for (Rule rule : rules) {
             if (sep) {
                 sb.append('|');
             } else {
@@ -146,20 +170,43 @@ public class Rules {
             }
             sb.append(getRuleString(rule));
         }
-        return sb.toString();
+        rulesString = sb.toString();
+        rulesWide = wide;
+        return rulesString;
+    }
+
+    /**
+     * Gets the version of the rules, changes each time a rule is added or
+     * removed
+     * @return version
+     */
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * A rule was added or removed, drop the cached client rules string
+     */
+    private synchronized void rulesChanged() {
+        rulesString = null;
+        version++;
     }
 
     /**
      * Gets a single rule string to send to the client
+     * Zone numbers are one base80 char (legacy) or two (wide encoding)
      * @param rule
      * @return rule string
      */
-    private static String getRuleString(Rule rule) {
+    private String getRuleString(Rule rule) {
         StringBuilder sb = new StringBuilder();
-        sb.append(Base80.encode(rule.whenEvent, rule.whenZone, rule.whenHour,
+        sb.append(Base80.encode(rule.whenEvent));
+        sb.append(context.zones.encodeForClient(rule.whenZone));
+        sb.append(Base80.encode(rule.whenHour,
                 rule.whenMinute, rule.whenDayOfWeek, rule.whenDate,
-                rule.ifCondition, rule.ifZone, rule.doTask,
-                rule.doDeviceOrSpeak));
+                rule.ifCondition));
+        sb.append(context.zones.encodeForClient(rule.ifZone));
+        sb.append(Base80.encode(rule.doTask, rule.doDeviceOrSpeak));
         sb.append(',');
         sb.append(rule.doEmailAddress).append(',');
         sb.append(rule.doEmailSubject).append(',');
@@ -171,8 +218,9 @@ public class Rules {
      * Adds a rule
      * @param rule Rule object
      */
-    public static void addRule(Rule rule) {
-        RULES.add(rule);
+    public void addRule(Rule rule) {
+        rules.add(rule);
+        rulesChanged();
     }
 
     /**
@@ -180,46 +228,51 @@ public class Rules {
      * @param message message string
      * @return true if success
      */
-    public static boolean addRule(String message) {
+    public boolean addRule(String message) {
         Log.print(Level.INFO, "Adding rule: " + message);
 
+        // Rule header is 10 chars (legacy) or 12 chars (wide zone numbers)
         String[] tokens = message.split("~");
-        if ((tokens.length != 4) || (tokens[0].length() != 10)) {
+        if ((tokens.length != 4)
+                || (tokens[0].length() != 10 && tokens[0].length() != 12)) {
             Log.print(Level.WARN, "Invalid rule string in addRule! " + message);
             return false;
         }
 
         Rule rule = new Rule();
+        String hdr = tokens[0];
+        int w = (hdr.length() == 12) ? 1 : 0;  // extra char per zone field
 
-        rule.whenEvent = tokens[0].charAt(0);  // whenEvent
-        rule.whenZone = Base80.decode(tokens[0].charAt(1));  // whenZone
-        rule.whenHour = Base80.decode(tokens[0].charAt(2));  // whenHour
-        rule.whenMinute = Base80.decode(tokens[0].charAt(3));  // whenMinute
-        rule.whenDayOfWeek = Base80.decode(tokens[0].charAt(4));  // whenDayOfWeek
-        rule.whenDate = Base80.decode(tokens[0].charAt(5));  // whenDate
-        rule.ifCondition = tokens[0].charAt(6);  // ifCondition
-        rule.ifZone = Base80.decode(tokens[0].charAt(7));  // ifZone
-        rule.doTask = tokens[0].charAt(8);  // doTask
-        rule.doDeviceOrSpeak = Base80.decode(tokens[0].charAt(9));  // doDevice
+        rule.whenEvent = hdr.charAt(0);  // whenEvent
+        rule.whenZone = (w == 1) ? Base80.decodeWide(hdr, 1) : Base80.decode(hdr.charAt(1));  // whenZone
+        rule.whenHour = Base80.decode(hdr.charAt(2 + w));  // whenHour
+        rule.whenMinute = Base80.decode(hdr.charAt(3 + w));  // whenMinute
+        rule.whenDayOfWeek = Base80.decode(hdr.charAt(4 + w));  // whenDayOfWeek
+        rule.whenDate = Base80.decode(hdr.charAt(5 + w));  // whenDate
+        rule.ifCondition = hdr.charAt(6 + w);  // ifCondition
+        rule.ifZone = (w == 1) ? Base80.decodeWide(hdr, 7 + w) : Base80.decode(hdr.charAt(7));  // ifZone
+        rule.doTask = hdr.charAt(8 + 2 * w);  // doTask
+        rule.doDeviceOrSpeak = Base80.decode(hdr.charAt(9 + 2 * w));  // doDevice
         rule.doEmailAddress = tokens[1];  // doEmailAddress
         rule.doEmailSubject = tokens[2];  // doEmailSubject
         rule.doEmailBody = tokens[3];  // doEmailMessageOrSpeakText
 
         if ((rule.whenEvent < 0 || rule.whenEvent > 10) ||
-                (rule.whenZone < 0 || rule.whenZone > 64) ||
+                (rule.whenZone < 0 || rule.whenZone > Const.MAX_ZONES) ||
                 (rule.whenHour < 0 || rule.whenHour > 23) ||
                 (rule.whenMinute < 0 || rule.whenMinute > 59) ||
                 (rule.whenDayOfWeek < 0 || rule.whenDayOfWeek > 6) ||
                 (rule.whenDate < 1 || rule.whenDate > 31) ||
                 (rule.ifCondition < 0 || rule.ifCondition > 6) ||
-                (rule.ifZone < 0 || rule.ifZone > 64) ||
+                (rule.ifZone < 0 || rule.ifZone > Const.MAX_ZONES) ||
                 (rule.doTask < 0 || rule.doTask > 3) ||
                 (rule.doDeviceOrSpeak < 0)) {
             Log.print(Level.ERROR, "Invalid rule string in addRule (doDevice): " + message);
             return false;
         }
 
-        RULES.add(rule);  // add the rule to the rule array
+        rules.add(rule);  // add the rule to the rule array
+        rulesChanged();
         return Settings.save();
     }
 
@@ -228,7 +281,7 @@ public class Rules {
      * @param message message string
      * @return true if success
      */
-    public static boolean removeRule(String message) {
+    public boolean removeRule(String message) {
         Log.print(Level.INFO, "Removing rule: " + message);
 
         if (message.length() != 5) {
@@ -237,22 +290,35 @@ public class Rules {
         }
 
         int i = Base80.decode(message.charAt(4));
-        if (i < 0 || i >= RULES.size()) {
+        if (i < 0 || i >= rules.size()) {
             return false;
         }
-        RULES.remove(i);
+        rules.remove(i);
+        rulesChanged();
         return true;
     }
 
+    /**
+     * Queues a rule scan on a worker thread unless one is already queued
+     */
+    public void scheduleRuleTriggers() {
+        if (scanPending.compareAndSet(false, true)) {
+            PanelContext.WORKERS.execute(() -> {
+                scanPending.set(false);
+                handleRuleTriggers();
+            });
+        }
+    }
+
     /**
      * Handles rule triggers
      */
-    public static void handleRuleTriggers() {
+    public void handleRuleTriggers() {
 
         boolean trigger;
         LocalDateTime now = LocalDateTime.now();
 
-        for (Rule rule : RULES) {
+        for (Rule rule : rules) {
             trigger = false;
             switch (rule.whenEvent) {
                 case Const.WHEN_DAILY:
@@ -2,12 +2,14 @@ package bungalowserver;
 
 import bungalowserver.Log.Level;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import jssc.SerialPort;
 import jssc.SerialPortEvent;
 import jssc.SerialPortEventListener;
@@ -81,19 +83,33 @@ public class SerialHandler {
             RESPONSE_COMMAND_NOT_SUPPORTED = 0x1f, // message rejected (valid but not supported or disabled)
             RESPONSE_NONE = 0x3f; // expect nothing back when I send an ACK to the panel
 
+    // Returned by sendMessageIfIdle when the link was busy and nothing was sent
+    public static final int RESPONSE_SKIPPED = -1;
+
     //</editor-fold>
 
     // These 'expect' variables are updated by the serial receive thread as responses come in from the panel, so the
     // serial send thread can see the responses as they come in while waiting for a specific response
-    private static int expectResponse = RESPONSE_NONE;
-    private static int expectZoneOrPartition = 0;  // 0 = none, 1.. = zone or partition number
-    private static boolean receiveFlag = false;
+    // (guarded by responseLock, the receive thread notifies the waiting sender)
+    private int expectResponse = RESPONSE_NONE;
+    private int expectZoneOrPartition = 0;  // 0 = none, 1.. = zone or partition number
+    private int rejectResponse = RESPONSE_NONE;  // error response received while waiting
+    private final Object responseLock = new Object();
+    private volatile boolean receiveFlag = false;
+
+    // Only one request/response transaction can be outstanding with the panel
+    // at a time, requests from other threads wait here for their turn
+    private final ReentrantLock transactionLock = new ReentrantLock(true);
+
+    // Serial link activity, used to find idle gaps for low priority requests
+    private volatile long lastActivityTime = System.currentTimeMillis();
+    private final AtomicLong byteCount = new AtomicLong();
     //private static boolean enableCallback = false;
 
-    private static SerialReceive serialReceiveCallback = null;
-    private static SerialPort serialPort = null;
-    public static String serialPortName = "/dev/ttyUSB0";
-    public static int serialBaudRate = 38400;
+    private SerialReceive serialReceiveCallback = null;
+    private SerialPort serialPort = null;
+    public String serialPortName = "/dev/ttyUSB0";
+    public int serialBaudRate = 38400;
 
     // Panel will respond within 2.5 seconds from receiving a request, so allow 3 seconds here before retry
     private static final int SERIAL_RECEIVE_TIMEOUT = 3000;  // milliseconds
@@ -109,6 +125,12 @@ public class SerialHandler {
      */
     private SerialCallback callBack = null;
 
+    // Runs the callbacks for received messages (default: on the receive
+    // thread), partition and system status (which carry the alarms) go to
+    // the urgent dispatcher
+    private Executor dispatcher = Runnable::run;
+    private Executor urgentDispatcher = Runnable::run;
+
     /**
      * Adds a callback listener
      * @param mycallback
@@ -117,6 +139,26 @@ public class SerialHandler {
         callBack = mycallback;
     }
 
+    /**
+     * Sets the executor the callbacks for received messages run on (must run
+     * them one at a time in order). Call before start.
+     * @param executor executor
+     */
+    public void setDispatcher(Executor executor) {
+        dispatcher = executor;
+        urgentDispatcher = executor;
+    }
+
+    /**
+     * Sets the executor the callbacks for partition and system status
+     * messages run on, ahead of the other messages (must run them one at a
+     * time in order). Call after setDispatcher and before start.
+     * @param executor executor
+     */
+    public void setUrgentDispatcher(Executor executor) {
+        urgentDispatcher = executor;
+    }
+
     /**
      * Serial callback interface defines the callback methods. These methods
      * must be defined in the class that "implements
@@ -155,6 +197,15 @@ public class SerialHandler {
          */
         void processSystemStatus(int[] message);
 
+        /**
+         * Called before the message callbacks of a frame with the frame's
+         * latency trace, and with Trace.NONE after them
+         * @param trace latency trace
+         */
+        default void frameTrace(Trace trace) {
+            // not traced
+        }
+
         /**
          * Callback when Acknowledge messages received from panel
          */
@@ -400,6 +451,74 @@ public class SerialHandler {
      * @return True if success, False if fail
      */
     public boolean sendMessage(int... command) {
+        return sendMessageRaw(buildMessage(command));
+    }
+
+    /**
+     * Builds a full command packet (see sendMessage) then sends it to the
+     * panel and waits for the response (see sendMessageRawForResult).
+     * @param command
+     * @return the response received (the expected response on success, or
+     * RESPONSE_COMMAND_FAILED/ERROR/NOT_SUPPORTED if the panel rejected the
+     * command) or RESPONSE_NONE if no response was received
+     */
+    public int sendMessageForResult(int... command) {
+        return sendMessageRawForResult(buildMessage(command));
+    }
+
+    /**
+     * Low priority send: builds a full command packet (see sendMessage) and
+     * sends it only if the serial link has been quiet for at least idleTime
+     * and no other thread is waiting to send, otherwise returns immediately
+     * without sending so real commands are never queued behind it.
+     * @param idleTime milliseconds the link must have been idle
+     * @param command
+     * @return the response received (see sendMessageRawForResult) or
+     * RESPONSE_SKIPPED if the link was busy and nothing was sent
+     */
+    public int sendMessageIfIdle(int idleTime, int... command) {
+        int[] message = buildMessage(command);
+        int expected = getExpectedResponse(message[2]);
+
+        if (getIdleTime() < idleTime || transactionLock.hasQueuedThreads()
+                || transactionLock.tryLock() == false) {
+            return RESPONSE_SKIPPED;
+        }
+        try {
+            // Check again now that the lock is held
+            if (getIdleTime() < idleTime) {
+                return RESPONSE_SKIPPED;
+            }
+            return transact(message, expected);
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the time since data was last sent to or received from the panel
+     * @return milliseconds
+     */
+    public long getIdleTime() {
+        return System.currentTimeMillis() - lastActivityTime;
+    }
+
+    /**
+     * Gets the number of bytes sent to and received from the panel since
+     * startup (to measure link utilization)
+     * @return byte count
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    /**
+     * Builds a full command packet: adds start byte, length, checksum and
+     * byte-stuffing to the command
+     * @param command
+     * @return packet ready to send
+     */
+    private static int[] buildMessage(int... command) {
         int[] cmd = new int[command.length + 4];  // start, length, data, cs1, cs2
 
         cmd[0] = 0x7e;  // start byte
@@ -411,8 +530,7 @@ public class SerialHandler {
         cmd[cmd.length - 2] = checksum >> 8 & 0xff;
         cmd[cmd.length - 1] = checksum & 0xff;
 
-        cmd = byteStuff(cmd);
-        return sendMessageRaw(cmd);
+        return byteStuff(cmd);
     }
 
     /**
@@ -423,19 +541,51 @@ public class SerialHandler {
      * @return True if success, False if fail
      */
     public boolean sendMessageRaw(int... message) {
-        // Get the expected response and save in global expectResponse variable
-        // When this response is received, the receive handler will clear this back to RESPONSE_NONE
-        expectResponse = getExpectedResponse(message[2]);
+        int expected = getExpectedResponse(message[2]);
+        return sendMessageRawForResult(message) == expected;
+    }
+
+    /**
+     * Sends a complete packet to the panel and wait for a valid response.
+     * This call blocks until success, the panel rejects the message or all
+     * retries failed. Only one thread at a time can have a message
+     * outstanding with the panel, other threads block until it is done.
+     * @param message Message to send to panel
+     * @return the response received (the expected response on success, or
+     * RESPONSE_COMMAND_FAILED/ERROR/NOT_SUPPORTED if the panel rejected the
+     * message) or RESPONSE_NONE if no response was received
+     */
+    public int sendMessageRawForResult(int... message) {
+        int expected = getExpectedResponse(message[2]);
 
         // If sending ACK (or anything that does not require a reply) then just send and be done
-        if (expectResponse == RESPONSE_NONE) {
+        // Note: ACKs are sent from the receive thread while another thread may be waiting
+        // for a response, so must not take the transaction lock or touch the expect variables
+        if (expected == RESPONSE_NONE) {
             serialSend(message);
-            return true;
+            return RESPONSE_NONE;
         }
 
+        transactionLock.lock();
+        try {
+            return transact(message, expected);
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the message and waits for the expected response (caller holds
+     * the transaction lock)
+     * @param message Message to send to panel
+     * @param expected Expected response
+     * @return the response received or RESPONSE_NONE if none
+     */
+    private int transact(int[] message, int expected) {
+
         // If message has a zone or partition then set the expected zone/partition number in response
         // else set to zero if no zone or partition is associated with the message
-        expectZoneOrPartition = 0;  // default to none
+        int expectNumber = 0;  // default to none
 
         String waitMessage;
         boolean isZoneOrPartitionMessage = (
@@ -445,10 +595,10 @@ public class SerialHandler {
                 message[2] == REQUEST_PARTITION_STATUS ||
                 message[2] == REQUEST_PARTITION_SNAPSHOT);
         if (isZoneOrPartitionMessage) {
-            expectZoneOrPartition = message[3];
-            waitMessage = String.format("Waiting for panel response %02X for zone/part byte %d (%02X)", expectResponse, expectZoneOrPartition, expectZoneOrPartition);
+            expectNumber = message[3];
+            waitMessage = String.format("Waiting for panel response %02X for zone/part byte %d (%02X)", expected, expectNumber, expectNumber);
         } else {
-            waitMessage = String.format("Waiting for panel response %02X", expectResponse);
+            waitMessage = String.format("Waiting for panel response %02X", expected);
         }
 
         int attempts = 3;  // attempt to send up to 3 times before giving up
@@ -461,65 +611,64 @@ public class SerialHandler {
                 Log.print(Level.WARN, "Third (and final) attempt!", false);
             }
 
+            // Set the expect variables before sending so a fast reply is not missed
+            synchronized (responseLock) {
+                expectResponse = expected;
+                expectZoneOrPartition = expectNumber;
+                rejectResponse = RESPONSE_NONE;
+            }
+
             serialSend(message);
 
             Log.print(Level.INFO, waitMessage, false);
 
-            // Command sent, now wait for a response or timeout
-            //Log.print(Level.INFO, "Waiting for panel response...", false);
-            long timeout = SERIAL_RECEIVE_TIMEOUT;  // milliseconds
-            long endTime = System.currentTimeMillis() + timeout;
-            while (expectResponse != RESPONSE_NONE && timeout > 0) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException("Thread sleep exception!");
+            // Command sent, now wait for the receive thread to signal the
+            // response (or rejection) or timeout
+            long endTime = System.currentTimeMillis() + SERIAL_RECEIVE_TIMEOUT;
+            synchronized (responseLock) {
+                long timeout = SERIAL_RECEIVE_TIMEOUT;  // milliseconds
+                while (expectResponse != RESPONSE_NONE
+                        && rejectResponse == RESPONSE_NONE && timeout > 0) {
+                    try {
+                        responseLock.wait(timeout);
+                    } catch (InterruptedException ex) {
+                        expectResponse = RESPONSE_NONE;
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted waiting for panel response!", ex);
+                    }
+                    timeout = endTime - System.currentTimeMillis();
                 }
-                timeout = endTime - System.currentTimeMillis();
-            }
 
-            // If success then break out
-            if (expectResponse == RESPONSE_NONE) {
-                //Log.print(Level.INFO, "Expected message received", false);
-                break;
-            }
+                // If success then done
+                if (expectResponse == RESPONSE_NONE) {
+                    return expected;
+                }
 
-            // Take ownership of the lock object then call 'wait' to release the lock (and
-            // be added to the lock objects waiting queue, then this trhead sleeps until
-            // notified when the other thread gets the lock and calls 'notify' (or timeout)
-            //synchronized (lock) {
-            //    panelResponse = RESPONSE_NONE;
-            //    while ((panelResponse != expectedResponse) && (timeout > 0)) {
-            //        timeout = endTime - System.currentTimeMillis();
-            //    }
-            //    // while expected condition is false (required in case of spurious wakeup)
-            //    while ((response == RESPONSE_NONE) && (timeout > 0)) {
-            //        try {
-            //            lock.wait(timeout);  // timeout in milliseconds
-            //        } catch (InterruptedException ex) {
-            //            throw new RuntimeException("Error waiting for response from panel! " + ex.getMessage(), ex);
-            //        }
-            //        timeout = endTime - System.currentTimeMillis();
-            //    }
-            //}
-        }
-
-        if (expectResponse != RESPONSE_NONE) {
-            String errMsg = "Did not receive the expected response from the panel!";
-            Log.print(Level.ERROR, errMsg);
-            return false;
+                // Panel rejected the message, retrying will not help
+                if (rejectResponse != RESPONSE_NONE) {
+                    expectResponse = RESPONSE_NONE;
+                    Log.print(Level.WARN, String.format("Panel rejected message (%02X): ",
+                            rejectResponse) + Tools.toHexString(message));
+                    return rejectResponse;
+                }
+                expectResponse = RESPONSE_NONE;
+            }
         }
 
-        return true;
+        String errMsg = "Did not receive the expected response from the panel!";
+        Log.print(Level.ERROR, errMsg);
+        return RESPONSE_NONE;
     }
 
     /**
      * Gets the settings string to save to the settings file
+     * @param panelName panel name to write or null for none
      * @return String of settings to save to file
      */
-    public static String getSettingsString() {
+    public String getSettingsString(String panelName) {
         String ls = System.lineSeparator();
         return "SERIAL_BEGIN" + ls +
+            ((panelName != null) ? "  NAME " + panelName + ls : "") +
             "  PORT " + serialPortName + ls +
             "  BAUD " + Integer.toString(serialBaudRate) + ls +
             "SERIAL_END" + ls;
@@ -527,14 +676,18 @@ public class SerialHandler {
 
     /**
      * Send the command in another thread with timeout and wait for completion
+     * (synchronized since ACKs are sent from the receive thread)
      * @param message
      */
-    private void serialSend(int[] message) {
+    private synchronized void serialSend(int[] message) {
 
         if (serialPort == null) {
             throw new RuntimeException("Serial port not defined in serialSend!");
         }
 
+        lastActivityTime = System.currentTimeMillis();
+        byteCount.addAndGet(message.length);
+
         // Log the data sent unless ack
         if (message[2] != 0x1d) {
             Log.print(Level.INFO, "Sending message to panel: " + Tools.toHexString(message), false);
@@ -543,20 +696,27 @@ public class SerialHandler {
         // Run the serial send on another thread allowing SERIAL_SEND_TIMEOUT milliseconds to complete
         // I've seen the serial send block forever if passed an invalid serial port for example
         // So to be safe, run the serial send on another thread with a timeout.
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future future = executor.submit(() -> {
-            boolean success;
-            try {
-                success = serialPort.writeIntArray(message);
-            } catch (SerialPortException ex) {
-                success = false;
-            }
-            if (!success) {
-                // Throw an exception to be caught below in future.get
-                throw new RuntimeException("Error writing to serial port!");
-            }
-            //return success;
-        });
+        // (serial write threads are shared by all panels, see PanelContext.SERIAL_WRITES)
+        Future future;
+        try {
+            future = PanelContext.SERIAL_WRITES.submit(() -> {
+                boolean success;
+                try {
+                    success = serialPort.writeIntArray(message);
+                } catch (SerialPortException ex) {
+                    success = false;
+                }
+                if (!success) {
+                    // Throw an exception to be caught below in future.get
+                    throw new RuntimeException("Error writing to serial port!");
+                }
+                //return success;
+            });
+        } catch (RejectedExecutionException ex) {
+            // All serial write threads are stuck in earlier writes
+            close();
+            throw new RuntimeException("Error writing to serial port! Earlier writes still blocked", ex);
+        }
 
         // Wait for thread, check after SERIAL_SEND_TIMEOUT milliseconds, if not complete then stop it
         try {
@@ -566,7 +726,6 @@ public class SerialHandler {
             close();
             throw new RuntimeException("Error writing to serial port! " + ex.getMessage(), ex);
         }
-        executor.shutdownNow();
     }
 
     /**
@@ -700,6 +859,8 @@ public class SerialHandler {
 
             // Set flag here to indicate data recieved
             receiveFlag = true;
+            lastActivityTime = System.currentTimeMillis();
+            byteCount.addAndGet(data.length);
 
             // Process one byte at-a-time since I don't know yet how many bytes are in this message
             // and there could be two messages back-to-back possibly
@@ -822,79 +983,111 @@ public class SerialHandler {
             }
 
             if (callbackEnable) {
-                switch (message[0]) {
-                    case RESPONSE_COMMAND_COMPLETED:
-                        //callBack.processAcknowledge();
-                        break;
-                    case RESPONSE_INTERFACE_CONFIG_MESSAGE:
-                        callBack.processInterfaceConfiguration(message);
-                        break;
-                    case RESPONSE_ZONE_NAME_MESSAGE:
-                        callBack.processZoneName(message);
-                        break;
-                    case RESPONSE_ZONE_STATUS_MESSAGE:
-                        callBack.processZoneStatus(message);
-                        break;
-                    case RESPONSE_PARTITION_STATUS_MESSAGE:
-                        callBack.processPartitionStatus(message);
-                        break;
-                    case RESPONSE_SYSTEM_STATUS_MESSAGE:
-                        callBack.processSystemStatus(message);
-                        break;
-                    case RESPONSE_X10_MESSAGE:
-                        callBack.processX10Received(message);
-                        break;
-                    case RESPONSE_LOG_EVENT_MESSAGE:
-                        callBack.processLogEvent(message);
-                        break;
-                    case RESPONSE_PARTITION_SNAPSHOT_MESSAGE:
-                        callBack.processPartitionSnapshot(message);
-                        break;
-                    case RESPONSE_ZONE_SNAPSHOT_MESSAGE:
-                        callBack.processZoneSnapshot(message);
-                        break;
-                    case RESPONSE_KEYPAD_MESSAGE:
-                        callBack.processKeypadMessage(message);
-                        break;
-                    case RESPONSE_PROGRAM_DATA_REPLY:
-                        callBack.processProgramData(message);
-                        break;
-                    case RESPONSE_USER_INFORMATION_REPLY:
-                        callBack.processUserInformation(message);
-                        break;
-                    case RESPONSE_COMMAND_ERROR:
-                    case RESPONSE_COMMAND_FAILED:
-                    //case RESPONSE_COMMAND_NOT_SUPPORTED:
-                    //    callBack.processError(message);
-                    //    break;
-                    default:
-                        callBack.processError(message);
-                        break;
-                }
+                // Handled on the panel core, partition and system status on
+                // its urgent lane: those run ahead of zone frames queued
+                // before them, each lane keeps its own arrival order
+                Trace trace = Trace.start();
+                boolean isUrgent = message[0] == RESPONSE_PARTITION_STATUS_MESSAGE
+                        || message[0] == RESPONSE_SYSTEM_STATUS_MESSAGE;
+                (isUrgent ? urgentDispatcher : dispatcher).execute(() -> {
+                    callBack.frameTrace(trace);
+                    try {
+                        dispatch(message);
+                    } finally {
+                        callBack.frameTrace(Trace.NONE);
+                    }
+                });
+            } else {
+                Log.print(Level.INFO, "Discarding message from panel");
+            }
 
-                // If the received message matches the message being watched for then signal that it has been received
-                // (by clearing the 'expect' variables) then continue to process the message normaly
+            // Done, discard data
+            rawLen = 0;
+            dataLen = 0;
+            return true;
+        }
+
+        /**
+         * Invokes the callback for a message then wakes the sender if it was
+         * waiting for this message (so the sender sees the updated state)
+         * @param message message data (without start, length and checksum)
+         */
+        private void dispatch(int[] message) {
+            switch (message[0]) {
+                case RESPONSE_COMMAND_COMPLETED:
+                    //callBack.processAcknowledge();
+                    break;
+                case RESPONSE_INTERFACE_CONFIG_MESSAGE:
+                    callBack.processInterfaceConfiguration(message);
+                    break;
+                case RESPONSE_ZONE_NAME_MESSAGE:
+                    callBack.processZoneName(message);
+                    break;
+                case RESPONSE_ZONE_STATUS_MESSAGE:
+                    callBack.processZoneStatus(message);
+                    break;
+                case RESPONSE_PARTITION_STATUS_MESSAGE:
+                    callBack.processPartitionStatus(message);
+                    break;
+                case RESPONSE_SYSTEM_STATUS_MESSAGE:
+                    callBack.processSystemStatus(message);
+                    break;
+                case RESPONSE_X10_MESSAGE:
+                    callBack.processX10Received(message);
+                    break;
+                case RESPONSE_LOG_EVENT_MESSAGE:
+                    callBack.processLogEvent(message);
+                    break;
+                case RESPONSE_PARTITION_SNAPSHOT_MESSAGE:
+                    callBack.processPartitionSnapshot(message);
+                    break;
+                case RESPONSE_ZONE_SNAPSHOT_MESSAGE:
+                    callBack.processZoneSnapshot(message);
+                    break;
+                case RESPONSE_KEYPAD_MESSAGE:
+                    callBack.processKeypadMessage(message);
+                    break;
+                case RESPONSE_PROGRAM_DATA_REPLY:
+                    callBack.processProgramData(message);
+                    break;
+                case RESPONSE_USER_INFORMATION_REPLY:
+                    callBack.processUserInformation(message);
+                    break;
+                case RESPONSE_COMMAND_ERROR:
+                case RESPONSE_COMMAND_FAILED:
+                //case RESPONSE_COMMAND_NOT_SUPPORTED:
+                //    callBack.processError(message);
+                //    break;
+                default:
+                    callBack.processError(message);
+                    break;
+            }
+
+            // If the received message matches the message being watched for then signal that it has been received
+            // (by clearing the 'expect' variables and waking the sender) then continue to process the message normaly
+            synchronized (responseLock) {
                 if (message[0] == expectResponse) {
+                    // Partition snapshot covers all partitions so is not matched by number
                     boolean isZoneOrPartitionMessage = (
-                            message[0] == REQUEST_ZONE_STATUS ||
-                            message[0] == REQUEST_ZONE_NAME ||
-                            message[0] == REQUEST_ZONE_SNAPSHOT ||
-                            message[0] == REQUEST_PARTITION_STATUS ||
-                            message[0] == REQUEST_PARTITION_SNAPSHOT);
+                            message[0] == RESPONSE_ZONE_STATUS_MESSAGE ||
+                            message[0] == RESPONSE_ZONE_NAME_MESSAGE ||
+                            message[0] == RESPONSE_ZONE_SNAPSHOT_MESSAGE ||
+                            message[0] == RESPONSE_PARTITION_STATUS_MESSAGE);
 
                     if (!isZoneOrPartitionMessage || (message[1] == expectZoneOrPartition)) {
                         expectZoneOrPartition = 0;
                         expectResponse = RESPONSE_NONE;
+                        responseLock.notifyAll();
                     }
+                } else if (expectResponse != RESPONSE_NONE
+                        && (message[0] == RESPONSE_COMMAND_FAILED
+                        || message[0] == RESPONSE_COMMAND_ERROR
+                        || message[0] == RESPONSE_COMMAND_NOT_SUPPORTED)) {
+                    // Panel rejected the message being waited on
+                    rejectResponse = message[0];
+                    responseLock.notifyAll();
                 }
-            } else {
-                Log.print(Level.INFO, "Discarding message from panel");
             }
-
-            // Done, discard data
-            rawLen = 0;
-            dataLen = 0;
-            return true;
         }
     }
 }
@@ -40,12 +40,23 @@ public class Settings {
         String ls = System.lineSeparator();
         Log.print(Log.Level.INFO, "Saving settings...");
 
+        // Default settings file gets one panel
+        if (PanelContext.getCount() == 0) {
+            PanelContext.add();
+        }
+
         StringBuilder sb = new StringBuilder(getSettingsMessage());
-        sb.append(SerialHandler.getSettingsString()).append(ls);
         sb.append(Emailer.getSettingsString()).append(ls);
         sb.append(Speaker.getSettingsString()).append(ls);
-        sb.append(Zones.getSettingsString()).append(ls);
-        sb.append(Rules.getSettingsString());
+
+        // Each panel is its SERIAL block followed by its ZONE and RULE blocks
+        boolean multiple = PanelContext.getCount() > 1;
+        for (PanelContext panel : PanelContext.getAll()) {
+            String name = multiple || !panel.name.equals("Panel " + panel.number) ? panel.name : null;
+            sb.append(panel.serial.getSettingsString(name)).append(ls);
+            sb.append(panel.zones.getSettingsString()).append(ls);
+            sb.append(panel.rules.getSettingsString()).append(ls);
+        }
 
         /* Another option:
         try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(
@@ -92,8 +103,8 @@ public class Settings {
         // This might not be needed
         Speaker.setMixerVolumes(100);
 
-        Zones.clear();
-        Rules.clear();
+        PanelContext.clear();
+        PanelContext panel = null;
 
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(
                 new FileInputStream(filePath), StandardCharsets.UTF_8))) {
@@ -110,8 +121,10 @@ public class Settings {
                 // Ignore all lines unless inside EMAIL_BEGIN/END block
                 switch (line) {
                     case "SERIAL_BEGIN":
+                        // Each SERIAL block starts a new panel
                         inBlock = InBlock.SERIAL;
                         foundSerialBlock = true;
+                        panel = PanelContext.add();
                         continue;
                     case "SPEAKER_BEGIN":
                         inBlock = InBlock.SPEAKER;
@@ -122,10 +135,16 @@ public class Settings {
                         foundEmailBlock = true;
                         continue;
                     case "ZONE_BEGIN":
+                        if (panel == null) {
+                            panel = PanelContext.add();
+                        }
                         inBlock = InBlock.ZONE;
                         foundZoneBlock = true;
                         continue;
                     case "RULE_BEGIN":
+                        if (panel == null) {
+                            panel = PanelContext.add();
+                        }
                         inBlock = InBlock.RULE;
                         foundRuleBlock = true;
                         continue;
@@ -144,7 +163,7 @@ public class Settings {
                 boolean success = false;
                 switch (inBlock) {
                     case SERIAL:
-                        success = handleSerialLine(line);
+                        success = handleSerialLine(panel, line);
                         break;
                     case EMAIL:
                         success = handleEmailLine(line);
@@ -153,10 +172,10 @@ public class Settings {
                         success = handleSpeakerLine(line);
                         break;
                     case ZONE:
-                        success = handlerZoneLine(line);
+                        success = handlerZoneLine(panel, line);
                         break;
                     case RULE:
-                        success = handleRuleLine(line);
+                        success = handleRuleLine(panel, line);
                         break;
                     default:
                         break;
@@ -201,6 +220,9 @@ public class Settings {
             "# You may make changes to this file to be picked up the next time the application is started." + ls +
             "#" + ls +
             "##### SERIAL #####" + ls +
+            "# Each SERIAL block starts a panel, its ZONE and RULE blocks follow it" + ls +
+            "# (repeat SERIAL, ZONE and RULE blocks to host more than one panel)" + ls +
+            "# NAME <panel name>  (optional, used in emails when there are several panels)" + ls +
             "# PORT <port name>" + ls +
             "# BAUD <baud>  (valid bauds = 9600, 19200, 38400, 57600, 115200)" + ls +
             "#" + ls +
@@ -222,6 +244,7 @@ public class Settings {
             "#    and <faulted> <ready> are the IDs of the text to speak for this zone open/closed" + ls +
             "#    and <name> is the zone name (not limited to 16 chars like panel zone name" + ls +
             "#    Example: ZONE 1 DOOR 11 12 garage double door" + ls +
+            "# OPEN_MINUTES <minutes> ...  (remind at each of these times a door or window stays open)" + ls +
             "#" + ls +
             "##### RULE #####" + ls +
             "# RULE <when> <if> <do>" + ls +
@@ -271,10 +294,25 @@ public class Settings {
 
     /**
      * Handles a single line in the ZONE block
+     * @param panel panel the block belongs to
      * @param line
      * @return true on success else false (caller will display the failing line)
      */
-    private static boolean handlerZoneLine(String line) {
+    private static boolean handlerZoneLine(PanelContext panel, String line) {
+
+        // Open zone reminder thresholds: OPEN_MINUTES m1 m2 ...
+        String[] values = line.split("\\s+");
+        if (values[0].equalsIgnoreCase("OPEN_MINUTES")) {
+            int[] minutes = new int[values.length - 1];
+            try {
+                for (int i = 1; i < values.length; i++) {
+                    minutes[i - 1] = Integer.parseInt(values[i]);
+                }
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            return panel.openZones.setThresholds(minutes);
+        }
 
         // Split string on whitespace
         String[] tokens = line.split("\\s+", 6);
@@ -295,7 +333,7 @@ public class Settings {
         } catch (NumberFormatException ex) {
             zoneNum = 0;  // will cause fail below
         }
-        if ((zoneNum < 1) || (zoneNum > 64)) {
+        if ((zoneNum < 1) || (zoneNum > Const.MAX_ZONES)) {
             return false;
         }
 
@@ -319,7 +357,7 @@ public class Settings {
         int zoneSpeakFault = Integer.parseInt(tokens[4]);
 
         // Note: Full zone name is in tokens[5]
-        Zones.addZone(zoneNum, zoneType, zoneSpeakName, zoneSpeakFault, tokens[5]);
+        panel.zones.addZone(zoneNum, zoneType, zoneSpeakName, zoneSpeakFault, tokens[5]);
         return true;
     }
 
@@ -376,29 +414,34 @@ public class Settings {
 
     /**
      * Handles a single line in the SERIAL block
+     * @param panel panel the block belongs to
      * @param line
      * @return true on success else false (caller will display the failing line)
      */
-    private static boolean handleSerialLine(String line) {
+    private static boolean handleSerialLine(PanelContext panel, String line) {
 
-        // Split string on whitespace
-        String[] tokens = line.split("\\s+", 3);
+        // Split string on whitespace (names may contain spaces)
+        String[] tokens = line.split("\\s+", 2);
 
         if (tokens.length != 2) {
             return false;
         }
 
+        SerialHandler serial = panel.serial;
         switch (tokens[0].toUpperCase(Locale.US)) {
+            case "NAME":
+                panel.name = tokens[1];
+                break;
             case "PORT":
-                SerialHandler.serialPortName = tokens[1];
+                serial.serialPortName = tokens[1];
                 break;
             case "BAUD":
-                SerialHandler.serialBaudRate = Integer.parseInt(tokens[1]);
-                if (SerialHandler.serialBaudRate != 9600 &&
-                        SerialHandler.serialBaudRate != 19200 &&
-                        SerialHandler.serialBaudRate != 38400 &&
-                        SerialHandler.serialBaudRate != 57600 &&
-                        SerialHandler.serialBaudRate != 115200) {
+                serial.serialBaudRate = Integer.parseInt(tokens[1]);
+                if (serial.serialBaudRate != 9600 &&
+                        serial.serialBaudRate != 19200 &&
+                        serial.serialBaudRate != 38400 &&
+                        serial.serialBaudRate != 57600 &&
+                        serial.serialBaudRate != 115200) {
                     Log.print(Log.Level.ERROR, "Invalid baud rate!");
                     return false;
                 }
@@ -411,10 +454,11 @@ public class Settings {
 
     /**
      * Handles a single line in the RULE block
+     * @param panel panel the block belongs to
      * @param line
      * @return true on success else false (caller will display the failing line)
      */
-    private static boolean handleRuleLine(String line) {
+    private static boolean handleRuleLine(PanelContext panel, String line) {
 
         // Split string on whitespace
         String[] tokens = line.split("\\s+");
@@ -495,7 +539,7 @@ public class Settings {
             if ((rule.whenEvent == Const.WHEN_ZONE_READY)
                     || (rule.whenEvent == Const.WHEN_ZONE_FAULTED)) {
                 rule.whenZone = Integer.parseInt(tokens[idx++]);
-                if (rule.whenZone < 1 || rule.whenZone > 64) {
+                if (rule.whenZone < 1 || rule.whenZone > Const.MAX_ZONES) {
                     return false;
                 }
             }
@@ -573,7 +617,7 @@ public class Settings {
             return false;
         }
 
-        Rules.addRule(rule);
+        panel.rules.addRule(rule);
         return true;
     }
 }
@@ -0,0 +1,54 @@
+package bungalowserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message sent to many clients (subscription deltas). All clients share
+ * one key, so the message is compressed, encrypted and framed once per wire
+ * form (text or binary protocol, compressed or not) and the same read-only
+ * bytes are queued on every connection that uses that form, instead of
+ * each connection encrypting it again.
+ */
+public class SharedMessage {
+
+    // Plain text of the message
+    public final String text;
+
+    // Encrypted and framed forms, indexed by (binary ? 2 : 0) + (compressed ? 1 : 0)
+    private final ByteBuffer[] forms = new ByteBuffer[4];
+
+    /**
+     * Constructor
+     * @param text plain text of the message
+     */
+    public SharedMessage(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Gets the message encrypted and framed for a connection, built on first
+     * use of each form
+     * @param isBinary true for a binary protocol frame, false for a text line
+     * @param isCompressed true if the client enabled compression
+     * @return read-only buffer shared by all connections (send a duplicate)
+     */
+    public synchronized ByteBuffer get(boolean isBinary, boolean isCompressed) {
+        int index = (isBinary ? 2 : 0) + (isCompressed ? 1 : 0);
+        if (forms[index] == null) {
+            byte[] compressed = isCompressed ? Compressor.compress(text) : null;
+            if (isCompressed && compressed == null) {
+                forms[index] = get(isBinary, false);  // too small to compress
+            } else if (isBinary) {
+                // Not returned to the pool, it is shared from now on
+                forms[index] = (compressed != null ? Crypto.encryptFrame(compressed)
+                        : Crypto.encryptFrame(text)).asReadOnlyBuffer();
+            } else {
+                String line = (compressed != null ? Crypto.encrypt(compressed) : Crypto.encrypt(text))
+                        + System.lineSeparator();
+                forms[index] = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+            }
+        }
+        return forms[index];
+    }
+}
@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import javax.sound.sampled.AudioFormat;
@@ -103,12 +105,21 @@ public class Speaker {
 
     // These values are translated to the appropriate phrases
     public static final int GREETING = 198, TIME = 199;
-    private static final BlockingQueue<AudioInputStream> STREAM_QUEUE = new ArrayBlockingQueue<>(256);
+    private static final BlockingQueue<Utterance> STREAM_QUEUE = new ArrayBlockingQueue<>(256);
+    private static final BlockingQueue<Utterance> URGENT_QUEUE = new ArrayBlockingQueue<>(64);
+
+    // Informational phrases are dropped while this many phrases are waiting
+    private static final int SHED_BACKLOG = 4;
     private static Thread thread;
     private static boolean isSpeaking = false;
     private static int volumePercent = 50;
     private static final byte[] WAV_BUFFER = new byte[4096];
 
+    // Phrases the client can request (fixed, see getPhrasesForClient)
+    private static final String CLIENT_PHRASES = "Please check your phone" + '~'
+            + "Please call your father" + '~'
+            + "Please call your mother";
+
     // Use System.getProperty or new java.io.File("").getAbsolutePath();
     private static final String WORD_PATH =
             System.getProperty("user.dir") + '/' + "speak" + '/';
@@ -119,11 +130,7 @@ public class Speaker {
      * @return
      */
     public static String getPhrasesForClient() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Please check your phone").append('~');
-        sb.append("Please call your father").append('~');
-        sb.append("Please call your mother");
-        return sb.toString();
+        return CLIENT_PHRASES;
     }
 
     /**
@@ -346,6 +353,20 @@ public class Speaker {
         return speak(wordInts);
     }
 
+    /**
+     * A queued phrase (its words) and the latency trace of the event it is
+     * spoken for
+     */
+    private static class Utterance {
+        final List<AudioInputStream> streams;
+        final Trace trace;
+
+        Utterance(List<AudioInputStream> streams, Trace trace) {
+            this.streams = streams;
+            this.trace = trace;
+        }
+    }
+
     /**
      * Speak the text items identified by the integer array This routine is
      * non-blocking, it queues up the words then returns while the speaking is
@@ -354,12 +375,32 @@ public class Speaker {
      * @return true on success
      */
     public static boolean speak(int... words) {
+        return speak(EventPriority.DEFAULT, Trace.NONE, words);
+    }
+
+    /**
+     * Speak the text items identified by the integer array (see speak).
+     * Urgent phrases (alarms, entry) are spoken before anything queued,
+     * informational phrases are dropped when the speaker is backlogged. The
+     * trace records when the first audio sample is written.
+     * @param priority EventPriority class of the phrase
+     * @param trace latency trace of the event spoken for
+     * @param words
+     * @return true on success (or dropped)
+     */
+    public static boolean speak(int priority, Trace trace, int... words) {
 
         if (words.length < 1) {
             Log.print(Level.WARN, "No words to speak!");
             return false;
         }
 
+        if (priority >= EventPriority.INFO && STREAM_QUEUE.size() >= SHED_BACKLOG) {
+            Log.print(Level.INFO, "Speaker busy, dropping informational phrase", false);
+            return true;
+        }
+
+        List<AudioInputStream> streams = new ArrayList<>(words.length);
         for (int word : words) {
             // Translate 98 to current greeting
             if (word == GREETING) {
@@ -374,18 +415,19 @@ public class Speaker {
             String filepath = WORD_PATH + String.format("%03d", word) + ".wav";
             System.out.println("Speaking " + filepath);
 
-            boolean success;
             try {
-                // add audio stream to queue
-                System.out.println("Added to speak queue");
-                success = STREAM_QUEUE.offer(getAudioInputStream(new File(filepath)));
+                streams.add(getAudioInputStream(new File(filepath)));
             } catch (IOException | UnsupportedAudioFileException ex) {
                 Log.print(Level.ERROR, "File " + filepath + ", " + ex.getMessage());
                 return false;
             }
-            if (!success) {
-                Log.print(Level.WARN, "Unable to speak, queue is full!", true);
-            }
+        }
+
+        // add phrase to queue
+        System.out.println("Added to speak queue");
+        BlockingQueue<Utterance> queue = EventPriority.isUrgent(priority) ? URGENT_QUEUE : STREAM_QUEUE;
+        if (queue.offer(new Utterance(streams, trace)) == false) {
+            Log.print(Level.WARN, "Unable to speak, queue is full!", true);
         }
 
         if (isSpeaking == false) {
@@ -408,7 +450,7 @@ public class Speaker {
     }
 
     /**
-     * This thread runs until the streamQueue is empty (nothing left to say)
+     * This thread runs until both queues are empty (nothing left to say)
      */
     public static class SpeakThread implements Runnable {
 
@@ -417,8 +459,8 @@ public class Speaker {
          */
         @Override
         public void run() {
-            AudioInputStream stream = (AudioInputStream) STREAM_QUEUE.peek();
-            AudioFormat format = stream.getFormat();
+            Utterance first = URGENT_QUEUE.isEmpty() ? STREAM_QUEUE.peek() : URGENT_QUEUE.peek();
+            AudioFormat format = first.streams.get(0).getFormat();
             SourceDataLine line;
             try {
                 line = AudioSystem.getSourceDataLine(format);
@@ -430,16 +472,19 @@ public class Speaker {
                 return;
             }
 
-            while (STREAM_QUEUE.isEmpty() == false) {
-                try {
-                    // "take" is blocking, dont need while empty, etc
-                    stream = (AudioInputStream) STREAM_QUEUE.take();
-                    System.out.println("Speaking item from queue");
-                    while (stream.available() > 0) {
-                        line.write(WAV_BUFFER, 0, stream.read(WAV_BUFFER));
+            // Urgent phrases first, checked again after every phrase
+            Utterance utterance;
+            while ((utterance = (URGENT_QUEUE.isEmpty() ? STREAM_QUEUE : URGENT_QUEUE).poll()) != null) {
+                System.out.println("Speaking item from queue");
+                for (AudioInputStream stream : utterance.streams) {
+                    try {
+                        while (stream.available() > 0) {
+                            line.write(WAV_BUFFER, 0, stream.read(WAV_BUFFER));
+                            utterance.trace.record(Trace.Stage.SPEAKER);
+                        }
+                    } catch (IOException ex) {
+                        Log.print(Level.ERROR, "Error processing audio streams! " + ex.toString());
                     }
-                } catch (IOException | InterruptedException ex) {
-                    Log.print(Level.ERROR, "Error processing audio streams! " + ex.toString());
                 }
             }
             line.drain(); // wait for the buffer to empty before closing the line
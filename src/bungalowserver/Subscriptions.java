@@ -0,0 +1,223 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clients subscribed to the live state of one panel (SUB command). A
+ * subscriber first gets a snapshot of the published state, then a delta
+ * each time the panel core publishes a changed snapshot: the security
+ * status if it changed, the zone status entries that changed and the event
+ * log changes. Every message carries the snapshot version as a sequence
+ * number (wide base80, wraps at 6400) that the delta increments by one, a
+ * client that sees a gap subscribes again to get a new snapshot. Deltas are
+ * built and sent in order on one thread shared by all panels, so the panel
+ * core never waits on a client. A delta is encrypted once for all
+ * subscribers (see SharedMessage). Subscribed connections are exempt from
+ * the idle timeout, instead KAL is pushed when nothing else was pushed for
+ * KEEPALIVE, so the client knows the connection is alive and a dead client
+ * is dropped when the send fails.
+ */
+public class Subscriptions {
+
+    /**
+     * A subscribed client
+     */
+    public interface Subscriber {
+
+        /**
+         * Sends a snapshot of the panel state
+         * @param snapshot published snapshot
+         * @return false if the client is gone (it is unsubscribed)
+         */
+        boolean sendSnapshot(PanelSnapshot snapshot);
+
+        /**
+         * Sends a delta or keepalive
+         * @param delta delta message (see published) or KAL, encrypted once
+         * for all subscribers
+         * @return false if the client is gone (it is unsubscribed)
+         */
+        boolean sendDelta(SharedMessage delta);
+
+        /**
+         * Checks if the client asked for the pending commands (PND=1)
+         * @return true to send deltas with the pending commands
+         */
+        boolean isPendingEnabled();
+    }
+
+    // Longest time without a push before KAL is sent
+    private static final long KEEPALIVE = 60000;  // milliseconds
+
+    // Builds and sends the snapshots and deltas of all panels, in order
+    private static final ExecutorService PUSHER = Executors.newSingleThreadExecutor();
+
+    static {
+        PanelContext.TIMER.scheduleAtFixedRate(() -> PUSHER.execute(() -> {
+            for (PanelContext panel : PanelContext.getAll()) {
+                panel.subscriptions.keepAlive();
+            }
+        }), KEEPALIVE / 4, KEEPALIVE / 4, TimeUnit.MILLISECONDS);
+    }
+
+    private final PanelContext context;
+
+    // Only accessed on the pusher thread
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private long lastPush = 0;
+
+    /**
+     * Constructor
+     * @param context panel the subscriptions belong to
+     */
+    public Subscriptions(PanelContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Subscribes a client, or resends the snapshot if already subscribed.
+     * The snapshot is sent from the pusher thread, followed by the deltas of
+     * every later publish.
+     * @param subscriber client
+     */
+    public void subscribe(Subscriber subscriber) {
+        // Taken on the core thread so no publish falls between the snapshot
+        // and the first delta
+        context.core.execute(() -> {
+            PanelSnapshot snapshot = context.core.getSnapshot();
+            PUSHER.execute(() -> {
+                subscribers.remove(subscriber);
+                if (subscriber.sendSnapshot(snapshot)) {
+                    subscribers.add(subscriber);
+                }
+            });
+        });
+    }
+
+    /**
+     * Unsubscribes a client, no deltas are sent once the future completes
+     * @param subscriber client
+     * @return future completed on the pusher thread
+     */
+    public CompletableFuture<Boolean> unsubscribe(Subscriber subscriber) {
+        return CompletableFuture.supplyAsync(() -> subscribers.remove(subscriber), PUSHER);
+    }
+
+    /**
+     * Call on the core thread after publishing a changed snapshot. Sends the
+     * subscribers DLT=qq$s$z$e where qq = sequence (snapshot version),
+     * s = security status (empty if unchanged), z = zone status entries that
+     * changed (same format as the entries of the zone status) and
+     * e = event log changes (see EventLog.takeChangesForClient, empty if
+     * unchanged), followed by $p with the pending commands (see
+     * VirtualPanel.getPendingForClient) for the subscribers that enabled
+     * them. A delta is sent for every publish, even if it carries nothing
+     * for a subscriber (only the pending commands changed), so the sequence
+     * has no gap. If the zone status was rebuilt (zones added or removed)
+     * or the encoding changed a snapshot is sent instead.
+     * @param previous snapshot replaced
+     * @param current snapshot published
+     */
+    public void published(PanelSnapshot previous, PanelSnapshot current) {
+        PUSHER.execute(() -> {
+            if (subscribers.isEmpty()) {
+                return;
+            }
+            lastPush = System.currentTimeMillis();
+            if (previous.zoneStatus.length() != current.zoneStatus.length()
+                    || isWide(previous.eventLog) != isWide(current.eventLog)) {
+                subscribers.removeIf(subscriber -> subscriber.sendSnapshot(current) == false);
+                return;
+            }
+            String text = getDelta(previous, current);
+            SharedMessage delta = new SharedMessage(text);
+            SharedMessage pendingDelta = new SharedMessage(text + "$" + current.pending);
+            subscribers.removeIf(subscriber -> subscriber.sendDelta(
+                    subscriber.isPendingEnabled() ? pendingDelta : delta) == false);
+            Log.print(Level.INFO, context.name + " delta pushed to " + subscribers.size()
+                    + " client(s): " + delta.text, false);
+        });
+    }
+
+    /**
+     * Pushes KAL to the subscribers if nothing was pushed for KEEPALIVE
+     * (on the pusher thread)
+     */
+    private void keepAlive() {
+        long now = System.currentTimeMillis();
+        if (subscribers.isEmpty() || now - lastPush < KEEPALIVE) {
+            return;
+        }
+        lastPush = now;
+        SharedMessage keepalive = new SharedMessage("KAL");
+        subscribers.removeIf(subscriber -> subscriber.sendDelta(keepalive) == false);
+    }
+
+    /**
+     * Checks if a client string uses the wide encoding
+     * @param s zone status or event log
+     * @return true if it starts with the WIDE marker
+     */
+    private static boolean isWide(String s) {
+        return s.length() > 0 && s.charAt(0) == Base80.WIDE;
+    }
+
+    /**
+     * Gets the sequence number of a snapshot as sent to clients
+     * @param snapshot snapshot
+     * @return sequence (wide base80)
+     */
+    public static String getSequence(PanelSnapshot snapshot) {
+        return Base80.encodeWide((int) (snapshot.version % 6400));
+    }
+
+    /**
+     * Builds the delta message between two consecutive snapshots of the same
+     * zone status length
+     * @param previous older snapshot
+     * @param current newer snapshot
+     * @return delta message
+     */
+    private static String getDelta(PanelSnapshot previous, PanelSnapshot current) {
+        StringBuilder sb = new StringBuilder("DLT=");
+        sb.append(getSequence(current)).append("$");
+        String eventLogChanges = current.eventLog.equals(previous.eventLog) ? "" : current.eventLogChanges;
+        appendDelta(sb, previous, current, eventLogChanges);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the delta between two snapshots of the same zone status length:
+     * s$z$e (see published)
+     * @param sb string to append to
+     * @param previous older snapshot
+     * @param current newer snapshot
+     * @param eventLogChanges event log changes between them (empty if none)
+     */
+    static void appendDelta(StringBuilder sb, PanelSnapshot previous, PanelSnapshot current,
+            String eventLogChanges) {
+        if (current.securityStatus.equals(previous.securityStatus) == false) {
+            sb.append(current.securityStatus);
+        }
+        sb.append("$");
+
+        // Zone entries are index (1 or 2 chars) + status bits, the status
+        // bits char is always the last one of the entry
+        String zones = current.zoneStatus;
+        boolean wide = zones.length() > 0 && zones.charAt(0) == Base80.WIDE;
+        int size = wide ? 3 : 2;
+        for (int pos = wide ? 1 : 0; pos + size <= zones.length(); pos += size) {
+            if (zones.charAt(pos + size - 1) != previous.zoneStatus.charAt(pos + size - 1)) {
+                sb.append(zones, pos, pos + size);
+            }
+        }
+        sb.append("$");
+        sb.append(eventLogChanges);
+    }
+}
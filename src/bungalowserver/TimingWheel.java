@@ -0,0 +1,145 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for large numbers of long, mostly cancelled timers
+ * (like zones left open). Timers hash into a ring of slots by expiry tick,
+ * timers further out than one turn of the ring carry a count of remaining
+ * rounds. Scheduling and cancelling are O(1) (doubly linked slot lists), each
+ * tick only visits the timers in one slot. Expired tasks run on the timer
+ * thread so they must be short (hand longer work to another thread).
+ */
+public class TimingWheel {
+
+    /**
+     * A scheduled timer
+     */
+    public class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int slot = -1;
+        private Timeout prev = null;
+        private Timeout next = null;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancels the timer (does nothing if it already expired)
+         */
+        public void cancel() {
+            synchronized (TimingWheel.this) {
+                unlink(this);
+            }
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[] slots;
+    private int current = 0;
+    private int count = 0;
+
+    /**
+     * Constructor
+     * @param tickMillis tick length (timer resolution) in milliseconds
+     * @param slotCount slots in the ring
+     */
+    public TimingWheel(long tickMillis, int slotCount) {
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[slotCount];
+    }
+
+    /**
+     * Starts ticking
+     * @param timer scheduler that drives the ticks
+     */
+    public void start(ScheduledExecutorService timer) {
+        timer.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a task
+     * @param task task to run when the timer expires (on the timer thread)
+     * @param delayMillis delay in milliseconds (rounded up to whole ticks)
+     * @return timer (to cancel)
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task);
+        timeout.rounds = (ticks - 1) / slots.length;
+        int slot = (int) ((current + ticks) % slots.length);
+
+        timeout.slot = slot;
+        timeout.next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].prev = timeout;
+        }
+        slots[slot] = timeout;
+        count++;
+        return timeout;
+    }
+
+    /**
+     * Gets the number of scheduled timers
+     * @return timer count
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Removes a timer from its slot
+     * @param timeout timer
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.slot < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.slot = -1;
+        timeout.prev = null;
+        timeout.next = null;
+        count--;
+    }
+
+    /**
+     * Advances one slot and runs the timers that expired
+     */
+    private void tick() {
+        List<Runnable> expired = new ArrayList<>();
+        synchronized (this) {
+            current = (current + 1) % slots.length;
+            Timeout timeout = slots[current];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds == 0) {
+                    unlink(timeout);
+                    expired.add(timeout.task);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+        for (Runnable task : expired) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Log.print(Level.ERROR, "Timer task failed! " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package bungalowserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency trace of one panel frame. A trace is stamped with System.nanoTime
+ * when the frame arrives from the serial port and carried along to what the
+ * frame causes (event report, event callback, speaker, email, client
+ * response). Each stage records the time since arrival in a per-stage
+ * histogram, at most once per trace (so the first word spoken or the first
+ * response sent counts, not every one).
+ */
+public class Trace {
+
+    /**
+     * Traced stages, in the order they normally happen
+     */
+    public enum Stage {
+        EVENT("Event"),         // VirtualPanel.reportEvent
+        CALLBACK("Callback"),   // panelMessageCallback
+        SPEAKER("Speaker"),     // first audio sample written
+        EMAIL("Email"),         // SMTP server accepted the message
+        CLIENT("Client");       // response sent to the client
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Not traced (events that did not come from a frame), records nothing
+     */
+    public static final Trace NONE = new Trace(0);
+
+    // Histogram buckets: bucket b counts latencies below 2^(b+1) microseconds
+    private static final int BUCKETS = 32;
+
+    /**
+     * Latency histogram of one stage, power-of-two microsecond buckets
+     */
+    private static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        void add(long micros) {
+            int b = 63 - Long.numberOfLeadingZeros(Math.max(1, micros));
+            buckets.incrementAndGet(Math.min(b, BUCKETS - 1));
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        /**
+         * Gets a percentile (upper bound of its bucket)
+         * @param percent percentile (0-100)
+         * @return microseconds, 0 if nothing recorded
+         */
+        long percentile(int percent) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (n * percent + 99) / 100;
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) {
+                    return Math.min(1L << (b + 1), maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+    }
+
+    private static final Histogram[] HISTOGRAMS = new Histogram[Stage.values().length];
+
+    static {
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i] = new Histogram();
+        }
+    }
+
+    // System.nanoTime when the frame arrived
+    public final long arrival;
+
+    // Stages already recorded (bit per stage ordinal)
+    private final AtomicInteger recorded = new AtomicInteger();
+
+    /**
+     * Constructor
+     * @param arrival System.nanoTime when the frame arrived
+     */
+    public Trace(long arrival) {
+        this.arrival = arrival;
+    }
+
+    /**
+     * Starts a trace for a frame arriving now
+     * @return trace
+     */
+    public static Trace start() {
+        return new Trace(System.nanoTime());
+    }
+
+    /**
+     * Records the time since arrival for a stage (only the first time the
+     * stage is reached for this trace, nothing for NONE)
+     * @param stage stage reached
+     */
+    public void record(Stage stage) {
+        if (this == NONE) {
+            return;
+        }
+        int bit = 1 << stage.ordinal();
+        if ((recorded.getAndUpdate(bits -> bits | bit) & bit) != 0) {
+            return;
+        }
+        HISTOGRAMS[stage.ordinal()].add((System.nanoTime() - arrival) / 1000);
+    }
+
+    /**
+     * Gets the latency summary of all stages since startup, one line per
+     * stage: name, count, mean, p50, p90, p99 and max in milliseconds
+     * @return summary string
+     */
+    public static String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            Histogram h = HISTOGRAMS[stage.ordinal()];
+            long n = h.count.get();
+            sb.append(stage.name).append(": n=").append(n);
+            if (n > 0) {
+                sb.append(" mean=").append(millis(h.totalMicros.get() / n))
+                        .append(" p50=").append(millis(h.percentile(50)))
+                        .append(" p90=").append(millis(h.percentile(90)))
+                        .append(" p99=").append(millis(h.percentile(99)))
+                        .append(" max=").append(millis(h.maxMicros.get()));
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1fms", micros / 1000.0);
+    }
+}
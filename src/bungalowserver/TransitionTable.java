@@ -0,0 +1,183 @@
+package bungalowserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Declarative bit-to-event table for one kind of panel status frame (zone,
+ * partition or system status). Each entry maps a bit of the frame (or a group
+ * of bits that are OR'ed together) to a state flag, and to the events to log
+ * and report when the flag turns on or off. Changes are found by XORing the
+ * previous frame with the new one, only the entries whose bits changed are
+ * handled, in the order they were added (the order their events are
+ * logged, which matters where one event replaces another). Adding an event
+ * is a table entry.
+ * @param <T> state object the flags belong to (Zone, Partition or VirtualPanel)
+ */
+public class TransitionTable<T> {
+
+    /**
+     * No event for this direction
+     */
+    public static final int NONE = -1;
+
+    /**
+     * Reads a state flag
+     * @param <T> state object type
+     */
+    public interface Getter<T> {
+        boolean get(T target);
+    }
+
+    /**
+     * Writes a state flag
+     * @param <T> state object type
+     */
+    public interface Setter<T> {
+        void set(T target, boolean value);
+    }
+
+    /**
+     * Called for each flag that changed (after the flag was updated)
+     * @param <T> state object type
+     */
+    public interface Listener<T> {
+        void changed(T target, Entry<T> entry, boolean value);
+    }
+
+    /**
+     * One table entry, built with the fluent methods
+     * @param <T> state object type
+     */
+    public static class Entry<T> {
+        public final int index;
+        public final int mask;
+        private final Getter<T> getter;
+        private final Setter<T> setter;
+
+        public int onEvent = NONE;
+        public String onText = null;
+        public boolean reportOn = true;
+        public int offEvent = NONE;
+        public String offText = null;
+        public boolean reportOff = true;
+        private Listener<T> action = null;
+
+        private Entry(int index, int mask, Getter<T> getter, Setter<T> setter) {
+            this.index = index;
+            this.mask = mask;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        /**
+         * Event and log text when the flag turns on
+         * @param event Const.EVENT_ value or NONE to only log
+         * @param text log text
+         * @return this entry
+         */
+        public Entry<T> on(int event, String text) {
+            onEvent = event;
+            onText = text;
+            return this;
+        }
+
+        /**
+         * Event and log text when the flag turns off
+         * @param event Const.EVENT_ value or NONE to only log
+         * @param text log text
+         * @return this entry
+         */
+        public Entry<T> off(int event, String text) {
+            offEvent = event;
+            offText = text;
+            return this;
+        }
+
+        /**
+         * Only add the off event to the event log, do not report it
+         * @return this entry
+         */
+        public Entry<T> logOnlyOff() {
+            reportOff = false;
+            return this;
+        }
+
+        /**
+         * Only add the on event to the event log, do not report it
+         * @return this entry
+         */
+        public Entry<T> logOnlyOn() {
+            reportOn = false;
+            return this;
+        }
+
+        /**
+         * Handle changes with this action instead of the table listener
+         * (always called, even when the listener is not)
+         * @param handler action
+         * @return this entry
+         */
+        public Entry<T> then(Listener<T> handler) {
+            action = handler;
+            return this;
+        }
+    }
+
+    // Entries in the order added
+    private final List<Entry<T>> entries = new ArrayList<>();
+
+    /**
+     * Adds an entry
+     * @param index frame byte index
+     * @param mask bit mask (the flag is on if any of these bits are set)
+     * @param getter reads the flag
+     * @param setter writes the flag
+     * @return the entry (to add events)
+     */
+    public Entry<T> bit(int index, int mask, Getter<T> getter, Setter<T> setter) {
+        Entry<T> entry = new Entry<>(index, mask, getter, setter);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Applies a new frame: updates the flags whose bits changed and calls
+     * the listener (or the entry action) for each changed flag. Without a
+     * previous frame every entry is compared against its flag. Entry actions
+     * always run (they may update derived state) and check for themselves
+     * whether to report.
+     * @param previous previous frame or null if none
+     * @param frame new frame
+     * @param target state object
+     * @param notify call the listener (false to only update state)
+     * @param listener listener
+     * @return number of flags changed
+     */
+    public int apply(int[] previous, int[] frame, T target, boolean notify, Listener<T> listener) {
+        int changes = 0;
+
+        for (Entry<T> entry : entries) {
+            int i = entry.index;
+            if (i >= frame.length) {
+                continue;
+            }
+            int diff = (previous == null || i >= previous.length) ? 0xff : previous[i] ^ frame[i];
+            if ((diff & entry.mask) == 0) {
+                continue;
+            }
+            boolean value = (frame[i] & entry.mask) != 0;
+            if (value == entry.getter.get(target)) {
+                continue;
+            }
+            entry.setter.set(target, value);
+            changes++;
+            if (entry.action != null) {
+                entry.action.changed(target, entry, value);
+            } else if (notify) {
+                listener.changed(target, entry, value);
+            }
+        }
+        return changes;
+    }
+}
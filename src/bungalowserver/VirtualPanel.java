@@ -3,6 +3,19 @@ package bungalowserver;
 import bungalowserver.Log.Level;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * Virtual panel A virtual panel in software that reflects the current state of
@@ -17,8 +30,19 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
     // Time waiting for arm/disarm to complete (milliseconds)
     private static final int ARM_DISARM_TIMEOUT = 4000;
-    private static SerialHandler serialHandler = null;
-    private static boolean panelReady;
+
+    // Arm/disarm/panic commands are sent to the panel on a shared worker
+    // thread so the caller is not blocked, the shared timer times-out
+    // commands the panel accepted but never reported the state change for
+    private final PanelContext context;
+    private final SerialHandler serialHandler;
+    private volatile boolean panelReady;
+
+    // Last interface configuration message (the panel fingerprint for the checkpoint)
+    private int[] interfaceConfiguration = new int[0];
+
+    // Was the virtual panel restored from the checkpoint instead of scanned?
+    private boolean isRestored = false;
 
     //<editor-fold defaultstate="collapsed" desc="System status variables">
 
@@ -37,48 +61,143 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
         reportsKeypadMessageReceived = false;
 
     /**
-     * System status variables
+     * System status variables (partition status is held per partition)
      */
     public boolean
         isSystemLowBattery = false,
-        isSystemSirenOn = false,
-        isSystemSteadySirenOn = false,
         isSystemAcPowerOn = true,
-        isSystemSmokePowerReset = false,
-        isSystemReadyToArm = false,
-        isSystemReadyToForceArm = false,
-        isSystemArmed = false, // Armed in any mode
-        isSystemArmedStay = false, // Stay mode (can be on or off along with Armed)
-        isSystemArmedInstant = false, // Instant mode (can be on or off along with Armed)
-        isSystemTimingEntry = false,
-        isSystemSensorError = false,
-        isSystemFireAlarmOn = false,
-        isSystemBurglaryAlarmOn = false;
+        isSystemSmokePowerReset = false;
     //isSystemGlobalSirenOn = false,
     //isSystemGlobalSteadySiren = false,
     //isSystemExitErrorTriggered = false,
     //isSystemFireUntilReset = false;  // turns on with fire, off after *7 smoke reset
+
+    /**
+     * Partition status, indexed by partition number - 1
+     */
+    private final Partition[] partitions = new Partition[Const.MAX_PARTITIONS];
     //</editor-fold>
 
-    //<editor-fold defaultstate="collapsed" desc="Singleton">
-    private static VirtualPanel instance = null;
+    //<editor-fold defaultstate="collapsed" desc="Command completion">
 
     /**
-     * Constructor
+     * Failure cause of a command future when the panel rejects the command
      */
-    protected VirtualPanel() {
-        // Exists only to defeat instantiation.
+    public static class PanelCommandException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int response;
+
+        /**
+         * Constructor
+         * @param message
+         * @param response panel response (SerialHandler.RESPONSE_COMMAND_...)
+         */
+        public PanelCommandException(String message, int response) {
+            super(message);
+            this.response = response;
+        }
+
+        /**
+         * Gets the panel response that rejected the command
+         * @return panel response (SerialHandler.RESPONSE_COMMAND_...)
+         */
+        public int getResponse() {
+            return response;
+        }
     }
 
     /**
-     * Gets the instance (synchronized to avoid possible multi-threading issues)
-     * @return instance
+     * A command waiting for the panel to report a partition state
      */
-    public static synchronized VirtualPanel getInstance() {
-        if (instance == null) {
-            instance = new VirtualPanel();
+    private static class StateWaiter {
+        final int partition;
+        final Predicate<Partition> isDone;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = null;
+
+        StateWaiter(int partition, Predicate<Partition> isDone) {
+            this.partition = partition;
+            this.isDone = isDone;
         }
-        return instance;
+    }
+
+    // Commands waiting for a partition state, completed by processPartitionStatus
+    // (only accessed on the panel core thread)
+    private final List<StateWaiter> waiters = new ArrayList<>();
+
+    /**
+     * An arm/disarm/panic command in flight
+     */
+    private static class CommandFlight {
+        final String key;
+        final CompletableFuture<Boolean> future;
+
+        CommandFlight(String key, CompletableFuture<Boolean> future) {
+            this.key = key;
+            this.future = future;
+        }
+    }
+
+    // Latest arm/disarm command per partition plus one lane for panics, so a
+    // panic never waits behind an arm or disarm (only accessed on the panel
+    // core thread), and the number of commands merged into one in flight
+    private static final int PANIC_LANE = Const.MAX_PARTITIONS + 1;
+    private final CommandFlight[] flights = new CommandFlight[PANIC_LANE];
+    private final AtomicLong mergedCount = new AtomicLong();
+
+    /**
+     * A client command published as pending until the panel confirms it
+     */
+    public static class PendingCommand {
+        public final int id;
+        public final CompletableFuture<Boolean> future;
+
+        PendingCommand(int id, CompletableFuture<Boolean> future) {
+            this.id = id;
+            this.future = future;
+        }
+    }
+
+    // Pending commands by correlation id, encoded for clients (only accessed
+    // on the panel core thread), and the next correlation id
+    private final Map<Integer, String> pending = new LinkedHashMap<>();
+    private final AtomicInteger nextPendingId = new AtomicInteger();
+
+    // Previous raw status frames, changes are found by XOR against these
+    // (null until the first frame, or after a snapshot found drift)
+    private final int[][] zoneFrames = new int[Const.MAX_ZONES][];
+    private final int[][] partitionFrames = new int[Const.MAX_PARTITIONS][];
+    private int[] systemFrame = null;
+
+    // Bit-to-event tables for the status frames (see buildTransitionTables)
+    private final TransitionTable<Zone> zoneTransitions = new TransitionTable<>();
+    private final TransitionTable<Partition> partitionTransitions = new TransitionTable<>();
+    private final TransitionTable<VirtualPanel> systemTransitions = new TransitionTable<>();
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Constructor">
+
+    /**
+     * Constructor
+     * @param context panel this virtual panel reflects
+     */
+    public VirtualPanel(PanelContext context) {
+        this.context = context;
+        this.serialHandler = context.serial;
+        for (int i = 0; i < Const.MAX_PARTITIONS; i++) {
+            partitions[i] = new Partition(i + 1);
+        }
+        buildTransitionTables();
+    }
+
+    /**
+     * Gets the panel this virtual panel belongs to
+     * @return panel context
+     */
+    public PanelContext getContext() {
+        return context;
     }
     //</editor-fold>
 
@@ -104,10 +223,27 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
         /**
          * Callback method required to be in the class that uses this callback
+         * @param panel panel the event occurred in
          * @param event
+         * @param partition partition number (1-8)
          * @param zone
+         * @param trace latency trace of the frame that caused the event
          */
-        void panelMessageCallback(int event, Zone zone);
+        void panelMessageCallback(PanelContext panel, int event, int partition, Zone zone, Trace trace);
+    }
+
+    // Latency trace of the frame being handled, Trace.NONE between frames
+    // (only accessed on the panel core thread)
+    private Trace frameTrace = Trace.NONE;
+
+    /**
+     * Sets the latency trace of the frame being handled (see SerialCallback)
+     * @param trace latency trace
+     */
+    @Override
+    public void frameTrace(Trace trace) {
+        frameTrace = trace;
+        context.core.trace(trace);
     }
     //</editor-fold>
 
@@ -118,9 +254,12 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
     public boolean start() {
 
         // Start the serial handler and subscribe to the
-        // SerialCallBack event (will invoke SerialReceiveCallback)
-        serialHandler = new SerialHandler();
+        // SerialCallBack event (will invoke SerialReceiveCallback),
+        // received messages are handled on the panel core thread
+        context.core.start();
         serialHandler.addListener(this);
+        serialHandler.setDispatcher(context.core::execute);
+        serialHandler.setUrgentDispatcher(context.core::executeUrgent);
         if (serialHandler.start() == false) {
             return false;
         }
@@ -137,35 +276,49 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
             return false;
         }
 
+        // Warm restart: restore the zones from the checkpoint if it was saved
+        // for this panel (the Reconciler validates it once running)
+        long fingerprint = Checkpoint.fingerprint(interfaceConfiguration);
+        isRestored = context.core.call(() -> context.checkpoint.restore(fingerprint));
+
         // Get the zone status for all zones and if zone is in-use then get zoen name
-        Log.print(Level.INFO, "Searching for zones in-use...");
-        for (int zone = 1; zone <= 64; zone++) {
-            // Request status of zone, callback will add the zone item to the list if valid zone
-            // requestZoneStatus will populate the zones (if zone is null after this call then zone is unused)
-            requestZoneStatus(zone);  // returns after message received and zone updated
-            // If zone is in-use then get the zone name
-            if (Zones.zoneExists(zone)) {
-                requestZoneName(zone);  // gets the zone name and updates it in the zone list
-                Log.print(Level.INFO, "Found zone " + zone + ": "
-                        + Zones.getZoneName(zone));
+        if (isRestored == false) {
+            Log.print(Level.INFO, "Searching for zones in-use...");
+            int scanLimit = context.zones.getScanLimit();
+            for (int zone = 1; zone <= scanLimit; zone++) {
+                // Request status of zone, callback will add the zone item to the list if valid zone
+                // requestZoneStatus will populate the zones (if zone is null after this call then zone is unused)
+                requestZoneStatus(zone);  // returns after message received and zone updated
+                // If zone is in-use then get the zone name
+                if (context.zones.zoneExists(zone)) {
+                    requestZoneName(zone);  // gets the zone name and updates it in the zone list
+                    Log.print(Level.INFO, "Found zone " + zone + ": "
+                            + context.zones.getZoneName(zone));
+                }
             }
         }
 
         String ls = System.lineSeparator();
         Log.print(Level.INFO, ls + "All zones loaded from panel: "
-                + ls + Zones.getZoneStatusMessage());
+                + ls + context.zones.getZoneStatusMessage());
 
         // Now check that all zones defined in the panel are defined
         // in the settings file and vice-versa
-        if (Zones.checkBuiltZones() == false) {
+        if (context.zones.checkBuiltZones() == false) {
             serialHandler.close();
             return false;
         }
 
-        // Get partition status from panel
-        if (requestPartitionStatus() == false) {
-            serialHandler.close();
-            return false;
+        // Get partition status from panel for every partition that has zones
+        int partitionsInUse = context.zones.getPartitionsInUse() | 1;
+        for (int p = 1; p <= Const.MAX_PARTITIONS; p++) {
+            if (((partitionsInUse >> (p - 1)) & 1) == 0) {
+                continue;
+            }
+            if (requestPartitionStatus(p) == false) {
+                serialHandler.close();
+                return false;
+            }
         }
 
         // Get system status from panel
@@ -181,9 +334,21 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
         }
 
         panelReady = true;
+        context.checkpoint.enable(fingerprint);
+        context.core.execute(context.journal::enable);
+        context.core.execute(context.openZones::start);
         return true;
     }
 
+    /**
+     * Was the virtual panel restored from the checkpoint (and so still needs
+     * to be validated against the panel)?
+     * @return true if restored, false if scanned from the panel
+     */
+    public boolean isRestored() {
+        return isRestored;
+    }
+
     /**
      * Stops the virtual panel service
      */
@@ -254,6 +419,155 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
         return isSuccess;
     }
 
+    //<editor-fold defaultstate="collapsed" desc="Transition tables">
+    /**
+     * Builds the bit-to-event tables for the zone, partition and system
+     * status frames. Entries without events only keep the state up to date.
+     * Within a frame byte, entries are handled in the order added.
+     */
+    private void buildTransitionTables() {
+        TransitionTable<Zone> z = zoneTransitions;
+
+        // Zone type flags 1
+        z.bit(3, 0x01, zn -> zn.isTypeFire, (zn, v) -> zn.isTypeFire = v);
+        z.bit(3, 0x02, zn -> zn.isTypeTwentyFourHour, (zn, v) -> zn.isTypeTwentyFourHour = v);
+        z.bit(3, 0x30, zn -> zn.isTypeEntryExitDelay, (zn, v) -> zn.isTypeEntryExitDelay = v);
+        z.bit(3, 0x40, zn -> zn.isTypeInterior, (zn, v) -> zn.isTypeInterior = v);
+
+        // Zone condition flags 1, faulted/ready is reported through the
+        // coalescer so chatty zones do not flood the log, event log and rules
+        z.bit(6, 0x01, zn -> zn.isFaulted, (zn, v) -> zn.isFaulted = v)
+                .then((zn, entry, v) -> {
+                    if (panelReady) {
+                        context.openZones.zoneFaultChanged(zn);
+                        context.coalescer.zoneFaultChanged(zn);
+                    }
+                });
+        z.bit(6, 0x66, zn -> zn.isError, (zn, v) -> zn.isError = v)  // tamper/trouble/lowbatt/lost
+                .on(Const.EVENT_ZONE_ERROR, "error (tamper/trouble/lowbatt/lost)")
+                .off(Const.EVENT_ZONE_ERROR_CLEARED, "error cleared").logOnlyOff();
+        z.bit(6, 0x08, zn -> zn.isBypassed, (zn, v) -> zn.isBypassed = v)
+                .on(TransitionTable.NONE, "bypassed")
+                .off(TransitionTable.NONE, "bypass removed");
+        z.bit(6, 0x10, zn -> zn.isForceArmed, (zn, v) -> zn.isForceArmed = v)
+                .on(Const.EVENT_ZONE_FORCE_ARMED, "force-armed").logOnlyOn();
+
+        // Zone condition flags 2
+        z.bit(7, 0x01, zn -> zn.isAlarmMemory, (zn, v) -> zn.isAlarmMemory = v)
+                .then((zn, entry, v) -> {
+                    if (panelReady) {
+                        context.alarms.alarmMemoryChanged(zn);
+                    }
+                });
+
+        TransitionTable<Partition> p = partitionTransitions;
+
+        // From testing it appears that the 'reserved' bit at byte-6/bit-3
+        // actually indicates if arming in stay vs away mode, can use it to
+        // determine if arming in stay mode vs away mode. SilentExit bit
+        // appears to do the same so could use that instead. Otherwise, the
+        // actual armed-stay bit is not set when the armed bit is set
+        // but is actually set a few responses later.
+        // ARM STAY: reports: [Armed/SilentExit/ReserverdBit] ... [Stay]
+        // 86-00-40-00-CA-48-62-84-80   40=Armed, CA=SilentExit, 48=ReservedBit
+        // 86-00-40-00-CA-48-62-04-A0   04=BeepEnd
+        // 86-00-40-00-CE-48-62-04-A0   CE=EntryGuard/StayMode
+        // ARM AWAY: reports: [Armed]
+        // 86-00-40-00-C8-40-62-84-80   40=Armed
+        // 86-00-40-00-C8-40-62-04-80   04=BeepEnd
+        p.bit(2, 0x40, pt -> pt.isArmed, (pt, v) -> pt.isArmed = v)  // armed in any mode
+                .on(Const.EVENT_ARMED, "is armed")
+                .off(Const.EVENT_DISARMED, "is disarmed");
+
+        // Right after armed: EventLog replaces the ARMED entry just logged
+        // with ARMED_STAY
+        p.bit(4, 0x04, pt -> pt.isArmedStay, (pt, v) -> pt.isArmedStay = v)
+                .on(Const.EVENT_ARMED_STAY, "is armed in stay mode");
+        p.bit(2, 0x80, pt -> pt.isArmedInstant, (pt, v) -> pt.isArmedInstant = v)
+                .on(Const.EVENT_INSTANT_MODE_ON, "is armed in instant mode")
+                .off(Const.EVENT_INSTANT_MODE_OFF, "is armed in normal (delayed-entry) mode");
+
+        // Sirens: a fire sends siren on and steady siren on together, so only
+        // report the fire alarm (steady siren is handled first)
+        p.bit(3, 0x04, pt -> pt.isSteadySirenOn, (pt, v) -> pt.isSteadySirenOn = v)
+                .then((pt, entry, v) -> {
+                    if (v) {
+                        pt.isFireAlarmOn = true;
+                        partitionEvent(pt, Const.EVENT_FIRE_ALARM, "FIRE ALARM!");
+                    }
+                });
+        p.bit(3, 0x02, pt -> pt.isSirenOn, (pt, v) -> pt.isSirenOn = v)
+                .then((pt, entry, v) -> {
+                    if (v && pt.isFireAlarmOn == false) {
+                        pt.isBurglaryAlarmOn = true;
+                        partitionEvent(pt, Const.EVENT_BURGLARY_ALARM, "BURGLARY ALARM!");
+                    } else if (v == false) {
+                        pt.isFireAlarmOn = false;
+                        pt.isBurglaryAlarmOn = false;
+                        partitionEvent(pt, Const.EVENT_ALARM_OFF, "siren is off");
+                    }
+                });
+
+        p.bit(4, 0x10, pt -> pt.isTimingEntry, (pt, v) -> pt.isTimingEntry = v)
+                .on(Const.EVENT_TIMING_ENTRY, "is timing entry");
+        p.bit(5, 0xc0, pt -> pt.isSensorError, (pt, v) -> pt.isSensorError = v)  // sensor low battery or lost
+                .on(Const.EVENT_SENSOR_LOST, "detected sensor trouble!");
+        p.bit(7, 0x04, pt -> pt.isReadyToArm, (pt, v) -> pt.isReadyToArm = v);
+        p.bit(7, 0x08, pt -> pt.isReadyToForceArm, (pt, v) -> pt.isReadyToForceArm = v);
+
+        TransitionTable<VirtualPanel> s = systemTransitions;
+
+        s.bit(3, 0x40, vp -> vp.isSystemLowBattery, (vp, v) -> vp.isSystemLowBattery = v)
+                .on(Const.EVENT_SYSTEM_BATTERY_LOW, "System battery is low!")
+                .off(Const.EVENT_SYSTEM_BATTERY_OK, "System battery is ok").logOnlyOff();
+        s.bit(6, 0x02, vp -> vp.isSystemAcPowerOn, (vp, v) -> vp.isSystemAcPowerOn = v)  // current ac power
+                .on(Const.EVENT_AC_POWER_RESTORED, "Ac power is on")
+                .off(Const.EVENT_AC_POWER_FAIL, "Ac power is off!");
+        s.bit(6, 0x20, vp -> vp.isSystemSmokePowerReset, (vp, v) -> vp.isSystemSmokePowerReset = v)
+                .on(Const.EVENT_SMOKE_RESET, "Smoke detector reset");
+    }
+
+    /**
+     * Handles a flag change found by a transition table: logs it, adds its
+     * event to the event log and reports it
+     * @param entry table entry
+     * @param value new flag value
+     * @param preMsg log message prefix
+     * @param zoneNum zone number or 0 if not a zone event
+     * @param partition partition number (1-8)
+     */
+    private void transition(TransitionTable.Entry<?> entry, boolean value,
+            String preMsg, int zoneNum, int partition) {
+        String text = value ? entry.onText : entry.offText;
+        if (text == null) {
+            return;
+        }
+        Log.print(Level.INFO, preMsg + text);
+
+        int event = value ? entry.onEvent : entry.offEvent;
+        if (event != TransitionTable.NONE) {
+            context.eventLog.logEvent(event, zoneNum, partition);
+            if (value ? entry.reportOn : entry.reportOff) {
+                reportEvent(event, partition, zoneNum);
+            }
+        }
+    }
+
+    /**
+     * Logs and reports a partition event (unless still building the panel)
+     * @param part partition
+     * @param event event
+     * @param text log text
+     */
+    private void partitionEvent(Partition part, int event, String text) {
+        if (panelReady) {
+            Log.print(Level.INFO, "Partition " + part.number + " " + text);
+            context.eventLog.logEvent(event, 0, part.number);
+            reportEvent(event, part.number, 0);
+        }
+    }
+    //</editor-fold>
+
     /**
      * Determines if the specified bit is set or clear
      * @param dataByte Data byte (0..)
@@ -273,6 +587,8 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
         Log.print(Level.INFO, "Received Inteface Configuration message from panel: "
                 + Tools.toHexString(message), false);
 
+        interfaceConfiguration = message.clone();
+
         // Transitions (events reported by panel over serial)
         reportsInterfaceConfiguration = isBitSet(message[5], 1);
         reportsZoneStatus = isBitSet(message[5], 4);
@@ -308,9 +624,9 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
                 }
                 sb.append((char) ch);
             }
-            Zones.setZonePanelName(zoneNum, sb.toString().trim());
+            context.zones.setZonePanelName(zoneNum, sb.toString().trim());
         } // otherwise, if panel was already built and a new zone comes along then error
-        else if (Zones.zoneExists(zoneNum) == false) {
+        else if (context.zones.zoneExists(zoneNum) == false) {
             String msg = "Received a zone name message for zone " + zoneNum
                     + " which did not exist when all zones were scanned! "
                     + Tools.toHexString(message);
@@ -333,7 +649,7 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
         int PartitionMask = message[2];
 
         // Validate zone number
-        if (zoneNum < 1 || zoneNum > 64) {
+        if (zoneNum < 1 || zoneNum > Const.MAX_ZONES) {
             Log.print(Level.ERROR, "Received zone status from panel for invalid zone: "
                     + Tools.toHexString(message), false);
             return;
@@ -341,29 +657,20 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
         // If zone does not belong to any partitions log a message and return
         // This will occur when initially buliding the zone data (when searching all zones
-        // to pick out the ones that belong to partition 1) but should not occur after
+        // to pick out the ones that are in-use) but should not occur after
         if (PartitionMask == 0) {
             Log.print(Level.WARN, "Received zone status for unused zone "
                     + zoneNum + ": " + Tools.toHexString(message), false);
             return;
         }
 
-        // If zone belongs to partitions outside of partition 1 then error
-        // Only partition 1 is supported, if zone belongs to other partitions
-        // then need to adjust the panel settings
-        if (PartitionMask != 1) {
-            Log.print(Level.WARN, "Received zone status for zone "
-                    + zoneNum + " belonging to other partitions: "
-                    + Tools.toHexString(message), false);
-        }
-
         // If panel build has not yet completed then allow zones to be added
         if (panelReady == false) {
-            if (Zones.zoneExists(zoneNum) == false) {
-                Zones.addZone(zoneNum);
+            if (context.zones.zoneExists(zoneNum) == false) {
+                context.zones.addZone(zoneNum);
             }
         } // otherwise, if panel was already built and a new zone comes along then error
-        else if (Zones.zoneExists(zoneNum) == false) {
+        else if (context.zones.zoneExists(zoneNum) == false) {
             throw new RuntimeException("Received a zone status for zone "
                     + zoneNum
                     + " which did not exist when all zones were scanned! "
@@ -371,126 +678,224 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
         }
 
         // Get a handle to the current zone (so I dont need to keep referencing as zones[ZoneNum]
-        Zone zone = Zones.getZone(zoneNum);
-
-        // I don't currently monitor or update these:
-        // Zone.isTypeFireZone = bits.Get(B4+0);
-        // Zone.isTypeTwentyFourHour = bits.Get(B4+1);
-        // Zone.isTypeEntryExitDelay = (bits.Get(B4+4) || bits.Get(B4+5));  // delay 1 or 2
-        // Zone.isTypeInterior = bits.Get(B4+6);
-        // Zone.isTypeEntryGuard = bits.Get(B4+7);
-        Log.print(Level.INFO, "Received zone status from panel: "
-                + Tools.toHexString(message), false);
-        String preMsg = "Zone " + zoneNum + " " + Zones.getZoneName(zoneNum) + ", ";
-
-        // Now detect status bit changes
-
-        // ZONE FAULTED
-        boolean bit;
-        bit = isBitSet(message[6], 0);
-        if (bit != zone.isFaulted) { // if changed state (became faulted or became ready)
-            zone.isFaulted = bit;  // update the saved bit state
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) { // if faulted
-                    // handle glass-break
-                    switch (zone.type) {
-                        case Const.ZONE_TYPE_GLASS:
-                            Log.print(Level.INFO, preMsg + "glass-break detected");
-                            EventLog.logEvent(Const.EVENT_GLASS_BREAK, zoneNum);
-                            reportEvent(Const.EVENT_GLASS_BREAK, zoneNum);
-                            break;
-                        case Const.ZONE_TYPE_DOORBELL:
-                            Log.print(Level.INFO, preMsg + "doorbell rang");
-                            EventLog.logEvent(Const.EVENT_DOORBELL, zoneNum);
-                            reportEvent(Const.EVENT_DOORBELL, zoneNum);
-                            break;
-                        case Const.ZONE_TYPE_FREEZE:
-                            Log.print(Level.INFO, preMsg + "freeze warning");
-                            EventLog.logEvent(Const.EVENT_FREEZE, zoneNum);
-                            reportEvent(Const.EVENT_FREEZE, zoneNum);
-                            break;
-                        default:
-                            // Report open/fault events for all (doors,
-                            // windows, fire/smoke, glass-break, motion, etc)
-                            Log.print(Level.INFO, preMsg + "faulted");
-                            EventLog.logEvent(Const.EVENT_ZONE_FAULTED, zoneNum);
-                            reportEvent(Const.EVENT_ZONE_FAULTED, zoneNum);
-                            break;
-                    }
-                } else {
+        Zone zone = context.zones.getZone(zoneNum);
+        context.zones.setPartitionMask(zoneNum, PartitionMask);
+        int partition = zone.getPartition();
+        int oldStatus = getZoneStatusBits(zone);
+
+        // Hex dumps are the first thing shed when the core is backlogged
+        if (context.core.isBusy() == false) {
+            Log.print(Level.INFO, "Received zone status from panel: "
+                    + Tools.toHexString(message), false);
+        }
 
-                    // Don't log ready/closed/restored messages for sensors that
-                    // change back quickly, like motion sensors and glass-breaks.
-                    //
-                    // Log these:
-                    //      ZONE_TYPE_DOOR, ZONE_TYPE_WINDOW,
-                    //      ZONE_TYPE_FIRE, ZONE_TYPE_FREEZE
-                    // Not these:
-                    //      ZONE_TYPE_MOTION, ZONE_TYPE_GLASS,
-                    //      ZONE_TYPE_KEYFOB, ZONE_TYPE_DOORBELL,
-                    //      ZONE_TYPE_INFO, ZONE_TYPE_UNKNOWN
-
-                    if (zone.type == Const.ZONE_TYPE_DOOR
-                        || zone.type == Const.ZONE_TYPE_WINDOW
-                        || zone.type == Const.ZONE_TYPE_FIRE
-                        || zone.type == Const.ZONE_TYPE_FREEZE) {
-
-                        Log.print(Level.INFO, preMsg + "ready");
-                        EventLog.logEvent(Const.EVENT_ZONE_READY, zoneNum);
-                        reportEvent(Const.EVENT_ZONE_READY, zoneNum);
-                    }
-                }
-            }
+        // Only the bits that changed since the previous frame are handled
+        zoneTransitions.apply(zoneFrames[zoneNum - 1], message, zone, panelReady,
+                (z, entry, value) -> transition(entry, value,
+                        "Zone " + z.number + " " + context.zones.getZoneName(z.number) + ", ",
+                        z.number, partition));
+        zoneFrames[zoneNum - 1] = message;
+
+        // Update the client status string if anything changed
+        if (getZoneStatusBits(zone) != oldStatus) {
+            context.zones.statusChanged(zone);
         }
+    }
 
-        // ZONE TAMPER/TROUBLE/LOWBATT/LOST
-        bit = isBitSet(message[6], 1) || isBitSet(message[6], 2)
-                || isBitSet(message[6], 5) || isBitSet(message[6], 6);
-        if (bit != zone.isError) {
-            zone.isError = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) {
-                    Log.print(Level.INFO, preMsg + "error (tamper/trouble/lowbatt/lost)");
-                    EventLog.logEvent(Const.EVENT_ZONE_ERROR, zoneNum);
-                    reportEvent(Const.EVENT_ZONE_ERROR, zoneNum);
-                } else {
-                    Log.print(Level.INFO, preMsg + "error cleared");
-                    EventLog.logEvent(Const.EVENT_ZONE_ERROR_CLEARED, zoneNum);
-                }
+    /**
+     * Reports a zone becoming faulted or ready (called by the ZoneCoalescer)
+     * @param zone zone
+     * @param faulted true if faulted, false if ready
+     * @param detail appended to the log message (coalesced changes) or empty
+     */
+    void reportZoneFault(Zone zone, boolean faulted, String detail) {
+        int zoneNum = zone.number;
+        int partition = zone.getPartition();
+        String preMsg = "Zone " + zoneNum + " " + context.zones.getZoneName(zoneNum) + ", ";
+
+        if (faulted) {
+            // handle glass-break
+            switch (zone.type) {
+                case Const.ZONE_TYPE_GLASS:
+                    Log.print(Level.INFO, preMsg + "glass-break detected" + detail);
+                    context.eventLog.logEvent(Const.EVENT_GLASS_BREAK, zoneNum);
+                    reportEvent(Const.EVENT_GLASS_BREAK, partition, zoneNum);
+                    break;
+                case Const.ZONE_TYPE_DOORBELL:
+                    Log.print(Level.INFO, preMsg + "doorbell rang" + detail);
+                    context.eventLog.logEvent(Const.EVENT_DOORBELL, zoneNum);
+                    reportEvent(Const.EVENT_DOORBELL, partition, zoneNum);
+                    break;
+                case Const.ZONE_TYPE_FREEZE:
+                    Log.print(Level.INFO, preMsg + "freeze warning" + detail);
+                    context.eventLog.logEvent(Const.EVENT_FREEZE, zoneNum);
+                    reportEvent(Const.EVENT_FREEZE, partition, zoneNum);
+                    break;
+                default:
+                    // Report open/fault events for all (doors,
+                    // windows, fire/smoke, glass-break, motion, etc)
+                    Log.print(Level.INFO, preMsg + "faulted" + detail);
+                    context.eventLog.logEvent(Const.EVENT_ZONE_FAULTED, zoneNum);
+                    reportEvent(Const.EVENT_ZONE_FAULTED, partition, zoneNum);
+                    break;
             }
+        } else {
+
+            // Don't log ready/closed/restored messages for sensors that
+            // change back quickly, like motion sensors and glass-breaks.
+            //
+            // Log these:
+            //      ZONE_TYPE_DOOR, ZONE_TYPE_WINDOW,
+            //      ZONE_TYPE_FIRE, ZONE_TYPE_FREEZE
+            // Not these:
+            //      ZONE_TYPE_MOTION, ZONE_TYPE_GLASS,
+            //      ZONE_TYPE_KEYFOB, ZONE_TYPE_DOORBELL,
+            //      ZONE_TYPE_INFO, ZONE_TYPE_UNKNOWN
+
+            if (zone.type == Const.ZONE_TYPE_DOOR
+                || zone.type == Const.ZONE_TYPE_WINDOW
+                || zone.type == Const.ZONE_TYPE_FIRE
+                || zone.type == Const.ZONE_TYPE_FREEZE) {
+
+                Log.print(Level.INFO, preMsg + "ready" + detail);
+                context.eventLog.logEvent(Const.EVENT_ZONE_READY, zoneNum);
+                reportEvent(Const.EVENT_ZONE_READY, partition, zoneNum);
+            }
+        }
+    }
+
+    /**
+     * Reports a door or window left open (called by the OpenZoneMonitor)
+     * @param zone zone
+     * @param minutes minutes open
+     */
+    void reportZoneOpen(Zone zone, int minutes) {
+        Log.print(Level.INFO, "Zone " + zone.number + " " + context.zones.getZoneName(zone.number)
+                + ", open for " + minutes + " minutes");
+        reportEvent(Const.EVENT_ZONE_OPEN_TOO_LONG, zone.getPartition(), zone.number);
+    }
+
+    /**
+     * Handles zone snapshot messages (requested by the Reconciler). Each
+     * message covers a block of 16 zones, 4 bits per zone (faulted, bypassed,
+     * trouble, alarm memory). The block is packed into one word and compared
+     * against the virtual panel with a single XOR, zones that differ are
+     * reported to the Reconciler to be re-read.
+     * @param message Data from the panel
+     */
+    @Override
+    public void processZoneSnapshot(int[] message) {
+        Log.print(Level.INFO, "Received zone snapshot: " + Tools.toHexString(message), false);
+
+        // Ignore until the virtual panel is built
+        if (panelReady == false || message.length < 10) {
+            return;
         }
 
-        // ZONE FORCE-ARMED
-        bit = isBitSet(message[6], 4);
-        if (bit != zone.isForceArmed) {
-            zone.isForceArmed = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) {
-                    Log.print(Level.INFO, preMsg + "force-armed");
-                    EventLog.logEvent(Const.EVENT_ZONE_FORCE_ARMED, zoneNum);
-                }
+        int firstZone = message[1] * 16 + 1;
+        long panelBits = 0;
+        long localBits = 0;
+        long mask = 0;
+
+        for (int i = 0; i < 16; i++) {
+            Zone zone = context.zones.getZone(firstZone + i);
+            if (zone == null) {
+                continue;
             }
+            int shift = i * 4;
+            panelBits |= (long) ((message[2 + i / 2] >> ((i & 1) * 4)) & 0x0f) << shift;
+            localBits |= (long) getZoneSnapshotBits(zone) << shift;
+            mask |= (long) ZONE_SNAPSHOT_MASK << shift;
+        }
+
+        long drift = (panelBits ^ localBits) & mask;
+        while (drift != 0) {
+            int i = Long.numberOfTrailingZeros(drift) / 4;
+            // Forget the stored frame so the re-read is compared bit by bit
+            zoneFrames[firstZone + i - 1] = null;
+            context.reconciler.zoneDrift(firstZone + i, (int) (drift >>> (i * 4)) & 0x0f);
+            drift &= ~(0x0fL << (i * 4));
         }
+    }
+
+    // Zone snapshot bits compared (faulted, bypassed, trouble, alarm memory)
+    private static final int ZONE_SNAPSHOT_MASK = 0x0f;
 
-        // ZONE ALARM MEMORY
-        zone.isAlarmMemory = isBitSet(message[7], 0);
+    /**
+     * Packs the zone status flags in zone snapshot format
+     * @param zone zone
+     * @return snapshot bits (faulted, bypassed, trouble, alarm memory)
+     */
+    private static int getZoneSnapshotBits(Zone zone) {
+        return (zone.isFaulted ? 0x01 : 0)
+                | (zone.isBypassed ? 0x02 : 0)
+                | (zone.isError ? 0x04 : 0)
+                | (zone.isAlarmMemory ? 0x08 : 0);
     }
 
+    /**
+     * Packs the zone status flags so a change can be detected with a
+     * single compare
+     * @param zone zone
+     * @return status bits
+     */
+    private static int getZoneStatusBits(Zone zone) {
+        return (zone.isFaulted ? 0x01 : 0)
+                | (zone.isBypassed ? 0x02 : 0)
+                | (zone.isForceArmed ? 0x04 : 0)
+                | (zone.isAlarmMemory ? 0x08 : 0)
+                | (zone.isError ? 0x10 : 0);
+    }
+
+    /**
+     * Handles partition snapshot messages (requested by the Reconciler). One
+     * byte per partition (valid, ready, armed, stay, chime, entry delay, exit
+     * delay, previous alarm), partitions that differ from the virtual panel
+     * are reported to the Reconciler to be re-read.
+     * @param message Data from the panel
+     */
+    @Override
+    public void processPartitionSnapshot(int[] message) {
+        Log.print(Level.INFO, "Received partition snapshot: " + Tools.toHexString(message), false);
+
+        // Ignore until the virtual panel is built
+        if (panelReady == false) {
+            return;
+        }
+
+        int count = Math.min(Const.MAX_PARTITIONS, message.length - 1);
+        for (int i = 0; i < count; i++) {
+            Partition part = partitions[i];
+            int local = (part.isValid ? 0x01 : 0)
+                    | (part.isReadyToArm ? 0x02 : 0)
+                    | (part.isArmed ? 0x04 : 0)
+                    | (part.isArmedStay ? 0x08 : 0)
+                    | (part.isTimingEntry ? 0x20 : 0);
+            int drift = (message[i + 1] ^ local) & PARTITION_SNAPSHOT_MASK;
+            // Only compare the other bits for partitions the panel reports as valid
+            if ((message[i + 1] & 0x01) == 0) {
+                drift &= 0x01;
+            }
+            if (drift != 0) {
+                partitionFrames[i] = null;
+                context.reconciler.partitionDrift(part.number, drift);
+            }
+        }
+    }
+
+    // Partition snapshot bits compared (valid, ready, armed, stay, entry delay)
+    private static final int PARTITION_SNAPSHOT_MASK = 0x2f;
+
     /**
      * Handle partition status message from panel
      * @param message
      */
     @Override
     public void processPartitionStatus(int[] message) {
-        boolean bit;
 
         int partition = message[1] + 1;
 
-        if (partition != 1) // first partition
-        {
+        if (partition < 1 || partition > Const.MAX_PARTITIONS) {
             // Warn and continue
             Log.print(Level.WARN, "Ignoring partition status for partition "
                     + partition + ": " + Tools.toHexString(message), false);
@@ -499,163 +904,219 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
         Log.print(Level.INFO, "Received partition status: " + Tools.toHexString(message), false);
 
-        // From testing it appears that the 'reserved' bit at byte-6/bit-3
-        // actually indicates if arming in stay vs away mode, can use it to
-        // determine if arming in stay mode vs away mode. SilentExit bit
-        // appears to do the same so could use that instead. Otherwise, the
-        // actual armed-stay bit is not set when the armed bit is set
-        // but is actually set a few responses later.
-        //bool armedBit = bits.Get(B3+6);      // Armed (true if armed in any mode, stay or exit, instant or delayed)
-        //bool instantBit = bits.Get(B3+7);    // Instant (true if armed in instant mode)
-        //bool silenExitBit = bits.Get(B5+1);  // This bit is on if armed in stay mode
-        //bool armedStayBit = bits.Get(B5+2);  // ArmedStay (true if armed in stay mode)
-        //bool reservedBit = bits.Get(B6+3);   // Reserverd bit, seems to indicate if arming in away mode
-        // ARM STAY: reports: [Armed/SilentExit/ReserverdBit] ... [Stay]
-        // 84-02-01-58-13-F0-08-00
-        // 84-03-01-58-13-F0-08-00
-        // 86-00-40-00-CA-48-62-84-80   40=Armed, CA=SilentExit, 48=ReservedBit
-        // 86-00-40-00-CA-48-62-84-A0
-        // 86-00-40-00-CA-48-62-04-A0   04=BeepEnd
-        // 86-00-40-00-CA-48-62-04-A0
-        // 86-00-40-00-CE-48-62-04-A0   CE=EntryGuard/StayMode
-        // ARM AWAY: reports: [Armed]
-        // 86-00-40-00-C8-40-62-84-80   40=Armed
-        // 86-00-40-00-C8-40-62-84-80
-        // 86-00-40-00-C8-40-62-04-80   04=BeepEnd
-        // 86-00-40-00-C8-40-62-04-80
-        // ARMED (armed in any mode (stay or away))
-        bit = isBitSet(message[2], 6);
-        if (bit != isSystemArmed) {
-            isSystemArmed = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (isSystemArmed) {
-                    Log.print(Level.INFO, "System is armed");
-                    EventLog.logEvent(Const.EVENT_ARMED);
-                    reportEvent(Const.EVENT_ARMED);
-                } else {
-                    Log.print(Level.INFO, "System is disarmed");
-                    EventLog.logEvent(Const.EVENT_DISARMED);
-                    reportEvent(Const.EVENT_DISARMED);
-                }
+        Partition part = partitions[partition - 1];
+        part.isValid = true;
+
+        // Only the bits that changed since the previous frame are handled
+        partitionTransitions.apply(partitionFrames[partition - 1], message, part, panelReady,
+                (pt, entry, value) -> transition(entry, value,
+                        "Partition " + pt.number + " ", 0, pt.number));
+        partitionFrames[partition - 1] = message;
+
+        context.checkpoint.changed();
+        context.journal.partitionChanged(part);
+
+        // Complete any commands waiting for this state
+        completeWaiters(part);
+    }
+
+    /**
+     * Completes the commands waiting for the partition to reach a state
+     * @param part partition with updated status
+     */
+    private void completeWaiters(Partition part) {
+        for (StateWaiter waiter : new ArrayList<>(waiters)) {
+            if (waiter.partition == part.number && waiter.isDone.test(part)) {
+                finishWaiter(waiter, null);
             }
         }
+    }
 
-        // STAY MODE
-        bit = isBitSet(message[4], 2);
-        if (bit != isSystemArmedStay) {
-            isSystemArmedStay = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (isSystemArmedStay) {
-                    Log.print(Level.INFO, "System is armed in stay mode");
-                    EventLog.logEvent(Const.EVENT_ARMED_STAY);
-                    reportEvent(Const.EVENT_ARMED_STAY);
-                }
-            }
+    /**
+     * Removes a waiting command and completes its future on a worker thread
+     * once the new state is published (so client continuations never run on
+     * the panel core thread and see the new state). Does nothing if the
+     * command was already finished. Call on the core thread.
+     * @param waiter waiting command
+     * @param ex failure cause or null on success
+     */
+    private void finishWaiter(StateWaiter waiter, Throwable ex) {
+        if (waiters.remove(waiter) == false) {
+            return;
         }
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+        }
+        context.core.afterPublish(() -> {
+            if (ex == null) {
+                waiter.future.complete(true);
+            } else {
+                waiter.future.completeExceptionally(ex);
+            }
+        });
+    }
+
+    /**
+     * Runs a command on the panel core thread, where it may read the panel
+     * state, and returns the future the command produced
+     * @param command command, returns its future
+     * @return future of the command
+     */
+    private CompletableFuture<Boolean> onCore(Supplier<CompletableFuture<Boolean>> command) {
+        return context.core.submit(command).thenCompose(future -> future);
+    }
+
+    /**
+     * Single-flight front for the arm/disarm/panic commands. An identical
+     * command (same key) already in flight as the latest command in its lane
+     * is not sent again, the caller shares its future. A different
+     * command runs after the latest one finishes (whatever its outcome), so
+     * conflicting commands (arm vs disarm) run one at a time in the order
+     * they reached the panel core, each against the state the previous one
+     * left.
+     * @param key identifies identical commands (name and pin)
+     * @param lane partition number (1-8) or PANIC_LANE
+     * @param command command, returns its future (runs on the panel core thread)
+     * @return future of the command
+     */
+    private CompletableFuture<Boolean> singleFlight(String key, int lane,
+            Supplier<CompletableFuture<Boolean>> command) {
+        return onCore(() -> {
+            CommandFlight latest = flights[lane - 1];
+            CompletableFuture<Boolean> future;
+            if (latest == null || latest.future.isDone()) {
+                future = command.get();
+            } else if (latest.key.equals(key)) {
+                mergedCount.incrementAndGet();
+                Log.print(Level.INFO, "Joining command already in flight", false);
+                return latest.future;
+            } else {
+                future = latest.future.handle((result, ex) -> true)
+                        .thenCompose(done -> onCore(command));
+            }
+            flights[lane - 1] = new CommandFlight(key, future);
+            return future;
+        });
+    }
+
+    /**
+     * Gets the number of commands merged into an identical command in flight
+     * since startup
+     * @return merged command count
+     */
+    public long getMergedCommandCount() {
+        return mergedCount.get();
+    }
 
-        // INSTANT (instant mode toggled)
-        bit = isBitSet(message[2], 7);
-        if (bit != isSystemArmedInstant) {
-            isSystemArmedInstant = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) {
-                    Log.print(Level.INFO, "System is armed in instant mode");
-                    EventLog.logEvent(Const.EVENT_INSTANT_MODE_ON);
-                    reportEvent(Const.EVENT_INSTANT_MODE_ON);
+    /**
+     * Publishes a provisional "pending" state for a command the moment it is
+     * accepted, so clients can show it before the panel reports the new
+     * state. The pending state is withdrawn when the command finishes, the
+     * returned future completes after the withdrawal is published (with the
+     * command outcome) so the final state a client reads is accurate.
+     * @param partition partition number (1-8)
+     * @param status Const.PENDING_ value
+     * @param command future of the command
+     * @return correlation id and the future to confirm or roll back on
+     */
+    public PendingCommand publishPending(int partition, char status, CompletableFuture<Boolean> command) {
+        int id = Math.floorMod(nextPendingId.getAndIncrement(), 80 * 80);
+        String encoded = Base80.encodeWide(id) + Base80.encodeChar(partition - 1) + status;
+        CompletableFuture<Boolean> settled = new CompletableFuture<>();
+
+        context.core.execute(() -> pending.put(id, encoded));
+        command.whenComplete((result, ex) -> context.core.execute(() -> {
+            pending.remove(id);
+            context.core.afterPublish(() -> {
+                if (ex == null) {
+                    settled.complete(result);
                 } else {
-                    Log.print(Level.INFO, "System is armed in normal (delayed-entry) mode");
-                    EventLog.logEvent(Const.EVENT_INSTANT_MODE_OFF);
-                    reportEvent(Const.EVENT_INSTANT_MODE_OFF);
+                    settled.completeExceptionally(ex);
                 }
-            }
-        }
+            });
+        }));
+        return new PendingCommand(id, settled);
+    }
 
-        // ---------------------------------------------------
-        // Could use the system global vars to do this or use the partition vars here
-        // Create events FireSiren, BurglarySiren and SirenOff
-        // from bits SirenOn/Off and SteadySirenOn/Off
-        // Avoids sending multiple messages when an event occurs
-        // (ie, Fire event sends all three: SirenOn, SteadySirenOn, PulsingBuzzer)
-        // So change this so it only sends the relevant message (SteadySirenOn)
-        boolean sirenBit = isBitSet(message[3], 1);         // SirenOn
-        boolean steadySirenBit = isBitSet(message[3], 2);   // SteadySirenOn
-
-        if (steadySirenBit && !isSystemSteadySirenOn) // steady siren turned on
-        {
-            isSystemFireAlarmOn = true;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                Log.print(Level.INFO, "FIRE ALARM!");
-                EventLog.logEvent(Const.EVENT_FIRE_ALARM);
-                reportEvent(Const.EVENT_FIRE_ALARM);
-            }
-        } else if (sirenBit && !isSystemSirenOn) // burglary siren turned on
-        {
-            isSystemBurglaryAlarmOn = true;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                Log.print(Level.INFO, "BURGLARY ALARM!");
-                EventLog.logEvent(Const.EVENT_BURGLARY_ALARM);
-                reportEvent(Const.EVENT_BURGLARY_ALARM);
-            }
-        } else if (!sirenBit && isSystemSirenOn) // siren turned off
-        {
-            isSystemFireAlarmOn = false;
-            isSystemBurglaryAlarmOn = false;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                Log.print(Level.INFO, "Siren is off");
-                EventLog.logEvent(Const.EVENT_ALARM_OFF);
-                reportEvent(Const.EVENT_ALARM_OFF);
-            }
+    /**
+     * Gets the pending commands string to send to clients, iips for each
+     * pending command where ii = correlation id (wide base80), p = partition
+     * index (base80), s = Const.PENDING_ value. Call on the panel core thread.
+     * @return pending commands string (empty if none)
+     */
+    public String getPendingForClient() {
+        StringBuilder sb = new StringBuilder();
+        for (String command : pending.values()) {
+            sb.append(command);
         }
+        return sb.toString();
+    }
 
-        isSystemSirenOn = sirenBit;
-        isSystemSteadySirenOn = steadySirenBit;
-        isSystemReadyToArm = isBitSet(message[7], 2);
-
-        // ENTRY
-        bit = isBitSet(message[4], 4);
-        if (bit != isSystemTimingEntry) {
-            isSystemTimingEntry = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) {
-                    Log.print(Level.INFO, "System is timing entry");
-                    EventLog.logEvent(Const.EVENT_TIMING_ENTRY);
-                    reportEvent(Const.EVENT_TIMING_ENTRY);
-                }
+    /**
+     * Sends a command to the panel (on a worker thread) and returns a future
+     * that completes when the panel reports the partition reached the
+     * expected state. The future completes exceptionally with
+     * PanelCommandException if the panel rejects the command or with
+     * TimeoutException if the panel does not respond or does not report the
+     * state in time. Call on the panel core thread.
+     * @param name command name (for logging)
+     * @param partition partition number (1-8)
+     * @param isDone returns true when the partition reached the expected state
+     * @param send sends the command, returns the panel response (see
+     * SerialHandler.sendMessageForResult)
+     * @return future completed with true on success
+     */
+    private CompletableFuture<Boolean> sendAndWait(String name, int partition,
+            Predicate<Partition> isDone, IntSupplier send) {
+
+        // Register before sending so a fast state change is not missed
+        StateWaiter waiter = new StateWaiter(partition, isDone);
+        waiters.add(waiter);
+
+        PanelContext.WORKERS.execute(() -> {
+            int response;
+            try {
+                response = send.getAsInt();
+            } catch (RuntimeException ex) {
+                context.core.execute(() -> finishWaiter(waiter, ex));
+                return;
             }
-        }
 
-        // SENSOR BATT LOW or SENSOR LOST
-        bit = isBitSet(message[5], 6) || isBitSet(message[5], 7);
-        if (bit != isSystemSensorError) {
-            isSystemSensorError = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) {
-                    Log.print(Level.INFO, "System detected sensor trouble!");
-                    EventLog.logEvent(Const.EVENT_SENSOR_LOST);
-                    reportEvent(Const.EVENT_SENSOR_LOST);
+            context.core.execute(() -> {
+                if (waiters.contains(waiter) == false) {
+                    return;  // state already reported
                 }
-            }
-        }
+                if (response == SerialHandler.RESPONSE_COMMAND_COMPLETED) {
+                    // Panel accepted the command, wait for it to report the new state
+                    waiter.timeout = PanelContext.TIMER.schedule(() -> context.core.execute(() -> {
+                        if (waiters.contains(waiter)) {
+                            Log.print(Level.WARN, name + " timed-out waiting for the panel to report the new state!");
+                            finishWaiter(waiter, new TimeoutException(
+                                    name + " timed-out waiting for the panel to report the new state"));
+                        }
+                    }), ARM_DISARM_TIMEOUT, TimeUnit.MILLISECONDS);
+                } else if (response == SerialHandler.RESPONSE_NONE) {
+                    finishWaiter(waiter, new TimeoutException(
+                            name + " received no response from the panel"));
+                } else {
+                    finishWaiter(waiter, new PanelCommandException(
+                            String.format("%s rejected by the panel (%02X)", name, response), response));
+                }
+            });
+        });
 
-        // READY TO FORCE-ARM
-        bit = isBitSet(message[7], 3);
-        if (bit != isSystemReadyToForceArm) {
-            isSystemReadyToForceArm = bit;
-            // Perform action (unless just started and still setting inital states)
-            //if (panelReady) {
-            //if (bit) {
-            //    EventLog.logEvent(Const.EVENT_READY_TO_FORCE_ARM);
-            //    ReportEvent(Const.EVENT_READY_TO_FORCE_ARM);
-            //}}
-        }
+        return waiter.future;
+    }
+
+    /**
+     * Returns a future that has already failed
+     * @param ex failure cause
+     * @return failed future
+     */
+    private static CompletableFuture<Boolean> failedFuture(Throwable ex) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
     }
 
     /**
@@ -666,72 +1127,23 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
     public void processSystemStatus(int[] message) {
         Log.print(Level.INFO, "Received System Status from panel: "
                 + Tools.toHexString(message), false);
-        boolean bit;
-
-        // SYSTEM LOW BATTERY
-        bit = isBitSet(message[3], 6);
-        if (bit != isSystemLowBattery) {
-            isSystemLowBattery = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) {
-                    EventLog.logEvent(Const.EVENT_SYSTEM_BATTERY_LOW);
-                    reportEvent(Const.EVENT_SYSTEM_BATTERY_LOW);
-                    Log.print(Level.INFO, "System battery is low!");
-                } else {
-                    EventLog.logEvent(Const.EVENT_SYSTEM_BATTERY_OK);
-                    Log.print(Level.INFO, "System battery is ok");
-                }
-            }
-        }
-
-        // SYSTEM AC POWER ON
-        bit = isBitSet(message[6], 1); // this indicates immediate current ac power status
-        if (bit != isSystemAcPowerOn) {
-            isSystemAcPowerOn = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) {
-                    EventLog.logEvent(Const.EVENT_AC_POWER_RESTORED);
-                    reportEvent(Const.EVENT_AC_POWER_RESTORED);
-                    Log.print(Level.INFO, "Ac power is on");
-                } else {
-                    EventLog.logEvent(Const.EVENT_AC_POWER_FAIL);
-                    reportEvent(Const.EVENT_AC_POWER_FAIL);
-                    Log.print(Level.INFO, "Ac power is off!");
-                }
-            }
-        }
 
-        // SYSTEM SMOKE POWER RESET
-        bit = isBitSet(message[6], 5);
-        if (bit != isSystemSmokePowerReset) {
-            isSystemSmokePowerReset = bit;
-            // Perform action (unless just started and still setting inital states)
-            if (panelReady) {
-                if (bit) {
-                    EventLog.logEvent(Const.EVENT_SMOKE_RESET);
-                    reportEvent(Const.EVENT_SMOKE_RESET);
-                    Log.print(Level.INFO, "Smoke detector reset");
-                }
-            }
-        }
-    }
+        // Only the bits that changed since the previous frame are handled
+        systemTransitions.apply(systemFrame, message, this, panelReady,
+                (panel, entry, value) -> transition(entry, value, "", 0, 1));
+        systemFrame = message;
 
-    /**
-     * Report the event back to the main thread so it can act on it if desired
-     * @param event
-     */
-    private void reportEvent(int event) {
-        reportEvent(event, 0);
+        context.checkpoint.changed();
+        context.journal.systemChanged();
     }
 
     /**
      * Report the event back to the main thread so it can act on it if desired
      * @param event
-     * @param zone the Zone, or null if event is not associated with a zone
+     * @param partition partition number (1-8)
+     * @param zoneNumber zone number, or 0 if event is not associated with a zone
      */
-    private void reportEvent(int event, int zoneNumber) {
+    private void reportEvent(int event, int partition, int zoneNumber) {
 
         if (callBack == null) {
             Log.print(Level.ERROR, "No callback assigned for panel events!");
@@ -740,37 +1152,34 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
         Zone zone = null;
         if (zoneNumber != 0) {
-            zone = Zones.getZone(zoneNumber);
+            zone = context.zones.getZone(zoneNumber);
         }
 
         // Invoke the callback with the event information
-        callBack.panelMessageCallback(event, zone);
+        frameTrace.record(Trace.Stage.EVENT);
+        callBack.panelMessageCallback(context, event, partition, zone, frameTrace);
     }
 
     /**
-     * Gets the security status string to send to the client
+     * Gets a partition
+     * @param partition partition number (1-8)
+     * @return partition
+     */
+    public Partition getPartition(int partition) {
+        return partitions[partition - 1];
+    }
+
+    /**
+     * Gets the security status string to send to the client. The first two
+     * characters are partition 1 and system power status (as always), then
+     * for each other partition the panel has reported, its partition index
+     * and status character.
      * @return status string to send to client
      */
     public String getSecurityStatusForClient() {
         StringBuilder sb = new StringBuilder(2);
         try {
-            if (isSystemBurglaryAlarmOn) {
-                sb.append(Const.SEC_BURGLARY);
-            } else if (isSystemFireAlarmOn) {
-                sb.append(Const.SEC_FIRE);
-            } else if (isSystemArmedInstant) {
-                sb.append(Const.SEC_ARMED_STAY_INSTANT);
-            } else if (isSystemArmedStay) {
-                sb.append(Const.SEC_ARMED_STAY);
-            } else if (isSystemArmed) {
-                sb.append(Const.SEC_ARMED_AWAY);
-            } else if (isSystemReadyToForceArm) {
-                sb.append(Const.SEC_READY_TO_FORCE_ARM);
-            } else if (isSystemReadyToArm) {
-                sb.append(Const.SEC_READY_TO_ARM);
-            } else {
-                sb.append(Const.SEC_NOT_READY);
-            }
+            sb.append(partitions[0].getSecurityStatus());
 
             if (!isSystemAcPowerOn && isSystemLowBattery) {
                 sb.append(Const.SEC2_AC_PWR_OFF_AND_SYS_BAT_LOW);
@@ -781,6 +1190,12 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
             } else {
                 sb.append(Const.SEC2_NORMAL);
             }
+
+            for (int i = 1; i < Const.MAX_PARTITIONS; i++) {
+                if (partitions[i].isValid) {
+                    sb.append(Base80.encodeChar(i)).append(partitions[i].getSecurityStatus());
+                }
+            }
         } catch (Exception ex) {
             Log.print(Level.ERROR, "Error getting security status! " + ex.getMessage());
             throw new RuntimeException("Error getting security status!", ex);
@@ -808,6 +1223,7 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
     // Many of these functions like the quick arm one button arming feature must
     // be programmed in the panel to allow the function, for example, if the
     // quick arm is not enabled in the panel, it will not function via serial.
+    // Keypad function commands are sent with partition mask 0x01 (partition 1).
     /**
      * Requests interface configuration from the panel
      * @return true = success, false = failure
@@ -820,12 +1236,19 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
     /**
      * Request partition status from the panel
+     * @param partition Partition number (1..8)
      * @return true = success, false = failure
      */
-    public boolean requestPartitionStatus() {
-        Log.print(Level.INFO, "Requesting partition status...", false);
-        return serialHandler.sendMessageRaw(0x7E, 0x02, 0x26, 0x00, 0x28, 0x52);
-        // Above cmd is more efficient but equivalent to: serialHandler.SendCommand(0x26, 0x00);
+    public boolean requestPartitionStatus(int partition) {
+        Log.print(Level.INFO, "Requesting partition " + partition + " status...", false);
+        if (partition < 1 || partition > Const.MAX_PARTITIONS) {
+            throw new RuntimeException("Invalid partition (" + partition + ") in requestPartitionStatus!");
+        }
+        if (partition == 1) {
+            return serialHandler.sendMessageRaw(0x7E, 0x02, 0x26, 0x00, 0x28, 0x52);
+            // Above cmd is more efficient but equivalent to: serialHandler.SendCommand(0x26, 0x00);
+        }
+        return serialHandler.sendMessage(0x26, partition - 1);
     }
 
     /**
@@ -850,7 +1273,7 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
     /**
      * Request zone name from the panel
-     * @param zone Zone number (1..64)
+     * @param zone Zone number (1..192)
      * @return true = success, false = failure
      */
     public boolean requestZoneName(int zone) {
@@ -863,12 +1286,12 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
     /**
      * Request zone status from the panel
-     * @param zone Zone number (1..64)
+     * @param zone Zone number (1..192)
      * @return true = success, false = failure
      */
     public boolean requestZoneStatus(int zone) {
         Log.print(Level.INFO, "Requesting zone " + zone + " status...", false);
-        if (zone < 1 || zone > 64) {
+        if (zone < 1 || zone > Const.MAX_ZONES) {
             throw new RuntimeException("Invalid zone (" + zone + ") in requestZoneStatus!");
         }
         return serialHandler.sendMessage(0x24, zone - 1);
@@ -876,15 +1299,37 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
     /**
      * Request zone snapshot from the panel
-     * @param zone Zone number (1..64)
+     * @param zone Zone number (1..192), requests the block of 16 zones
+     * containing this zone
      * @return true = success, false = failure
      */
     public boolean requestZoneSnapshot(int zone) {
-        Log.print(Level.INFO, "Requesting zone " + zone + "snapshot...", false);
-        if (zone < 1) {
-            throw new RuntimeException("Invalid zone in requestZoneSnapshot!");
+        Log.print(Level.INFO, "Requesting zone " + zone + " snapshot...", false);
+        if (zone < 1 || zone > Const.MAX_ZONES) {
+            throw new RuntimeException("Invalid zone (" + zone + ") in requestZoneSnapshot!");
         }
-        return serialHandler.sendMessage(0x25, zone - 1);
+        return serialHandler.sendMessage(0x25, (zone - 1) / 16);
+    }
+
+    /**
+     * Request zone snapshot from the panel only if the serial link is idle
+     * (for background reconciliation)
+     * @param block block of 16 zones (0 = zones 1-16, 1 = zones 17-32, ...)
+     * @param idleTime milliseconds the link must have been idle
+     * @return panel response or SerialHandler.RESPONSE_SKIPPED if not sent
+     */
+    public int requestZoneSnapshotIfIdle(int block, int idleTime) {
+        return serialHandler.sendMessageIfIdle(idleTime, 0x25, block);
+    }
+
+    /**
+     * Request partition snapshot from the panel only if the serial link is
+     * idle (for background reconciliation)
+     * @param idleTime milliseconds the link must have been idle
+     * @return panel response or SerialHandler.RESPONSE_SKIPPED if not sent
+     */
+    public int requestPartitionSnapshotIfIdle(int idleTime) {
+        return serialHandler.sendMessageIfIdle(idleTime, 0x27, 0x00);
     }
 
     /**
@@ -978,46 +1423,30 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
     /**
      * Disarm with pin (panel primary command 1)
      * @param pin 4 or 6 digit pin
-     * @param wait true = wait for panel to report the armed state change or
-     * timeout (blocking)
-     * @return true = success, false = failure
+     * @return future completed with true when the panel reports disarmed
+     * (see sendAndWait for failures)
      */
-    public boolean disarm(String pin, boolean wait) {
-        // if not armed then just return
-        if (isSystemArmed == false) {
-            return true;
-        }
+    public CompletableFuture<Boolean> disarm(String pin) {
+        return singleFlight("Disarm:" + pin, 1, () -> {
+            // if not armed then just return
+            if (partitions[0].isArmed == false) {
+                return CompletableFuture.completedFuture(true);
+            }
 
-        Log.print(Level.INFO, "Disarming...");
+            Log.print(Level.INFO, "Disarming...");
 
-        // note: command to disarm without pin (if allowed by panel)
-        // serialHandler.sendMessageRaw(0x7E, 0x03, 0x3D, 0x01, 0x01, 0x42, 0xC6);
-        // or serialHandler.SendCommand(0x3D, 0x01, 0x01);
+            // note: command to disarm without pin (if allowed by panel)
+            // serialHandler.sendMessageRaw(0x7E, 0x03, 0x3D, 0x01, 0x01, 0x42, 0xC6);
+            // or serialHandler.SendCommand(0x3D, 0x01, 0x01);
 
-        int[] pinb = pinToByes(pin);
-        if (pinb == null) {
-            return false;
-        }
-        boolean success = serialHandler.sendMessage(
-                0x3c, pinb[0], pinb[1], pinb[2], 0x01, 0x01);
-
-        if (success && wait) {
-            // Wait for panel to update status
-            long startTime = System.currentTimeMillis();
-            while (isSystemArmed) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ex) {
-                    success = false;
-                    break;
-                }
-                if (System.currentTimeMillis() - startTime > ARM_DISARM_TIMEOUT) {
-                    success = false;
-                    break;
-                }
+            int[] pinb = pinToByes(pin);
+            if (pinb == null) {
+                return failedFuture(new IllegalArgumentException("Invalid pin"));
             }
-        }
-        return success;
+            return sendAndWait("Disarm", 1, part -> part.isArmed == false,
+                    () -> serialHandler.sendMessageForResult(
+                            0x3c, pinb[0], pinb[1], pinb[2], 0x01, 0x01));
+        });
     }
     //</editor-fold>
 
@@ -1025,123 +1454,70 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
     /**
      * Arm away (panel primary command 2)
      * @param pin 4 or 6 digit pin or null if arming without pin
-     * @param wait true = wait for panel to report the armed state change or
-     * timeout (blocking)
-     * @return true = success, false = failure
+     * @return future completed with true when the panel reports armed
+     * (see sendAndWait for failures)
      */
-    public boolean armAway(String pin, boolean wait) {
-        // if already armed away then return
-        if (isSystemArmed && (isSystemArmedStay == false)) {
-            return true;
-        }
-
-        Log.print(Level.INFO, "Arming in away mode...");
-
-        boolean success = false;
-        if (pin == null) {
-            success = serialHandler.sendMessageRaw(
-                    0x7E, 0x03, 0x3D, 0x02, 0x01, 0x43, 0xC8);
-            // or serialHandler.SendCommand(0x3D, 0x02, 0x01);
-        } else if (isNumeric(pin)) {
-            int[] pinb = pinToByes(pin);
-            if (pinb == null) {
-                return false;
+    public CompletableFuture<Boolean> armAway(String pin) {
+        return singleFlight("Arm away:" + pin, 1, () -> {
+            // if already armed away then return
+            if (partitions[0].isArmed && (partitions[0].isArmedStay == false)) {
+                return CompletableFuture.completedFuture(true);
             }
-            success = serialHandler.sendMessage(
-                    0x3c, pinb[0], pinb[1], pinb[2], 0x02, 0x01);
-        }
 
-        if (success && wait) {
-            // Wait for panel to update status
-            long startTime = System.currentTimeMillis();
-            while (isSystemArmed == false) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ex) {
-                    success = false;
-                    break;
-                }
-                if (System.currentTimeMillis() - startTime > ARM_DISARM_TIMEOUT) {
-                    success = false;
-                    break;
+            Log.print(Level.INFO, "Arming in away mode...");
+
+            IntSupplier send;
+            if (pin == null) {
+                send = () -> serialHandler.sendMessageRawForResult(
+                        0x7E, 0x03, 0x3D, 0x02, 0x01, 0x43, 0xC8);
+                // or serialHandler.SendCommand(0x3D, 0x02, 0x01);
+            } else {
+                int[] pinb = pinToByes(pin);
+                if (pinb == null) {
+                    return failedFuture(new IllegalArgumentException("Invalid pin"));
                 }
+                send = () -> serialHandler.sendMessageForResult(
+                        0x3c, pinb[0], pinb[1], pinb[2], 0x02, 0x01);
             }
-        }
-        return success;
+            return sendAndWait("Arm away", 1, part -> part.isArmed, send);
+        });
     }
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="Arm Stay">
     /**
-     * Arm stay (panel primary command 3)
+     * Arm stay (panel primary command 3), if already armed stay then this
+     * toggles instant mode
      * @param pin 4 or 6 digit pin or null if arming without pin
-     * @param wait true = wait for panel to report the armed state change or
-     * timeout (blocking)
-     * @return true = success, false = failure
+     * @return future completed with true when the panel reports armed stay
+     * (or the instant mode toggled), see sendAndWait for failures
      */
-    public boolean armStay(String pin, boolean wait) {
-        // Save old states
-        boolean wasStay = isSystemArmedStay;
-        boolean wasInstant = isSystemArmedInstant;
-        Log.print(Level.INFO, "Arming in stay mode...");
-        boolean success = false;
-
-        if (pin == null) {
-            success = serialHandler.sendMessageRaw(
-                    0x7E, 0x03, 0x3D, 0x03, 0x01, 0x44, 0xCA);
-            // or serialHandler.SendCommand(0x3D, 0x03, 0x01);
-        } else if (isNumeric(pin)) {
-            int[] pinb = pinToByes(pin);
-            if (pinb == null) {
-                return false;
-            }
-            success = serialHandler.sendMessage(
-                    0x3c, pinb[0], pinb[1], pinb[2], 0x03, 0x01);
-        }
-
-        if (success && wait) {
-
-            System.out.println("Waiting for panel to update...");
-
-            // Wait for panel to update status
-            long startTime = System.currentTimeMillis();
-
-            while (true) {
-                if (isSystemArmedStay) {
-
-                    // done if changed from not-armed to armed-stay
-                    if (wasStay == false) {
-                        System.out.println("Arm success");
-                        break;
-                    }
-
-                    // done if was armed-stay already and instant mode toggled
-                    if (isSystemArmedInstant != wasInstant) {
-                        System.out.println("Arm toggle success");
-                        break;
-                    }
-                }
-
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ex) {
-                    success = false;
-                    break;
-                }
-
-                if (System.currentTimeMillis() - startTime > ARM_DISARM_TIMEOUT) {
-                    System.out.println("Timed-out waiting for arm-stay!");
-                    success = false;
-                    break;
+    public CompletableFuture<Boolean> armStay(String pin) {
+        return singleFlight("Arm stay:" + pin, 1, () -> {
+            // Save old states
+            boolean wasStay = partitions[0].isArmedStay;
+            boolean wasInstant = partitions[0].isArmedInstant;
+            Log.print(Level.INFO, "Arming in stay mode...");
+
+            IntSupplier send;
+            if (pin == null) {
+                send = () -> serialHandler.sendMessageRawForResult(
+                        0x7E, 0x03, 0x3D, 0x03, 0x01, 0x44, 0xCA);
+                // or serialHandler.SendCommand(0x3D, 0x03, 0x01);
+            } else {
+                int[] pinb = pinToByes(pin);
+                if (pinb == null) {
+                    return failedFuture(new IllegalArgumentException("Invalid pin"));
                 }
+                send = () -> serialHandler.sendMessageForResult(
+                        0x3c, pinb[0], pinb[1], pinb[2], 0x03, 0x01);
             }
-        }
-
-        // for debug
-        if (success) System.out.println("Returning success");
-        else System.out.println("Returning fail");
 
-        return success;
+            // done if changed from not-armed to armed-stay
+            // or was armed-stay already and instant mode toggled
+            return sendAndWait("Arm stay", 1, part -> part.isArmedStay
+                    && (wasStay == false || part.isArmedInstant != wasInstant), send);
+        });
     }
     //</editor-fold>
 
@@ -1233,32 +1609,17 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
     /**
      * Panic police
-     * @param wait Wait for panel state change?
-     * @return true = success, false = failure
+     * @return future completed with true when the panel reports the burglary
+     * alarm (see sendAndWait for failures)
      */
-    public boolean panicPolice(boolean wait) {
-        // Uses panel secondary command 6
-        Log.print(Level.INFO, "Panic police...");
-        boolean success = serialHandler.sendMessageRaw(0x7E, 0x03, 0x3E, 0x06, 0x01, 0x48, 0xD3);
-        // Above cmd is more efficient but equivalent to: serialHandler.SendCommand(0x3E, 0x06, 0x01);
-
-        if (success && wait) {
-            // Wait for panel to update status
-            long startTime = System.currentTimeMillis();
-            while (isSystemBurglaryAlarmOn == false) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ex) {
-                    success = false;
-                    break;
-                }
-                if (System.currentTimeMillis() - startTime > ARM_DISARM_TIMEOUT) {
-                    success = false;
-                    break;
-                }
-            }
-        }
-        return success;
+    public CompletableFuture<Boolean> panicPolice() {
+        return singleFlight("Panic police", PANIC_LANE, () -> {
+            // Uses panel secondary command 6
+            Log.print(Level.INFO, "Panic police...");
+            return sendAndWait("Panic police", 1, part -> part.isBurglaryAlarmOn,
+                    () -> serialHandler.sendMessageRawForResult(0x7E, 0x03, 0x3E, 0x06, 0x01, 0x48, 0xD3));
+            // Above cmd is more efficient but equivalent to: serialHandler.SendCommand(0x3E, 0x06, 0x01);
+        });
     }
 
     /**
@@ -1384,7 +1745,7 @@ public class VirtualPanel implements SerialHandler.SerialCallback {
 
     /**
      * Bypass zone toggle
-     * @param zone Zone number (1-64)
+     * @param zone Zone number (1-192)
      * @return true = success, false = failure
      */
     public boolean bypassZoneToggle(int zone) {
@@ -0,0 +1,360 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Alternative to the selector-based ClientListener (started with the "vt"
+ * command line argument): each client connection runs blocking reads on a
+ * thread of its own. On Java 21 or later these are virtual threads, so
+ * blocking costs no platform thread and there is no cap on concurrent
+ * clients. The project targets Java 8, so the virtual thread executor is
+ * looked up by reflection, older runtimes fall back to a platform thread per
+ * connection.
+ * <p>
+ * Output is queued on the connection and written by a second thread of its
+ * own, so a client that stops reading only blocks its own writer: responses
+ * and the pushes of the shared subscription thread never wait on a socket.
+ * A connection with more than ClientListener.MAX_QUEUED bytes queued is
+ * closed, as in ClientListener.
+ */
+public class VirtualThreadListener implements Runnable {
+
+    private final int serverPort;
+    private ServerSocket serverSocket = null;
+    private volatile boolean isRunning = false;
+    private final ExecutorService connections = newConnectionExecutor();
+
+    /**
+     * One blocking client connection
+     */
+    private static class Connection implements ClientConnection, Runnable {
+        private final Socket socket;
+        private final String ip;
+        private final Executor executor;
+        private BufferedReader reader = null;
+        private volatile boolean isBinary = false;
+
+        // Output waiting for the writer thread (guarded by itself)
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private int queuedBytes = 0;
+        private boolean isClosed = false;
+
+        Connection(Socket socket, Executor executor) {
+            this.socket = socket;
+            this.ip = socket.getInetAddress().toString().replace('/', ' ').trim();
+            this.executor = executor;
+        }
+
+        @Override
+        public String getClientIp() {
+            return ip;
+        }
+
+        @Override
+        public boolean send(String line) {
+            return queue(StandardCharsets.UTF_8.encode(line + System.lineSeparator()));
+        }
+
+        @Override
+        public boolean sendFrame(ByteBuffer frame) {
+            return queue(frame);
+        }
+
+        @Override
+        public boolean sendShared(ByteBuffer data) {
+            return queue(data.duplicate());
+        }
+
+        @Override
+        public void setBinary() {
+            isBinary = true;
+        }
+
+        /**
+         * Queues output for the writer thread, closes the connection if the
+         * client is not reading
+         * @param data data to write
+         * @return true if queued, false if the connection is closed
+         */
+        private boolean queue(ByteBuffer data) {
+            synchronized (outbound) {
+                if (isClosed) {
+                    return false;
+                }
+                if (queuedBytes + data.remaining() <= ClientListener.MAX_QUEUED) {
+                    outbound.add(data);
+                    queuedBytes += data.remaining();
+                    outbound.notifyAll();
+                    return true;
+                }
+            }
+            Log.print(Level.WARN, "Client " + ip + " is not reading, disconnecting...");
+            close();
+            return false;
+        }
+
+        @Override
+        public void close() {
+            synchronized (outbound) {
+                isClosed = true;
+                ByteBuffer data;
+                while ((data = outbound.poll()) != null) {
+                    BufferPool.release(data);
+                }
+                queuedBytes = 0;
+                outbound.notifyAll();
+            }
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                Log.print(Level.WARN, "Exception on socket close: " + ex.toString(), false);
+            }
+        }
+
+        /**
+         * Writer thread: writes the queued output in order until the
+         * connection is closed
+         */
+        private void write() {
+            try {
+                WritableByteChannel output = Channels.newChannel(socket.getOutputStream());
+                while (true) {
+                    ByteBuffer data;
+                    synchronized (outbound) {
+                        while (outbound.isEmpty() && isClosed == false) {
+                            outbound.wait();
+                        }
+                        if (isClosed) {
+                            return;
+                        }
+                        data = outbound.poll();
+                    }
+                    int size = data.remaining();
+                    while (data.hasRemaining()) {
+                        output.write(data);
+                    }
+                    BufferPool.release(data);
+                    synchronized (outbound) {
+                        queuedBytes -= size;
+                    }
+                }
+            } catch (IOException ex) {
+                Log.print(Level.WARN, "Error sending message to client, disconnecting... " + ex.getMessage());
+                close();
+            } catch (InterruptedException ex) {
+                close();  // listener stopped
+            }
+        }
+
+        /**
+         * Connection thread: authenticates then handles requests until the
+         * client disconnects or idles out
+         */
+        @Override
+        public void run() {
+            ClientHandler handler = new ClientHandler(this);
+            boolean isHandshaking = true;
+            try {
+                socket.setTcpNoDelay(true);
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                executor.execute(this::write);
+
+                Log.print(Level.INFO, "Connection from " + ip + ", authenticating...");
+                socket.setSoTimeout(ClientListener.AUTH_TIMEOUT_MS);
+                String line = reader.readLine();
+                boolean isAuthenticated = line != null && line.length() <= ClientListener.MAX_AUTH_LINE
+                        && handler.authenticate(line);
+                isHandshaking = false;
+                Admission.handshakeDone();
+                if (isAuthenticated == false) {
+                    Admission.authFailed(socket.getInetAddress());
+                    return;
+                }
+                Admission.authSucceeded(socket.getInetAddress());
+
+                setIdleTimeout(handler);
+                if (isBinary) {
+                    // The client waits for the grant, so nothing was read ahead
+                    readFrames(handler);
+                    return;
+                }
+                while ((line = reader.readLine()) != null) {
+                    if (handler.handleLine(line) == false) {
+                        return;
+                    }
+                    setIdleTimeout(handler);
+                }
+                Log.print(Level.WARN, "Client closed the connection, disconnecting...");
+            } catch (SocketTimeoutException ex) {
+                Log.print(Level.INFO, "Disconnecting idle or unauthenticated client...");
+                if (isHandshaking) {
+                    Admission.authFailed(socket.getInetAddress());
+                }
+            } catch (IOException ex) {
+                Log.print(Level.WARN, "Error receiving message from client, disconnecting... " + ex.getMessage());
+            } finally {
+                if (isHandshaking) {
+                    Admission.handshakeDone();
+                }
+                Log.print(Level.INFO, "Closing client connection...");
+                close();
+            }
+        }
+
+        /**
+         * Reads binary protocol frames (4 byte length + iv + encrypted data)
+         * until the client disconnects
+         * @param handler handler of this connection
+         * @throws IOException on socket errors and timeout
+         */
+        private void readFrames(ClientHandler handler) throws IOException {
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException ex) {
+                    Log.print(Level.WARN, "Client closed the connection, disconnecting...");
+                    return;
+                }
+                if (length < 32 || length > ClientListener.MAX_LINE) {
+                    Log.print(Level.WARN, "Received invalid frame length from client, disconnecting...");
+                    return;
+                }
+                ByteBuffer frame = BufferPool.acquire(length);
+                String text;
+                try {
+                    input.readFully(frame.array(), frame.arrayOffset(), length);
+                    frame.limit(length);
+                    text = Crypto.decrypt(frame);
+                } finally {
+                    BufferPool.release(frame);
+                }
+                if (text == null) {
+                    Log.print(Level.WARN, "Received bad message from client, disconnecting...");
+                    return;
+                }
+                if (handler.handleMessage(text) == false) {
+                    return;
+                }
+                setIdleTimeout(handler);
+            }
+        }
+
+        /**
+         * Sets the read timeout for the next request: the idle timeout, or
+         * none while subscribed (subscriptions are only changed by requests
+         * handled on this thread, a client that stops reading the pushes is
+         * closed when its output queue overflows)
+         * @param handler handler of this connection
+         * @throws IOException on socket errors
+         */
+        private void setIdleTimeout(ClientHandler handler) throws IOException {
+            socket.setSoTimeout(handler.isSubscribed() ? 0 : ClientListener.IDLE_TIMEOUT * 1000);
+        }
+    }
+
+    /**
+     * Constructor
+     * @param port Port to listen on
+     */
+    public VirtualThreadListener(int port) {
+        serverPort = port;
+    }
+
+    /**
+     * Creates the executor that runs one task per thread: virtual threads if
+     * the runtime has them (Java 21+), else platform threads
+     * @return executor
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Log.print(Level.WARN, "Virtual threads not available (Java 21+ required), "
+                    + "using a platform thread per client");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Stops the listener and all client connections
+     */
+    public synchronized void stop() {
+        isRunning = false;
+        try {
+            serverSocket.close();  // causes handled exception in listener thread
+        } catch (IOException ex) {
+            throw new RuntimeException("Error stopping server", ex);
+        }
+    }
+
+    /**
+     * Starts the listener thread
+     */
+    public synchronized void start() {
+        if (isRunning == false) {
+            isRunning = true;
+            new Thread(this, "NetServer").start();
+        }
+    }
+
+    /**
+     * This thread accepts clients and starts a thread for each
+     */
+    @Override
+    public void run() {
+        try {
+            serverSocket = new ServerSocket(serverPort);
+        } catch (IOException ex) {
+            String errMsg = "Error listening on port " + serverPort + "! " + ex.getMessage();
+            Log.print(Level.ERROR, errMsg);
+            throw new RuntimeException(errMsg, ex);
+        }
+        Log.print(Level.INFO, "Listening on port " + serverPort + " (thread per client)...");
+
+        while (isRunning) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();  // Blocking
+            } catch (IOException ex) {
+                if (isRunning == false) {
+                    continue;  // user called stop()
+                }
+                String errMsg = "Error accepting client connection! " + ex.getMessage();
+                Log.print(Level.ERROR, errMsg);
+                throw new RuntimeException(errMsg, ex);
+            }
+            // Rejected before any other work (see Admission)
+            if (Admission.admit(clientSocket.getInetAddress()) == false) {
+                try {
+                    clientSocket.close();
+                } catch (IOException ex) {
+                    Log.print(Level.WARN, "Exception on socket close: " + ex.toString(), false);
+                }
+                continue;
+            }
+            connections.execute(new Connection(clientSocket, connections));
+        }
+        connections.shutdownNow();
+        Log.print(Level.WARN, "Client listener and all handler threads stopped");
+    }
+}
@@ -7,7 +7,7 @@ public class Zone {
 
     //<editor-fold defaultstate="collapsed" desc="Zone variables">
 
-    // Zone number (1-64)
+    // Zone number (1-192)
     public int number = 1;
 
     // Numeric speak-code for this zone
@@ -34,6 +34,15 @@ public class Zone {
     // Was this the zone that triggered the most recent alarm?
     public boolean isAlarmMemory = false;
 
+    // Zone type flags programmed in the panel
+    public boolean isTypeFire = false;
+    public boolean isTypeTwentyFourHour = false;
+    public boolean isTypeEntryExitDelay = false;  // delay 1 or 2
+    public boolean isTypeInterior = false;
+
+    // Partitions this zone belongs to (bit 0 = partition 1)
+    public int partitionMask = 0;
+
     // Zone name read from the panel (16 chars max)
     // Note: not currently used, but keep anyway
     public String panelName = "";   // name from panel 16 chars max
@@ -50,4 +59,15 @@ public class Zone {
     public Zone(int zoneNumber) {
         this.number = zoneNumber;
     }
+
+    /**
+     * Gets the lowest numbered partition this zone belongs to
+     * @return partition number (1-8), or 1 if the panel has not reported it
+     */
+    public int getPartition() {
+        if (partitionMask == 0) {
+            return 1;
+        }
+        return Integer.numberOfTrailingZeros(partitionMask) + 1;
+    }
 }
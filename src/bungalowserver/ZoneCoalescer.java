@@ -0,0 +1,177 @@
+package bungalowserver;
+
+import bungalowserver.Log.Level;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debounces and coalesces the faulted/ready changes of chatty zones (motion
+ * sensors, glass-breaks, doorbells...). The first change of a quiet zone is
+ * reported at once, then a hold-down window for the zone type opens. Changes
+ * within the window are only counted. When the window closes one event is
+ * reported for the final state (if it differs from the last state reported)
+ * with the change count and first/last times, and the window opens again if
+ * the zone kept changing. Fire and freeze zones, and any zone in an armed
+ * partition, are never held back.
+ */
+public class ZoneCoalescer {
+
+    // Hold-down window per zone type (index = Const.ZONE_TYPE_), 0 = never held back
+    private static final int[] WINDOWS = {
+        2000,   // UNKNOWN
+        2000,   // DOOR
+        2000,   // WINDOW
+        30000,  // MOTION
+        10000,  // GLASS
+        0,      // FIRE
+        0,      // FREEZE
+        2000,   // KEYFOB
+        5000,   // DOORBELL
+        10000   // INFO
+    };
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    /**
+     * Coalescing state of one zone (only accessed on the panel core thread)
+     */
+    private static class Burst {
+        boolean isOpen = false;      // hold-down window open
+        boolean reported = false;    // last faulted state reported
+        int count = 0;               // changes held back in this window
+        long firstTime = 0;          // first held back change
+        long lastTime = 0;           // last held back change
+    }
+
+    private final PanelContext context;
+    private final Burst[] bursts = new Burst[Const.MAX_ZONES];
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param context panel the zones belong to
+     */
+    public ZoneCoalescer(PanelContext context) {
+        this.context = context;
+        for (int i = 0; i < bursts.length; i++) {
+            bursts[i] = new Burst();
+        }
+    }
+
+    /**
+     * Call when the faulted state of a zone changed (after the zone was
+     * updated), reports the change now or holds it back
+     * @param zone zone
+     */
+    public void zoneFaultChanged(Zone zone) {
+        Burst burst = bursts[zone.number - 1];
+        int window = getWindow(zone);
+
+        // Alarm-relevant changes pass through at once
+        if (window == 0 || isAlarmRelevant(zone)) {
+            burst.reported = zone.isFaulted;
+            burst.count = 0;
+            context.panel.reportZoneFault(zone, zone.isFaulted, "");
+            return;
+        }
+
+        // Quiet zone, report now and start holding back
+        if (burst.isOpen == false) {
+            burst.isOpen = true;
+            burst.reported = zone.isFaulted;
+            burst.count = 0;
+            context.panel.reportZoneFault(zone, zone.isFaulted, "");
+            schedule(zone, window);
+            return;
+        }
+
+        // Inside the window, just count it
+        long now = System.currentTimeMillis();
+        if (burst.count == 0) {
+            burst.firstTime = now;
+        }
+        burst.count++;
+        burst.lastTime = now;
+        coalescedCount.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of zone changes held back since startup
+     * @return coalesced change count
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Closes the hold-down window of a zone on the panel core thread
+     * @param zone zone
+     * @param window milliseconds
+     */
+    private void schedule(Zone zone, int window) {
+        PanelContext.TIMER.schedule(() -> context.core.execute(() -> close(zone)),
+                window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the hold-down window, reports the held back changes as one event
+     * and keeps holding back if the zone was still changing
+     * @param zone zone
+     */
+    private void close(Zone zone) {
+        Burst burst = bursts[zone.number - 1];
+
+        if (burst.count == 0) {
+            burst.isOpen = false;
+            return;
+        }
+
+        String detail = " (" + burst.count + " changes " + formatTime(burst.firstTime)
+                + "-" + formatTime(burst.lastTime) + ")";
+        if (zone.isFaulted != burst.reported) {
+            burst.reported = zone.isFaulted;
+            context.panel.reportZoneFault(zone, zone.isFaulted, detail);
+        } else {
+            Log.print(Level.INFO, "Zone " + zone.number + " " + zone.name
+                    + ", coalesced" + detail, false);
+        }
+        burst.count = 0;
+        schedule(zone, getWindow(zone));
+    }
+
+    /**
+     * Gets the hold-down window for a zone
+     * @param zone zone
+     * @return milliseconds, 0 if never held back
+     */
+    private static int getWindow(Zone zone) {
+        if (zone.type < 0 || zone.type >= WINDOWS.length) {
+            return 0;
+        }
+        return WINDOWS[zone.type];
+    }
+
+    /**
+     * Checks if a zone change could matter for an alarm (any partition the
+     * zone belongs to is armed)
+     * @param zone zone
+     * @return true if alarm relevant
+     */
+    private boolean isAlarmRelevant(Zone zone) {
+        for (int p = 1; p <= Const.MAX_PARTITIONS; p++) {
+            if ((zone.partitionMask & (1 << (p - 1))) != 0
+                    && context.panel.getPartition(p).isArmed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String formatTime(long time) {
+        return LocalTime.from(Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault())).format(TIME_FORMAT);
+    }
+}
@@ -1,46 +1,82 @@
 package bungalowserver;
 
 import bungalowserver.Log.Level;
+import java.util.BitSet;
 import java.util.Locale;
 
 /**
- * Zones
+ * Zones of one panel
  */
 public class Zones {
 
-    private static final Zone[] ZONES = new Zone[64];
+    private final PanelContext context;
+
+    private final Zone[] zoneTable = new Zone[Const.MAX_ZONES];
+
+    // Zones belonging to each partition (bit n = zone n+1), indexed by partition - 1
+    private final BitSet[] partitionZones = new BitSet[Const.MAX_PARTITIONS];
+
+    // True if any zone requires the wide client encoding
+    private boolean wide = false;
+
+    // Client status string. Rebuilt when zones are added or removed and
+    // patched one character at a time when a single zone status changes.
+    private char[] statusChars = null;
+    private String statusString = null;
+    private final int[] statusPos = new int[Const.MAX_ZONES];
+
+    // Client names and types string, dropped when a zone name, type or the
+    // encoding changes. The version counts the changes.
+    private String namesString = null;
+    private int namesVersion = 0;
+
+    /**
+     * Constructor
+     * @param context panel these zones belong to
+     */
+    public Zones(PanelContext context) {
+        this.context = context;
+        for (int i = 0; i < Const.MAX_PARTITIONS; i++) {
+            partitionZones[i] = new BitSet(Const.MAX_ZONES);
+        }
+    }
 
     /**
      * Clears all zones
      */
-    public static void clear() {
-        for (int i = 0; i < 64; i++) {
-            ZONES[i] = null;
+    public synchronized void clear() {
+        for (int i = 0; i < Const.MAX_ZONES; i++) {
+            zoneTable[i] = null;
         }
+        for (BitSet zones : partitionZones) {
+            zones.clear();
+        }
+        structureChanged();
     }
 
     /**
      * Checks if a zone exists
-     * @param zone zone number (1-64)
+     * @param zone zone number (1-192)
      * @return true if zone exists else false
      */
-    public static boolean zoneExists(int zone) {
-        if (zone < 1 || zone > 64) {
+    public boolean zoneExists(int zone) {
+        if (zone < 1 || zone > Const.MAX_ZONES) {
             return false;
         }
-        return ZONES[zone - 1] != null;
+        return zoneTable[zone - 1] != null;
     }
 
     /**
      * Sets the zone name (name from panel)
-     * @param zone zone number (1-64)
+     * @param zone zone number (1-192)
      * @param name zone name
      * @return true if success else false
      */
-    public static boolean setZonePanelName(int zone, String name) {
+    public boolean setZonePanelName(int zone, String name) {
         if (zoneExists(zone)) {
             if (name.isEmpty() == false) {
-                ZONES[zone - 1].panelName = name;
+                zoneTable[zone - 1].panelName = name;
+                namesChanged();
             }
             return true;
         }
@@ -49,14 +85,15 @@ public class Zones {
 
     /**
      * Sets the zone name (name from settings file)
-     * @param zone zone number (1-64)
+     * @param zone zone number (1-192)
      * @param name zone name
      * @return true if success else false
      */
-    public static boolean setZoneName(int zone, String name) {
+    public boolean setZoneName(int zone, String name) {
         if (zoneExists(zone)) {
             if (name.isEmpty() == false) {
-                ZONES[zone - 1].name = name;
+                zoneTable[zone - 1].name = name;
+                namesChanged();
             }
             return true;
         }
@@ -65,25 +102,25 @@ public class Zones {
 
     /**
      * Gets a Zone
-     * @param zone zone number (1-64)
+     * @param zone zone number (1-192)
      * @return Zone item, or null if zone does not exist
      */
-    public static Zone getZone(int zone) {
+    public Zone getZone(int zone) {
         if (zoneExists(zone)) {
-            return ZONES[zone - 1];
+            return zoneTable[zone - 1];
         }
         return null;
     }
 
     /**
      * Gets zone name
-     * @param zone zone number (1-64)
+     * @param zone zone number (1-192)
      * @return Returns zone full-name if exists else panel-name
      * Returns empty string if no name or if zone does not exist
      */
-    public static String getZoneName(int zone) {
+    public String getZoneName(int zone) {
         if (zoneExists(zone)) {
-            return (ZONES[zone - 1].name.isEmpty())? ZONES[zone - 1].panelName : ZONES[zone - 1].name;
+            return (zoneTable[zone - 1].name.isEmpty())? zoneTable[zone - 1].panelName : zoneTable[zone - 1].name;
         }
         return "";
     }
@@ -92,56 +129,164 @@ public class Zones {
      * Call this when adding zones defined in the panel
      * If zone does not exist, it will be created and named
      * If zone does exist, the name will be updated if not set
-     * @param zone Zone number (1-64)
+     * @param zone Zone number (1-192)
      * @return true if success, false if fail
      */
-    public static boolean addZone(int zone) {
-        if (zone < 1 || zone > 64) {
+    public synchronized boolean addZone(int zone) {
+        if (zone < 1 || zone > Const.MAX_ZONES) {
             return false;
         }
         Log.print(Level.INFO, "Adding/updating zone " + Integer.toString(zone), false);
 
         // Create the zone if it doesn't exist
-        if (ZONES[zone - 1] == null) {
-            ZONES[zone - 1] = new Zone(zone);
-            ZONES[zone - 1].number = zone;
+        if (zoneTable[zone - 1] == null) {
+            zoneTable[zone - 1] = new Zone(zone);
+            zoneTable[zone - 1].number = zone;
+            structureChanged();
         }
 
-        ZONES[zone - 1].panelName = "Zone " + Integer.toString(zone);
+        zoneTable[zone - 1].panelName = "Zone " + Integer.toString(zone);
+        namesChanged();
         return true;
     }
 
     /**
      * Call this when restoring zone info from the settings file
-     * Adds/updates a zone (1-64) with type/speakname/speakfault/name
+     * Adds/updates a zone (1-192) with type/speakname/speakfault/name
      * If zone does not exist, it will be created
-     * @param zone Zone number (1-64)
+     * @param zone Zone number (1-192)
      * @param type Zone type
      * @param speakName
      * @param speakFault
      * @param name Zone name
      * @return true if success, false if fail
      */
-    public static boolean addZone(int zone, int type, int speakName, int speakFault, String name) {
-        if (zone < 1 || zone > 64) {
+    public synchronized boolean addZone(int zone, int type, int speakName, int speakFault, String name) {
+        if (zone < 1 || zone > Const.MAX_ZONES) {
             return false;
         }
         Log.print(Level.INFO, "Adding/updating zone " + Integer.toString(zone), false);
 
         // Create the zone if it doesn't exist
-        if (ZONES[zone - 1] == null) {
-            ZONES[zone - 1] = new Zone(zone);
-            ZONES[zone - 1].number = zone;
+        if (zoneTable[zone - 1] == null) {
+            zoneTable[zone - 1] = new Zone(zone);
+            zoneTable[zone - 1].number = zone;
+            structureChanged();
         }
 
         // Set the zone variables
-        ZONES[zone - 1].name = name;
-        ZONES[zone - 1].type = type;
-        ZONES[zone - 1].speakName = speakName;
-        ZONES[zone - 1].speakFault = speakFault;
+        zoneTable[zone - 1].name = name;
+        zoneTable[zone - 1].type = type;
+        zoneTable[zone - 1].speakName = speakName;
+        zoneTable[zone - 1].speakFault = speakFault;
+        namesChanged();
         return true;
     }
 
+    /**
+     * Sets the partitions a zone belongs to (as reported by the panel)
+     * @param zone zone number (1-192)
+     * @param mask partition mask (bit 0 = partition 1)
+     */
+    public synchronized void setPartitionMask(int zone, int mask) {
+        if (zoneExists(zone) == false || zoneTable[zone - 1].partitionMask == mask) {
+            return;
+        }
+        zoneTable[zone - 1].partitionMask = mask;
+        for (int p = 0; p < Const.MAX_PARTITIONS; p++) {
+            partitionZones[p].set(zone - 1, ((mask >> p) & 1) != 0);
+        }
+        structureChanged();
+    }
+
+    /**
+     * Gets the zones belonging to a partition. The returned set is owned by
+     * this class and must not be modified.
+     * @param partition partition number (1-8)
+     * @return set of zones (bit n = zone n+1)
+     */
+    public BitSet getPartitionZones(int partition) {
+        return partitionZones[partition - 1];
+    }
+
+    /**
+     * Gets a mask of all partitions that have at least one zone
+     * @return partition mask (bit 0 = partition 1)
+     */
+    public synchronized int getPartitionsInUse() {
+        int mask = 0;
+        for (int p = 0; p < Const.MAX_PARTITIONS; p++) {
+            if (partitionZones[p].isEmpty() == false) {
+                mask |= 1 << p;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Gets the highest zone number to request when scanning the panel for
+     * zones in-use. Scans the legacy 64 zones plus any higher zones defined
+     * in the settings file, so small panels do not pay for scanning zones
+     * they do not have.
+     * @return highest zone number to scan
+     */
+    public synchronized int getScanLimit() {
+        for (int i = Const.MAX_ZONES - 1; i >= Const.LEGACY_MAX_ZONES; i--) {
+            if (zoneTable[i] != null) {
+                return i + 1;
+            }
+        }
+        return Const.LEGACY_MAX_ZONES;
+    }
+
+    /**
+     * Checks if client strings use the wide encoding (zones above 64 or
+     * zones in partitions other than 1)
+     * @return true if wide encoding is used
+     */
+    public boolean isWideEncoding() {
+        return wide;
+    }
+
+    /**
+     * Zones were added or partitions changed, recompute the encoding and
+     * drop the cached client status string so it is rebuilt on next use
+     */
+    private void structureChanged() {
+        boolean w = false;
+        for (int i = Const.LEGACY_MAX_ZONES; i < Const.MAX_ZONES; i++) {
+            if (zoneTable[i] != null) {
+                w = true;
+                break;
+            }
+        }
+        for (int p = 1; p < Const.MAX_PARTITIONS && !w; p++) {
+            w = (partitionZones[p].isEmpty() == false);
+        }
+        wide = w;
+        statusChars = null;
+        statusString = null;
+        namesChanged();
+    }
+
+    /**
+     * A zone name or type or the encoding changed, drop the cached client
+     * names and types string
+     */
+    private synchronized void namesChanged() {
+        namesString = null;
+        namesVersion++;
+    }
+
+    /**
+     * Gets the version of the client names and types string, changes each
+     * time the string changes
+     * @return version
+     */
+    public synchronized int getNamesVersion() {
+        return namesVersion;
+    }
+
     /**
      * Looks for zones that were defined in the settings file (zone.name not empty)
      * that were not not defined in the panel (zone.panelName empty).
@@ -152,19 +297,19 @@ public class Zones {
      * In this case, the user needs to add zones to the settings file.
      * @return true on success else false
      */
-    public static boolean checkBuiltZones() {
-        for (int i = 0; i < 64; i++) {
-            if (ZONES[i] == null) {
+    public boolean checkBuiltZones() {
+        for (int i = 0; i < Const.MAX_ZONES; i++) {
+            if (zoneTable[i] == null) {
                 continue;
             }
-            if (ZONES[i].name.isEmpty() || ZONES[i].panelName.isEmpty()) {
+            if (zoneTable[i].name.isEmpty() || zoneTable[i].panelName.isEmpty()) {
                 Log.print(Level.ERROR, "The zones in the settings file do "
                         + "not match the actual zones defined in the panel."
                         + System.lineSeparator()
                         + "Please make changes to the settings file then "
                         + "restart the application."
                         + System.lineSeparator()
-                        + "Zone " + i);
+                        + "Zone " + (i + 1));
                 return false;
             }
         }
@@ -176,130 +321,172 @@ public class Zones {
      * For emailing current status of all zones
      * @return String containing readable status of all zones
      */
-    public static String getZoneStatusMessage() {
+    public String getZoneStatusMessage() {
         StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < 64; i++) {
-
-            Zone zone = ZONES[i];
-            if (zone == null) {
-                continue;
-            }
-
-            sb.append("Zone ").append(i + 1).append(" ");
-            sb.append(getZoneName(i+1)).append(" ");
-
-            if (zone.isFaulted) {
-                sb.append("is faulted");
-            } else {
-                sb.append("is okay");
-            }
-
-            if (zone.isError) {
-                sb.append(" but has an error");
-            }
-
-            if (zone.isAlarmMemory) {
-                sb.append(" and triggered last alarm");
-            }
-            sb.append(System.lineSeparator());
+        for (int i = 0; i < Const.MAX_ZONES; i++) {
+            appendZoneStatusMessage(sb, zoneTable[i]);
         }
         return sb.toString();
     }
 
     /**
-     * Builds a message for all open doors, windows, etc (not motion, glass,
-     * etc) This is intended to be called on the hour of half-hour. Time is
-     * rounded to the nearest half-hour since the voice currently supports
-     * speaking half-hour times.
-     * @return Returns array of phrases or an empty array if nothing to say
+     * Gets a status message covering all zones in a partition
+     * For emailing current status of a partition
+     * @param partition partition number (1-8)
+     * @return String containing readable status of the partition zones
      */
-    public static int[] getUnsecuredZoneSpeak() {
+    public String getZoneStatusMessage(int partition) {
+        StringBuilder sb = new StringBuilder();
+        BitSet zones = partitionZones[partition - 1];
+        for (int i = zones.nextSetBit(0); i >= 0; i = zones.nextSetBit(i + 1)) {
+            appendZoneStatusMessage(sb, zoneTable[i]);
+        }
+        return sb.toString();
+    }
 
-        int[] speak = new int[32];
-        int words = 0;
+    /**
+     * Appends a readable status line for a single zone
+     * @param sb string builder to append to
+     * @param zone zone (ignored if null)
+     */
+    private void appendZoneStatusMessage(StringBuilder sb, Zone zone) {
+        if (zone == null) {
+            return;
+        }
 
-        for (int i = 0; i < 64; i++) {
+        sb.append("Zone ").append(zone.number).append(" ");
+        sb.append(getZoneName(zone.number)).append(" ");
 
-            Zone zone = ZONES[i];
-            if (zone == null) {
-                continue;
-            }
+        if (zone.isFaulted) {
+            sb.append("is faulted");
+        } else {
+            sb.append("is okay");
+        }
 
-            if (zone.isFaulted && words < 32) {
-                if (zone.type == Const.ZONE_TYPE_DOOR ||
-                        zone.type == Const.ZONE_TYPE_WINDOW) {
-                    if (words == 0) {
-                        speak[words++] = Speaker.GREETING;
-                        speak[words++] = 4;
-                        speak[words++] = Speaker.TIME;
-                        speak[words++] = 6;
-                    } else if (words > 4) {
-                        speak[words++] = 5;
-                    }
-                    speak[words++] = zone.speakFault;
-                }
-            }
+        if (zone.isError) {
+            sb.append(" but has an error");
         }
 
-        // Create a new array of actual needed size and copy items to it
-        int[] spk = new int[words];
-        if (words > 0) {
-            System.arraycopy(speak, 0, spk, 0, words);
+        if (zone.isAlarmMemory) {
+            sb.append(" and triggered last alarm");
         }
-        return spk;
+        sb.append(System.lineSeparator());
     }
 
     /**
      * Gets a zone status string to send to the client
+     * Legacy encoding: two chars per zone (zone index, status)
+     * Wide encoding: WIDE marker then three chars per zone (zone index as two
+     * chars, status)
      * @return client string
      */
-    public static String getStatusForClient() {
-        byte zoneStatus;
-        StringBuilder sb = new StringBuilder();
+    public synchronized String getStatusForClient() {
+        if (statusChars == null) {
+            buildStatusChars();
+        }
+        if (statusString == null) {
+            statusString = new String(statusChars);
+        }
+        return statusString;
+    }
 
-        for (Zone zone : ZONES) {
+    /**
+     * Call when the status of a single zone has changed to update the
+     * client status string (only this zone's character is changed), the
+     * checkpoint and the journal
+     * @param zone the changed zone
+     */
+    public synchronized void statusChanged(Zone zone) {
+        context.checkpoint.changed();
+        context.journal.zoneChanged(zone);
+        if (statusChars == null) {
+            return;  // will be built on next use
+        }
+        statusChars[statusPos[zone.number - 1]] = Base80.encodeChar(getStatusBits(zone));
+        statusString = null;
+    }
 
-            if (zone == null) {
-                continue;
+    /**
+     * Builds the client status characters for all zones
+     */
+    private void buildStatusChars() {
+        int count = 0;
+        for (Zone zone : zoneTable) {
+            if (zone != null) {
+                count++;
             }
+        }
 
-            zoneStatus = 0;
+        int pos = 0;
+        if (wide) {
+            statusChars = new char[count * 3 + 1];
+            statusChars[pos++] = Base80.WIDE;
+        } else {
+            statusChars = new char[count * 2];
+        }
 
-            if (zone.isFaulted) {
-                zoneStatus |= 0x01;
+        for (Zone zone : zoneTable) {
+            if (zone == null) {
+                continue;
             }
-
-            if (zone.isBypassed) {
-                zoneStatus |= 0x02;
+            if (wide) {
+                String index = Base80.encodeWide(zone.number - 1);
+                statusChars[pos++] = index.charAt(0);
+                statusChars[pos++] = index.charAt(1);
+            } else {
+                statusChars[pos++] = Base80.encodeChar(zone.number - 1);
             }
+            statusPos[zone.number - 1] = pos;
+            statusChars[pos++] = Base80.encodeChar(getStatusBits(zone));
+        }
+    }
 
-            if (zone.isForceArmed) {
-                zoneStatus |= 0x04;
-            }
+    /**
+     * Gets the status bits for a zone as sent to the client
+     * @param zone zone
+     * @return status bits
+     */
+    private int getStatusBits(Zone zone) {
+        int zoneStatus = 0;
 
-            if (zone.isAlarmMemory) {
-                zoneStatus |= 0x08;
-            }
+        if (zone.isFaulted) {
+            zoneStatus |= 0x01;
+        }
 
-            if (zone.isError) {
-                zoneStatus |= 0x10;
-            }
+        if (zone.isBypassed) {
+            zoneStatus |= 0x02;
+        }
 
-            sb.append(Base80.encode(zone.number - 1, zoneStatus));
+        if (zone.isForceArmed) {
+            zoneStatus |= 0x04;
         }
-        return sb.toString();
+
+        if (zone.isAlarmMemory) {
+            zoneStatus |= 0x08;
+        }
+
+        if (zone.isError) {
+            zoneStatus |= 0x10;
+        }
+        return zoneStatus;
     }
 
     /**
      * Gets a zone name string to send to the client
      * @return client string
      */
-    public static String getNamesAndTypesForClient() {
+    public synchronized String getNamesAndTypesForClient() {
+        if (namesString != null) {
+            return namesString;
+        }
         boolean sep = false;
         StringBuilder sb = new StringBuilder();
 
-        for (Zone zone : ZONES) {
+        if (wide) {
+            sb.append(Base80.WIDE);
+        }
+
+        for (Zone zone : zoneTable) {
             if (zone == null) {
                 continue;
             }
@@ -308,10 +495,26 @@ public class Zones {
             } else {
                 sep = true;
             }
-            sb.append(Base80.encode(zone.number - 1, zone.type));
+            if (wide) {
+                sb.append(Base80.encodeWide(zone.number - 1));
+            } else {
+                sb.append(Base80.encode(zone.number - 1));
+            }
+            sb.append(Base80.encode(zone.type));
             sb.append(zone.name);
         }
-        return sb.toString();
+        namesString = sb.toString();
+        return namesString;
+    }
+
+    /**
+     * Encodes a zone number for client strings (rules, etc) using the
+     * current encoding
+     * @param zone zone number (0 = none, 1-192)
+     * @return one (legacy) or two (wide) base80 characters
+     */
+    public String encodeForClient(int zone) {
+        return wide ? Base80.encodeWide(zone) : Base80.encode(zone);
     }
 
     /**
@@ -319,27 +522,37 @@ public class Zones {
      * @param message message from client
      * @return true if success else false
      */
-    public static boolean changeZoneType(String message) {
+    public boolean changeZoneType(String message) {
 
         // verify and remove header
         if (message == null) {
             message = "";
         }
 
-        if (message.length() != 6 || message.startsWith("ZTC=") == false) {
+        // Legacy: ZTC=zt (6 chars), wide: ZTC=zzt (7 chars)
+        if ((message.length() != 6 && message.length() != 7)
+                || message.startsWith("ZTC=") == false) {
             Log.print(Level.WARN, "Invalid message in changeZoneType! " + message);
             return false;
         }
 
-        int zone = Base80.decode(message.charAt(4));  // 0-63
-        int type = Base80.decode(message.charAt(5));  // 0-9
+        int zone, type;
+        if (message.length() == 7) {
+            zone = Base80.decodeWide(message, 4);  // 0-191
+            type = Base80.decode(message.charAt(6));  // 0-9
+        } else {
+            zone = Base80.decode(message.charAt(4));  // 0-63
+            type = Base80.decode(message.charAt(5));  // 0-9
+        }
 
-        if ((zoneExists(zone + 1) == false) || (zone < 0)) {
+        if ((zone < 0) || (zoneExists(zone + 1) == false)
+                || (type < 0) || (type >= Const.ZONE_TYPE_NAMES.length)) {
             Log.print(Level.WARN, "Invalid message in changeZoneType! " + message);
             return false;
         }
 
-        ZONES[zone].type = type;
+        zoneTable[zone].type = type;
+        namesChanged();
         return true;
     }
 
@@ -347,10 +560,11 @@ public class Zones {
      * Gets the settings string to save to the settings file
      * @return String of settings to save to file
      */
-    public static String getSettingsString() {
+    public String getSettingsString() {
         StringBuilder sb = new StringBuilder("ZONE_BEGIN" + System.lineSeparator());
-        for (int i = 0; i < 64; i++) {
-            Zone zone = ZONES[i];
+        sb.append(context.openZones.getSettingsString());
+        for (int i = 0; i < Const.MAX_ZONES; i++) {
+            Zone zone = zoneTable[i];
             if (zone == null) {
                 continue;
             }
@@ -0,0 +1,283 @@
+package bungalowserver;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the client listeners (in the test sources, not shipped),
+ * run against a running server once the tests are compiled:
+ * java -cp build/classes:build/test/classes bungalowserver.LoadTest host port sessions [queries] [threads]
+ * <p>
+ * Opens the sessions one after the other and keeps them open (authenticated
+ * with the key from the password file in the working directory, as the
+ * server), then has every session send QRY queries times from threads
+ * client threads and reports how many sessions opened and stayed open and
+ * the QRY latency percentiles. Run it once against a server started as
+ * usual (ClientListener, 4 handler threads) and once against a server
+ * started with "vt" (VirtualThreadListener) to compare the most concurrent
+ * sessions and the p99 latency of the two. Against a server on this machine
+ * the sessions are spread over loopback source addresses (127.1.x.y) so
+ * per-IP admission control (see Admission) does not limit them.
+ */
+public class LoadTest {
+
+    // Sessions opened from each loopback source address (below the
+    // admission burst of one address)
+    private static final int SESSIONS_PER_ADDRESS = 8;
+
+    // Time allowed to connect and for each response
+    private static final int TIMEOUT_MS = 10000;
+
+    private final InetAddress host;
+    private final int port;
+    private final boolean isLoopback;
+    private final List<Session> sessions = new ArrayList<>();
+
+    /**
+     * One authenticated client session (text protocol)
+     */
+    private static class Session {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final PrintWriter writer;
+        private volatile boolean isOpen = true;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        }
+
+        /**
+         * Sends a request and waits for the response
+         * @param message request
+         * @return response (decrypted)
+         * @throws IOException on socket errors, timeout or a bad response
+         */
+        synchronized String request(String message) throws IOException {
+            writer.println(Crypto.encrypt(message));
+            if (writer.checkError()) {
+                throw new IOException("Error sending request");
+            }
+            String line = reader.readLine();
+            if (line == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            String response = Crypto.decrypt(line);
+            if (response == null) {
+                throw new IOException("Bad response from server");
+            }
+            return response;
+        }
+
+        void close() {
+            isOpen = false;
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param host server address
+     * @param port server port
+     */
+    public LoadTest(InetAddress host, int port) {
+        this.host = host;
+        this.port = port;
+        this.isLoopback = host.isLoopbackAddress() && host instanceof Inet4Address;
+    }
+
+    /**
+     * Main method
+     * @param args host port sessions [queries per session] [client threads]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: LoadTest host port sessions [queries] [threads]");
+            System.exit(1);
+        }
+        InetAddress host;
+        int port, count, queries, threads;
+        try {
+            host = InetAddress.getByName(args[0]);
+            port = Integer.parseInt(args[1]);
+            count = Integer.parseInt(args[2]);
+            queries = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+            threads = (args.length > 4) ? Integer.parseInt(args[4]) : 16;
+        } catch (IOException | NumberFormatException ex) {
+            System.out.println("Invalid argument! " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        String path = System.getProperty("user.dir").replace('\\', '/') + '/';
+        BungalowServer.prepareKey(path + BungalowServer.OBF_FILE_NAME, false);
+
+        LoadTest test = new LoadTest(host, port);
+        test.open(count);
+        try {
+            test.query(queries, threads);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        test.close();
+        System.exit(0);
+    }
+
+    /**
+     * Opens and authenticates sessions one after the other, keeps them open
+     * @param count sessions to open
+     */
+    public void open(int count) {
+        long start = System.nanoTime();
+        int failures = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                sessions.add(connect(i));
+            } catch (IOException ex) {
+                if (failures++ == 0) {
+                    System.out.println("First failure at session " + (i + 1) + ": " + ex.getMessage());
+                }
+            }
+        }
+        System.out.println("Sessions: " + sessions.size() + " opened, " + failures + " failed in "
+                + millis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Opens and authenticates one session
+     * @param index session number (picks the loopback source address)
+     * @return session
+     * @throws IOException if the session could not be opened
+     */
+    private Session connect(int index) throws IOException {
+        Socket socket = new Socket();
+        try {
+            if (isLoopback) {
+                int n = index / SESSIONS_PER_ADDRESS;
+                byte[] source = { 127, 1, (byte) (n >> 8), (byte) (n + 1) };
+                socket.bind(new InetSocketAddress(InetAddress.getByAddress(source), 0));
+            }
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            Session session = new Session(socket);
+            if (session.request("AuthRequest").equals("AuthGrant") == false) {
+                throw new IOException("Authentication refused");
+            }
+            return session;
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends QRY from every open session, spread over client threads, and
+     * reports the latency percentiles
+     * @param queries queries per session
+     * @param threads client threads
+     * @throws InterruptedException if interrupted
+     */
+    public void query(int queries, int threads) throws InterruptedException {
+        int total = sessions.size() * queries;
+        if (total == 0) {
+            return;
+        }
+        long[] latency = new long[total];  // nanoseconds, -1 if failed
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < total) {
+                    Session session = sessions.get(i % sessions.size());
+                    latency[i] = -1;
+                    if (session.isOpen == false) {
+                        failures.incrementAndGet();
+                        continue;
+                    }
+                    long sent = System.nanoTime();
+                    try {
+                        if (session.request("QRY").startsWith("QRY") == false) {
+                            throw new IOException("Unexpected response to QRY");
+                        }
+                        latency[i] = System.nanoTime() - sent;
+                    } catch (IOException ex) {
+                        if (failures.incrementAndGet() == 1) {
+                            System.out.println("First QRY failure: " + ex.getMessage());
+                        }
+                        session.close();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        long elapsed = System.nanoTime() - start;
+
+        long[] sorted = Arrays.stream(latency).filter(l -> l >= 0).sorted().toArray();
+        System.out.println("QRY: " + total + " sent, " + failures.get() + " failed in " + millis(elapsed)
+                + " ms (" + (sorted.length * 1000000000L / Math.max(1, elapsed)) + "/s)");
+        if (sorted.length > 0) {
+            System.out.println("QRY latency ms: p50=" + millis(percentile(sorted, 50))
+                    + " p90=" + millis(percentile(sorted, 90))
+                    + " p99=" + millis(percentile(sorted, 99))
+                    + " max=" + millis(sorted[sorted.length - 1]));
+        }
+        System.out.println("Sessions still open: " + sessions.stream().filter(s -> s.isOpen).count());
+    }
+
+    /**
+     * Closes all sessions
+     */
+    public void close() {
+        for (Session session : sessions) {
+            session.close();
+        }
+        sessions.clear();
+    }
+
+    /**
+     * Gets a percentile of sorted values (nearest rank)
+     * @param sorted values in ascending order
+     * @param percent percentile (1-100)
+     * @return value
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Formats nanoseconds as milliseconds with one decimal
+     * @param nanos nanoseconds
+     * @return milliseconds
+     */
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1000000.0);
+    }
+}